@@ -0,0 +1,95 @@
+#!/usr/bin/env bash
+# Compares the server on platform threads with the server on virtual threads (--virtual-threads) at
+# 1k, 10k and 50k connections. For every run it reports the peak resident memory and thread count of
+# the server and the delivery latency measured by the LoadGenerator.
+#
+# Usage: benchmarks/compare-threads.sh [connections...]    (default: 1000 10000 50000)
+#   JAVA      java of JDK 21 or later, older JDKs only measure platform threads (default: java)
+#   DURATION  seconds the messages are sent in every run (default: 30)
+#   RATE      messages per second of all clients together (default: 1000)
+#   PORT      port of the server (default: 1337)
+# The results are written to benchmarks/results/threads-<date>.txt.
+#
+# Every connection takes a file descriptor in the server and one in the generator, so the limit
+# (ulimit -n) must be a bit more than twice the number of connections. A single generator can open
+# about 28k connections to one address (the ephemeral port range), larger runs are spread over
+# several generators that connect to 127.0.0.1, 127.0.0.2, etc.
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+JAVA=${JAVA:-java}
+DURATION=${DURATION:-30}
+RATE=${RATE:-1000}
+PORT=${PORT:-1337}
+CLIENTS_PER_GENERATOR=20000
+
+counts=("$@")
+if [ ${#counts[@]} -eq 0 ]; then
+    counts=(1000 10000 50000)
+fi
+
+version=$("$JAVA" -XshowSettings:properties -version 2>&1 | awk '/java.specification.version/ {print $3}')
+modes=(platform)
+if [ "${version%%.*}" -ge 21 ]; then
+    modes+=(virtual)
+else
+    echo "Java $version has no virtual threads, only platform threads are measured" >&2
+fi
+
+largest=$(printf '%s\n' "${counts[@]}" | sort -n | tail -1)
+if [ "$(ulimit -n)" -lt $((2 * largest + 100)) ]; then
+    echo "ulimit -n is $(ulimit -n), $((2 * largest + 100)) file descriptors are needed for $largest connections" >&2
+    exit 1
+fi
+
+mvn -B -q compile
+mkdir -p benchmarks/results
+work=$(mktemp -d)
+results=benchmarks/results/threads-$(date +%Y%m%d-%H%M%S).txt
+printf '%-9s %12s %10s %8s %10s %10s %10s\n' mode connections rss_mb threads p50_us p99_us delivered | tee "$results"
+
+for count in "${counts[@]}"; do
+    for mode in "${modes[@]}"; do
+        args=(--port="$PORT" --log-level=error --backlog=4096)
+        if [ "$mode" = virtual ]; then
+            args+=(--virtual-threads)
+        fi
+        "$JAVA" -cp target/classes nl.saxion.internettech.Main "${args[@]}" > "$work/server.log" 2>&1 &
+        server=$!
+        until (exec 3<>/dev/tcp/127.0.0.1/"$PORT") 2>/dev/null; do
+            sleep 0.2
+        done
+
+        # The rate is shared by the generators, every generator drives its own clients.
+        generators=$(( (count + CLIENTS_PER_GENERATOR - 1) / CLIENTS_PER_GENERATOR ))
+        pids=()
+        for ((i = 0; i < generators; i++)); do
+            clients=$(( i < generators - 1 ? CLIENTS_PER_GENERATOR : count - i * CLIENTS_PER_GENERATOR ))
+            "$JAVA" -cp target/classes nl.saxion.internettech.tools.LoadGenerator --host=127.0.0.$((i + 1)) --port="$PORT" \
+                --clients="$clients" --duration="$DURATION" --rate="$(( RATE / generators ))" --name-prefix="g${i}_" \
+                > "$work/generator-$i.log" 2>&1 &
+            pids+=($!)
+        done
+
+        # The peak memory and threads of the server while the generators run.
+        rss=0
+        threads=0
+        while kill -0 "${pids[0]}" 2>/dev/null; do
+            current=$(awk '/VmRSS/ {print $2}' /proc/$server/status)
+            rss=$(( current > rss ? current : rss ))
+            current=$(awk '/Threads/ {print $2}' /proc/$server/status)
+            threads=$(( current > threads ? current : threads ))
+            sleep 1
+        done
+        wait "${pids[@]}"
+        kill "$server"
+        wait "$server" 2>/dev/null || true
+
+        # The worst percentiles and the total of all generators.
+        p50=$(sed -n 's/^Latency (us): .* p50=\([0-9]*\) .*/\1/p' "$work"/generator-*.log | sort -n | tail -1)
+        p99=$(sed -n 's/^Latency (us): .* p99=\([0-9]*\) .*/\1/p' "$work"/generator-*.log | sort -n | tail -1)
+        delivered=$(sed -n 's/^Delivered: \([0-9]*\) msg.*/\1/p' "$work"/generator-*.log | awk '{ total += $1 } END { print total }')
+        printf '%-9s %12d %10d %8d %10s %10s %10s\n' "$mode" "$count" $((rss / 1024)) "$threads" "$p50" "$p99" "$delivered" | tee -a "$results"
+    done
+done
+rm -rf "$work"
@@ -0,0 +1,45 @@
+package nl.saxion.internettech.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks and writes the results as JSON to results/jmh-<version>.json in the benchmarks
+ * module, so the results of different releases can be compared. The directory can be changed with
+ * -Dbenchmarks.results=<dir>. Accepts the normal JMH command line options, e.g. a regular expression
+ * to select benchmarks or -rff to write the results elsewhere.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResult().hasValue()) {
+            String version = BenchmarkRunner.class.getPackage().getImplementationVersion();
+            File results = new File(resultsDirectory(), "jmh-" + (version == null ? "dev" : version) + ".json");
+            results.getParentFile().mkdirs();
+            options.resultFormat(ResultFormatType.JSON).result(results.getPath());
+        }
+        new Runner(options.build()).run();
+    }
+
+    // The results directory of the module, found from the target directory the runner was loaded from.
+    private static File resultsDirectory() throws Exception {
+        String configured = System.getProperty("benchmarks.results");
+        if (configured != null) {
+            return new File(configured);
+        }
+        File location = new File(BenchmarkRunner.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        for (File dir = location; dir != null; dir = dir.getParentFile()) {
+            if (dir.getName().equals("target")) {
+                return new File(dir.getParentFile(), "results");
+            }
+        }
+        return new File("results");
+    }
+}
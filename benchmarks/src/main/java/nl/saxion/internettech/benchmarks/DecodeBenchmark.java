@@ -0,0 +1,78 @@
+package nl.saxion.internettech.benchmarks;
+
+import nl.saxion.internettech.BinaryCodec;
+import nl.saxion.internettech.LineDecoder;
+import nl.saxion.internettech.Message;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a read buffer with a batch of commands into messages, once as lines and once
+ * as binary frames. The score is per buffer, divide by the batch size for the cost per command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"1", "16"})
+    public int batchSize;
+
+    private ByteBuffer lines;
+    private ByteBuffer frames;
+    private final LineDecoder lineDecoder = new LineDecoder();
+    private final BinaryCodec binaryCodec = new BinaryCodec();
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (int i = 0; i < batchSize; i++) {
+            switch (i % 3) {
+                case 0:
+                    text.write("BCST Hello everybody, how are you doing today?\n".getBytes(StandardCharsets.UTF_8));
+                    binary.write(BinaryCodec.encode(Message.MessageType.BCST.getOpcode(), "Hello everybody, how are you doing today?"));
+                    break;
+                case 1:
+                    text.write("PRIVATE user2-Hello there\n".getBytes(StandardCharsets.UTF_8));
+                    binary.write(BinaryCodec.encode(Message.MessageType.PRIVATE.getOpcode(), "user2", "Hello there"));
+                    break;
+                default:
+                    text.write("GROUPMSG developers-Stand-up in five minutes\n".getBytes(StandardCharsets.UTF_8));
+                    binary.write(BinaryCodec.encode(Message.MessageType.GROUPMSG.getOpcode(), "developers", "Stand-up in five minutes"));
+                    break;
+            }
+        }
+        lines = ByteBuffer.wrap(text.toByteArray());
+        frames = ByteBuffer.wrap(binary.toByteArray());
+    }
+
+    @Benchmark
+    public void text(Blackhole blackhole) throws IOException {
+        lines.rewind();
+        lineDecoder.decode(lines, (line, length) -> {
+            Message message = new Message(line);
+            blackhole.consume(message.getPayloadHead('-'));
+            blackhole.consume(message.getPayloadTail('-'));
+        });
+    }
+
+    @Benchmark
+    public void binary(Blackhole blackhole) throws IOException {
+        frames.rewind();
+        binaryCodec.decode(frames, (opcode, fields, length) -> {
+            Message message = new Message(Message.MessageType.fromOpcode(opcode), fields);
+            blackhole.consume(message.getPayloadHead('-'));
+            blackhole.consume(message.getPayloadTail('-'));
+        });
+    }
+}
@@ -0,0 +1,44 @@
+package nl.saxion.internettech.benchmarks;
+
+import nl.saxion.internettech.ConnectionHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of a BCST to all other clients and a PRIVATE message to a single client, for
+ * different numbers of connected clients.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private static final String BROADCAST_LINE = "BCST Hello everybody, how are you doing today?";
+
+    private ConnectionHandler sender;
+    private String privateLine;
+
+    @Setup
+    public void setup() {
+        ServerFixture fixture = new ServerFixture(clients);
+        sender = fixture.getClient(0);
+        privateLine = "PRIVATE user" + (clients - 1) + "-Hello there";
+    }
+
+    @Benchmark
+    public void broadcast() {
+        sender.onLine(BROADCAST_LINE, BROADCAST_LINE.length() + 1);
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        sender.onLine(privateLine, privateLine.length() + 1);
+    }
+}
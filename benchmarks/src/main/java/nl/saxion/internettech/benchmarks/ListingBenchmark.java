@@ -0,0 +1,43 @@
+package nl.saxion.internettech.benchmarks;
+
+import nl.saxion.internettech.ConnectionHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of ALLCLIENTS and ALLGROUPS for different numbers of clients and groups.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    private ConnectionHandler requester;
+
+    @Setup
+    public void setup() {
+        ServerFixture fixture = new ServerFixture(size);
+        requester = fixture.getClient(0);
+        for (int i = 0; i < size; i++) {
+            String line = "NEWGROUP group" + i;
+            fixture.getClient(i).onLine(line, line.length() + 1);
+        }
+    }
+
+    @Benchmark
+    public void allClients() {
+        requester.onLine("ALLCLIENTS", 11);
+    }
+
+    @Benchmark
+    public void allGroups() {
+        requester.onLine("ALLGROUPS", 10);
+    }
+}
@@ -0,0 +1,32 @@
+package nl.saxion.internettech.benchmarks;
+
+import nl.saxion.internettech.ClientConnection;
+import nl.saxion.internettech.Frame;
+
+/**
+ * An in-memory client connection that counts what is written to it and throws it away.
+ */
+public class MemorySink implements ClientConnection {
+
+    private long frames;
+    private long bytes;
+
+    @Override
+    public boolean writeFrame(Frame frame) {
+        frames++;
+        bytes += frame.length();
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
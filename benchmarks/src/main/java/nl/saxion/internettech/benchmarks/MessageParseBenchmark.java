@@ -0,0 +1,49 @@
+package nl.saxion.internettech.benchmarks;
+
+import nl.saxion.internettech.Message;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a line of every message type, including an unknown command.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParseBenchmark {
+
+    @Param({
+            "HELO user1",
+            "BCST Hello everybody, how are you doing today?",
+            "PRIVATE user2-Hello there",
+            "ALLCLIENTS",
+            "NEWGROUP developers",
+            "ALLGROUPS",
+            "JOINGROUP developers",
+            "QUITGROUP developers",
+            "KICKUSER developers-user2",
+            "GROUPMSG developers-Stand-up in five minutes",
+            "QUIT",
+            "UNKNOWN command"
+    })
+    public String line;
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        Message message = new Message(line);
+        blackhole.consume(message.getMessageType());
+        blackhole.consume(message.getPayload());
+    }
+
+    @Benchmark
+    public void parseArguments(Blackhole blackhole) {
+        Message message = new Message(line);
+        blackhole.consume(message.getPayloadHead('-'));
+        blackhole.consume(message.getPayloadTail('-'));
+    }
+}
@@ -0,0 +1,45 @@
+package nl.saxion.internettech.benchmarks;
+
+import nl.saxion.internettech.ConnectionHandler;
+import nl.saxion.internettech.LogLevel;
+import nl.saxion.internettech.Server;
+import nl.saxion.internettech.ServerConfiguration;
+
+/**
+ * An in-process server with a number of logged in clients connected through memory sinks.
+ */
+public class ServerFixture {
+
+    private final Server server;
+    private final ConnectionHandler[] clients;
+    private final MemorySink[] sinks;
+
+    /**
+     * @param clientCount   Number of clients to log in, named user0, user1, etc.
+     */
+    public ServerFixture(int clientCount) {
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        server = new Server(conf);
+        clients = new ConnectionHandler[clientCount];
+        sinks = new MemorySink[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            sinks[i] = new MemorySink();
+            clients[i] = server.connect(sinks[i]);
+            String line = "HELO user" + i;
+            clients[i].onLine(line, line.length() + 1);
+        }
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public ConnectionHandler getClient(int index) {
+        return clients[index];
+    }
+
+    public MemorySink getSink(int index) {
+        return sinks[index];
+    }
+}
@@ -0,0 +1,85 @@
+package nl.saxion.internettech.benchmarks;
+
+import nl.saxion.internettech.BufferPool;
+import nl.saxion.internettech.Frame;
+import nl.saxion.internettech.LogLevel;
+import nl.saxion.internettech.OutboundQueue;
+import nl.saxion.internettech.AsyncLogger;
+import nl.saxion.internettech.ServerConfiguration;
+import nl.saxion.internettech.ServerMetrics;
+import nl.saxion.internettech.SlowConsumerPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The path of a single message through writeToClient: encoding the line, queueing the
+ * frame and writing and flushing it to the (discarding) output stream of the client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    private String message;
+    private OutboundQueue queue;
+    private OutputStream os;
+    private BufferPool pool;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder("BCST [user1] ");
+        while (builder.length() < messageLength) {
+            builder.append('x');
+        }
+        message = builder.toString();
+
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        AsyncLogger logger = new AsyncLogger(conf);
+        ServerMetrics metrics = new ServerMetrics(() -> 0, () -> 0, () -> 0, () -> 0, () -> 0, () -> 0);
+        queue = new OutboundQueue(1024, 0, SlowConsumerPolicy.DROP, 0, logger, metrics);
+        pool = new BufferPool(0, conf.BUFFER_POOL_RETAINED_BYTES, false, logger, metrics);
+        os = new BufferedOutputStream(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Frame encode() {
+        return Frame.of(message);
+    }
+
+    @Benchmark
+    public int encodePooled() {
+        Frame frame = Frame.of(message, pool, false);
+        int length = frame.length();
+        frame.release();
+        return length;
+    }
+
+    @Benchmark
+    public void encodeQueueAndFlush() throws IOException {
+        queue.offer(Frame.of(message), false);
+        queue.poll().writeTo(os);
+        os.flush();
+    }
+
+    @Benchmark
+    public void encodePooledQueueAndFlush() throws IOException {
+        Frame frame = Frame.of(message, pool, false);
+        queue.offer(frame, false);
+        frame.release();
+        Frame queued = queue.poll();
+        queued.writeTo(os);
+        queued.release();
+        os.flush();
+    }
+}
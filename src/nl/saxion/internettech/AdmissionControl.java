@@ -0,0 +1,84 @@
+package nl.saxion.internettech;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides at accept whether a new connection is served. A connection is refused when the server
+ * already has its maximum number of connections, when the address of the client already has its
+ * maximum number of connections, when connections arrive faster than the accept rate or when the
+ * buffers of the server are used up. A refused client gets a single -ERR line and is disconnected
+ * right away, without a thread, a queue or a client thread, so a reconnect storm costs the server
+ * little and the clients that are already connected keep being served.
+ */
+public class AdmissionControl {
+
+    // The reply to a refused connection, written directly to the socket.
+    public static final byte[] BUSY = "-ERR server busy\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    // Null when the accept rate is not limited.
+    private final TokenBucket acceptLimit;
+    private final BufferPool buffers;
+    private final AtomicInteger connections = new AtomicInteger();
+    // Number of connections per client address, addresses without connections are removed.
+    private final ConcurrentMap<InetAddress, Integer> addresses = new ConcurrentHashMap<>();
+
+    public AdmissionControl(ServerConfiguration conf, BufferPool buffers) {
+        this.maxConnections = conf.getMaxConnections();
+        this.maxConnectionsPerAddress = conf.getMaxConnectionsPerAddress();
+        this.acceptLimit = conf.getAcceptRate() > 0 ? new TokenBucket(conf.getAcceptRate(), conf.getAcceptBurst()) : null;
+        this.buffers = buffers;
+    }
+
+    /**
+     * Admits a new connection and counts it, if it may be served.
+     * @param address   The address of the client.
+     * @return  Returns null if the connection is admitted and must be released when it is closed,
+     *          otherwise the reason it has been refused.
+     */
+    public String admit(InetAddress address) {
+        if (buffers.isExhausted()) {
+            return "out of memory";
+        }
+        if (acceptLimit != null && acceptLimit.tryAcquire(1, System.nanoTime()) > 0) {
+            return "accept rate exceeded";
+        }
+        if (maxConnections > 0 && connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return "too many connections";
+        }
+        if (maxConnectionsPerAddress > 0) {
+            // Counted and checked in one atomic step, the count of a refused connection is taken back.
+            if (addresses.merge(address, 1, Integer::sum) > maxConnectionsPerAddress) {
+                releaseAddress(address);
+                if (maxConnections > 0) {
+                    connections.decrementAndGet();
+                }
+                return "too many connections from " + address.getHostAddress();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases an admitted connection once it has been closed.
+     * @param address   The address of the client.
+     */
+    public void release(InetAddress address) {
+        if (maxConnections > 0) {
+            connections.decrementAndGet();
+        }
+        if (maxConnectionsPerAddress > 0) {
+            releaseAddress(address);
+        }
+    }
+
+    private void releaseAddress(InetAddress address) {
+        addresses.computeIfPresent(address, (a, count) -> count == 1 ? null : count - 1);
+    }
+}
@@ -0,0 +1,175 @@
+package nl.saxion.internettech;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs server messages without doing any console I/O on the calling thread. Log entries are
+ * put in a bounded lock-free {@link RingBuffer} and formatted and written by a single background
+ * thread. When the ring buffer is full new entries are dropped (and counted) instead of
+ * blocking the caller. Entries below the configured level are rejected before anything is
+ * built, so disabled logging costs a single comparison.
+ */
+public class AsyncLogger {
+
+    // Entry kinds.
+    private static final int TEXT = 0;
+    private static final int INCOMING = 1;
+    private static final int OUTGOING = 2;
+
+    // Time the writer sleeps when there is nothing to log.
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final ServerConfiguration conf;
+    private final LogLevel level;
+    private final int traceSampleRate;
+
+    private final RingBuffer<Entry> entries;
+    private final PrintWriter out;
+    private final StringBuilder builder = new StringBuilder(256);
+
+    public AsyncLogger(ServerConfiguration conf) {
+        this.conf = conf;
+        this.level = conf.getLogLevel();
+        this.traceSampleRate = conf.getTraceSampleRate();
+
+        this.entries = new RingBuffer<>(conf.LOG_BUFFER_SIZE, Entry::new);
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out))));
+
+        Thread writer = new Thread(this::writeLoop, "async-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain));
+    }
+
+    /**
+     * @param level The level to be checked.
+     * @return  Returns true if messages of the given level are logged. Use this to avoid
+     *          building log messages that would be thrown away.
+     */
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(this.level) >= 0 && level != LogLevel.OFF;
+    }
+
+    /**
+     * Logs a line of text.
+     * @param level The level of the message.
+     * @param text  The message to be logged.
+     */
+    public void log(LogLevel level, String text) {
+        if (isEnabled(level)) {
+            publish(TEXT, null, text);
+        }
+    }
+
+    /**
+     * Logs an incoming or outgoing protocol message (at DEBUG level). When sampling is
+     * enabled only one in every n messages is logged.
+     * @param isIncoming    Indicates whether the message was an incoming message. If false then
+     *                      an outgoing message is assumed.
+     * @param username      The user that sent or received the message, null if not logged in yet.
+     * @param message       The message received or sent.
+     */
+    public void logMessage(boolean isIncoming, String username, String message) {
+        if (!isEnabled(LogLevel.DEBUG)) {
+            return;
+        }
+        if (traceSampleRate > 1 && ThreadLocalRandom.current().nextInt(traceSampleRate) != 0) {
+            return;
+        }
+        publish(isIncoming ? INCOMING : OUTGOING, username, message);
+    }
+
+    /**
+     * @return  Returns the number of log entries dropped because the ring buffer was full.
+     */
+    public long getDroppedCount() {
+        return entries.getDroppedCount();
+    }
+
+    private void publish(int kind, String username, String text) {
+        long position = entries.claim();
+        if (position < 0) {
+            return;
+        }
+        Entry entry = entries.get(position);
+        entry.kind = kind;
+        entry.username = username;
+        entry.text = text;
+        entries.publish(position);
+    }
+
+    private void writeLoop() {
+        long reportedDropped = 0;
+        while (true) {
+            if (!drain()) {
+                long droppedNow = entries.getDroppedCount();
+                if (droppedNow != reportedDropped) {
+                    out.println("[LOG] " + (droppedNow - reportedDropped) + " log messages dropped");
+                    out.flush();
+                    reportedDropped = droppedNow;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Writes all published entries to the console and flushes once.
+     * @return  Returns false if there was nothing to write.
+     */
+    private synchronized boolean drain() {
+        boolean wrote = false;
+        Entry entry;
+        while ((entry = entries.peek()) != null) {
+            write(entry.kind, entry.username, entry.text);
+            entry.username = null;
+            entry.text = null;
+            entries.release();
+            wrote = true;
+        }
+        if (wrote) {
+            out.flush();
+        }
+        return wrote;
+    }
+
+    private void write(int kind, String username, String text) {
+        if (kind == TEXT) {
+            out.println(text);
+            return;
+        }
+
+        builder.setLength(0);
+        boolean isIncoming = kind == INCOMING;
+        if (conf.isShowColors()) {
+            builder.append(isIncoming ? conf.CLI_COLOR_INCOMING : conf.CLI_COLOR_OUTGOING);
+        }
+        builder.append(isIncoming ? "<< " : ">> ");
+
+        // Add username to log if present.
+        // Note when setting up the connection the user is not known.
+        if (username != null) {
+            builder.append('[').append(username).append("] ");
+        }
+        builder.append(text);
+        if (conf.isShowColors()) {
+            builder.append(conf.RESET_CLI_COLORS);
+        }
+        out.println(builder);
+    }
+
+    /**
+     * A log entry in the ring buffer.
+     */
+    private static final class Entry {
+        private int kind;
+        private String username;
+        private String text;
+    }
+}
@@ -0,0 +1,259 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Length prefixed binary frames, an alternative for the line protocol that a client can switch
+ * to with the BINARY command. The server answers +OK BINARY as the last text line, all data
+ * after the BINARY command and the reply is sent in frames.
+ * <p>
+ * A frame is the length of the rest of the frame (varint), an opcode (byte) and zero or more
+ * fields. A field is a UTF-8 string prefixed by its length in bytes (varint). Commands use the
+ * opcode of their message type and pass the arguments the line protocol separates with a '-'
+ * as separate fields, e.g. PRIVATE [user] [text], so payloads may contain any character
+ * including newlines. The server uses the same opcodes for the messages it pushes (HELO, BCST,
+ * PRIVATE, GROUPMSG, HISTORY, PING) and OK, ERR and TEXT for the replies and other lines.
+ * <p>
+ * An instance decodes the frames received on a single connection. A read can end halfway a
+ * frame, so the bytes of an incomplete frame are kept until the rest arrives.
+ */
+public class BinaryCodec {
+
+    public static final int OK = 0x40;
+    public static final int ERR = 0x41;
+    public static final int TEXT = 0x42;
+
+    // Maximum length of a single frame, the same as the maximum length of a line.
+    public static final int MAX_FRAME_LENGTH = LineDecoder.MAX_LINE_LENGTH;
+    private static final int MAX_FIELDS = 8;
+    private static final String PRIVATE_MARKER = "has sent you a message: ";
+    private static final byte[] EMPTY = new byte[0];
+    private static final String[] NO_FIELDS = new String[0];
+
+    /**
+     * Receives the decoded frames.
+     */
+    public interface FrameHandler {
+        /**
+         * @param opcode    The opcode of the frame.
+         * @param fields    The fields of the frame.
+         * @param length    The length of the frame in bytes, including the length prefix.
+         */
+        void onFrame(int opcode, String[] fields, int length);
+    }
+
+    // Bytes of a frame that has not been received completely yet.
+    private byte[] pending = EMPTY;
+    private int pendingLength = 0;
+    // Position after the last varint that was read, avoids allocating a result object per varint.
+    private int varintEnd;
+    // Set when decoding has to wait, the frames after the current frame are kept until the next call.
+    private boolean paused = false;
+
+    /**
+     * Decodes all complete frames in the buffer and passes them to the handler. The buffer must
+     * be backed by an array. Frames are decoded straight from the array of the buffer, only the
+     * bytes of an incomplete frame are copied.
+     * @param buffer    The buffer to read from, positioned at the first unread byte.
+     * @param handler   Receives every complete frame.
+     * @throws IOException  When a frame is invalid or exceeds the maximum frame length.
+     */
+    public void decode(ByteBuffer buffer, FrameHandler handler) throws IOException {
+        byte[] array = buffer.array();
+        int start = buffer.arrayOffset() + buffer.position();
+        int end = buffer.arrayOffset() + buffer.limit();
+        buffer.position(buffer.limit());
+
+        if (pendingLength == 0) {
+            int consumed = decodeFrames(array, start, end, handler);
+            append(array, consumed, end - consumed);
+        } else {
+            append(array, start, end - start);
+            int consumed = decodeFrames(pending, 0, pendingLength, handler);
+            pendingLength -= consumed;
+            System.arraycopy(pending, consumed, pending, 0, pendingLength);
+            // Don't let idle connections hold on to the buffer of a single large frame.
+            if (pendingLength == 0 && pending.length > 1024) {
+                pending = EMPTY;
+            }
+        }
+    }
+
+    /**
+     * Called while a frame is handled, decode then returns right after that frame. The frames
+     * after it are kept and decoded by the next call, which may pass an empty buffer.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /**
+     * @return  Returns the position of the first byte that is not part of a complete frame.
+     */
+    private int decodeFrames(byte[] array, int position, int end, FrameHandler handler) throws IOException {
+        while (position < end) {
+            int length = readVarint(array, position, end);
+            if (length < 0) {
+                return position;
+            }
+            if (length == 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            int frameStart = position;
+            int opcodePosition = varintEnd;
+            int frameEnd = opcodePosition + length;
+            if (frameEnd > end) {
+                return position;
+            }
+            String[] fields = readFields(array, opcodePosition + 1, frameEnd);
+            position = frameEnd;
+            handler.onFrame(array[opcodePosition] & 0xFF, fields, frameEnd - frameStart);
+            if (paused) {
+                paused = false;
+                return position;
+            }
+        }
+        return position;
+    }
+
+    private String[] readFields(byte[] array, int position, int end) throws IOException {
+        if (position == end) {
+            return NO_FIELDS;
+        }
+        String[] fields = new String[MAX_FIELDS];
+        int count = 0;
+        while (position < end) {
+            int length = readVarint(array, position, end);
+            if (length < 0 || varintEnd + length > end || count == MAX_FIELDS) {
+                throw new IOException("Invalid frame field");
+            }
+            fields[count++] = new String(array, varintEnd, length, StandardCharsets.UTF_8);
+            position = varintEnd + length;
+        }
+        return Arrays.copyOf(fields, count);
+    }
+
+    /**
+     * Reads an unsigned varint of at most 4 bytes (28 bits).
+     * @return  Returns the value or -1 if the varint is incomplete. The position after the varint is stored in varintEnd.
+     */
+    private int readVarint(byte[] array, int position, int end) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (position >= end) {
+                return -1;
+            }
+            int b = array[position++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                varintEnd = position;
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return;
+        }
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+        }
+        System.arraycopy(bytes, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    /**
+     * Encodes a frame.
+     * @param opcode    The opcode of the frame.
+     * @param fields    The fields of the frame.
+     * @return  Returns the encoded frame, including the length prefix.
+     */
+    public static byte[] encode(int opcode, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += varintSize(encoded[i].length) + encoded[i].length;
+        }
+        byte[] frame = new byte[varintSize(length) + length];
+        int position = putVarint(frame, 0, length);
+        frame[position++] = (byte) opcode;
+        for (byte[] field : encoded) {
+            position = putVarint(frame, position, field.length);
+            System.arraycopy(field, 0, frame, position, field.length);
+            position += field.length;
+        }
+        return frame;
+    }
+
+    /**
+     * Encodes a line of the text protocol sent by the server into a frame with the same information.
+     * @param line  The line, without line terminator.
+     * @return  Returns the encoded frame.
+     */
+    public static byte[] encodeLine(String line) {
+        if (line.startsWith("+OK")) {
+            return encode(OK, rest(line, 3));
+        } else if (line.startsWith("-ERR")) {
+            return encode(ERR, rest(line, 4));
+        } else if (line.startsWith("BCST [")) {
+            // BCST [user] text
+            int close = line.indexOf("] ", 6);
+            if (close > 0) {
+                return encode(Message.MessageType.BCST.getOpcode(), line.substring(6, close), line.substring(close + 2));
+            }
+        } else if (line.startsWith("GROUPMSG [")) {
+            // GROUPMSG [group] [user] text
+            int closeGroup = line.indexOf("] [", 10);
+            int closeUser = closeGroup < 0 ? -1 : line.indexOf("] ", closeGroup + 3);
+            if (closeUser > 0) {
+                return encode(Message.MessageType.GROUPMSG.getOpcode(), line.substring(10, closeGroup),
+                        line.substring(closeGroup + 3, closeUser), line.substring(closeUser + 2));
+            }
+        } else if (line.startsWith("HELO ")) {
+            return encode(Message.MessageType.HELO.getOpcode(), line.substring(5));
+        } else if (line.equals("PING") || line.equals("PONG")) {
+            return encode(Message.MessageType.valueOf(line).getOpcode());
+        } else if (line.startsWith("HISTORY ")) {
+            return encode(Message.MessageType.HISTORY.getOpcode(), line.substring(8));
+        } else {
+            // [user]has sent you a message: text
+            int marker = line.indexOf(PRIVATE_MARKER);
+            if (marker >= 0) {
+                return encode(Message.MessageType.PRIVATE.getOpcode(), line.substring(0, marker),
+                        line.substring(marker + PRIVATE_MARKER.length()));
+            }
+        }
+        return encode(TEXT, line);
+    }
+
+    // The part of a reply after +OK or -ERR, without the separating space.
+    private static String rest(String line, int start) {
+        if (line.length() > start && line.charAt(start) == ' ') {
+            start++;
+        }
+        return line.substring(start);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int putVarint(byte[] array, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            array[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,173 @@
+package nl.saxion.internettech;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte buffers for the encoded frames and the read buffers of the server. Buffers are
+ * handed out in a few size classes, a buffer gets the smallest class it fits in, so a released
+ * buffer can be reused for any later request of its class. Once the server runs at a constant
+ * load all buffers come from the pool and the garbage collector has nothing left to do for them.
+ * <p>
+ * The pool counts the bytes of all buffers that are in use. When they exceed the configured
+ * ceiling the pool is exhausted: it still hands out buffers, so replies and frames that are
+ * already being sent are not lost, but the server refuses new messages until buffers are released.
+ * <p>
+ * In debug mode every owner of a pooled buffer is tracked, an owner that is garbage collected
+ * without releasing its buffer is reported as a leak together with the place it was allocated.
+ */
+public class BufferPool {
+
+    // Capacities of the size classes, larger buffers are allocated when needed and never pooled.
+    private static final int[] SIZE_CLASSES = {128, 512, 2048, 8192, 16384, 65536};
+
+    private final List<ArrayBlockingQueue<ByteBuffer>> heapBuffers;
+    private final List<ArrayBlockingQueue<ByteBuffer>> directBuffers;
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AsyncLogger logger;
+    private final ServerMetrics metrics;
+    // Null unless leaks are detected.
+    private final Cleaner cleaner;
+
+    /**
+     * @param maxBytes      The ceiling of the bytes in use, 0 for no ceiling.
+     * @param retainedBytes The number of free bytes each size class keeps for reuse.
+     * @param detectLeaks   Whether the owners of buffers are tracked to detect leaks.
+     * @param logger        Logs the leaks.
+     * @param metrics       Counts the leaks.
+     */
+    public BufferPool(long maxBytes, int retainedBytes, boolean detectLeaks, AsyncLogger logger, ServerMetrics metrics) {
+        this.maxBytes = maxBytes;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.cleaner = detectLeaks ? Cleaner.create() : null;
+        this.heapBuffers = new ArrayList<>(SIZE_CLASSES.length);
+        this.directBuffers = new ArrayList<>(SIZE_CLASSES.length);
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            int retained = Math.max(1, retainedBytes / SIZE_CLASSES[i]);
+            heapBuffers.add(new ArrayBlockingQueue<>(retained));
+            directBuffers.add(new ArrayBlockingQueue<>(retained));
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if the pool has no free buffer of the right size.
+     * @param size      The number of bytes needed.
+     * @param direct    Whether a direct buffer is needed, otherwise the buffer is backed by an array.
+     * @return  Returns a cleared buffer with its limit set to the size. The capacity can be larger.
+     */
+    public ByteBuffer allocate(int size, boolean direct) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = (direct ? directBuffers : heapBuffers).get(sizeClass).poll();
+        }
+        if (buffer == null) {
+            int capacity = sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : size;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        usedBytes.addAndGet(buffer.capacity());
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after it has been released.
+     * @param buffer    A buffer taken from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        usedBytes.addAndGet(-buffer.capacity());
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass >= 0 && SIZE_CLASSES[sizeClass] == buffer.capacity()) {
+            // If the size class already keeps enough free buffers the buffer is left to the garbage collector.
+            (buffer.isDirect() ? directBuffers : heapBuffers).get(sizeClass).offer(buffer);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return  Returns true if the buffers in use exceed the ceiling and the server should shed load.
+     */
+    public boolean isExhausted() {
+        return maxBytes > 0 && usedBytes.get() > maxBytes;
+    }
+
+    /**
+     * @return  Returns the total capacity of the buffers that are in use.
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Starts tracking the owner of a pooled buffer, only in debug mode.
+     * @param owner   The object that has to release the buffer.
+     * @param buffer  The buffer, it is garbage collected together with its owner.
+     * @return  Returns the tracker that must be closed when the buffer is released, or null if leaks are not detected.
+     */
+    public Leak track(Object owner, ByteBuffer buffer) {
+        if (cleaner == null) {
+            return null;
+        }
+        Leak leak = new Leak(owner.getClass().getSimpleName(), buffer.capacity());
+        leak.cleanable = cleaner.register(owner, leak);
+        return leak;
+    }
+
+    /**
+     * Tracks a single pooled buffer. Runs when the owner has been garbage collected, or when it
+     * is closed because the buffer has been released. Must not refer to the owner itself,
+     * otherwise the owner never becomes unreachable.
+     */
+    public final class Leak implements Runnable {
+        private final String owner;
+        private final int capacity;
+        // Records the stack of the allocation, only used in debug mode.
+        private final Throwable allocation = new Throwable();
+        private volatile boolean released = false;
+        private Cleaner.Cleanable cleanable;
+
+        private Leak(String owner, int capacity) {
+            this.owner = owner;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Stops tracking, called when the buffer is released.
+         */
+        public void close() {
+            released = true;
+            cleanable.clean();
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                // The buffer is gone as well, it no longer counts as used.
+                usedBytes.addAndGet(-capacity);
+                metrics.recordBufferLeak();
+                StackTraceElement[] stack = allocation.getStackTrace();
+                StringBuilder builder = new StringBuilder("[LEAK] ").append(owner)
+                        .append(" was garbage collected without releasing its buffer, allocated at");
+                // Skip the frames of the pool and the owner.
+                for (int i = 2; i < Math.min(stack.length, 8); i++) {
+                    builder.append("\n\tat ").append(stack[i]);
+                }
+                logger.log(LogLevel.ERROR, builder.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package nl.saxion.internettech;
+
+/**
+ * The transport a client thread uses to talk to its client. Depending on the server
+ * mode this is either a blocking socket or a non-blocking channel owned by an event loop.
+ * Writes never wait for the client: frames are put in the outbound queue of the connection
+ * and written by the writer of the connection.
+ */
+public interface ClientConnection {
+
+    /**
+     * Queue an encoded frame to be written to the client. Only the thread that reads from a client
+     * may wait for room in a full queue (see {@link OutboundQueue#isBlockingAllowed()}), shared
+     * threads like the timing wheel never wait for a single client.
+     * @param frame The frame to be sent, may be shared with other connections.
+     * @return  Returns false if the frame was not queued because the client can't keep up, the
+     *          connection is then being closed.
+     */
+    boolean writeFrame(Frame frame);
+
+    /**
+     * Queue a single line to be written to the client. The line terminator is added by the connection.
+     * @param line  The line to be sent (without line terminator).
+     */
+    default void writeLine(String line) {
+        writeFrame(Frame.of(line));
+    }
+
+    /**
+     * Switches the connection to the binary protocol. Received bytes after the line that is
+     * being handled are decoded as binary frames. Frames queued after a frame created with
+     * {@link Frame#switchingToBinary(String)} are sent in their binary encoding.
+     */
+    default void switchToBinary() {
+    }
+
+    /**
+     * Stops reading from the client for a while, to slow down a client that exceeds its rate limit.
+     * Commands that have already been read are still handled. Must be called by the handler.
+     * @param nanos The time to wait before reading again.
+     */
+    default void pauseReads(long nanos) {
+    }
+
+    /**
+     * @return  Returns the number of frames waiting to be written to the client.
+     */
+    default int getQueuedFrames() {
+        return 0;
+    }
+
+    /**
+     * Close the connection to the client after the frames that are already queued have been written.
+     */
+    void close();
+}
@@ -0,0 +1,65 @@
+package nl.saxion.internettech;
+
+/**
+ * Callbacks for the events a cluster node receives from the other nodes of the cluster.
+ * The callbacks are called by the reader thread of the link to the node that sent the event.
+ */
+public interface ClusterHandler {
+
+    /**
+     * Called when a link to another node has been established. The handler sends the
+     * local users and groups to the node, so both nodes know each other's state.
+     * @param nodeId    The id of the node.
+     */
+    void onNodeUp(String nodeId);
+
+    /**
+     * Called when the link to another node has been lost. Everything that was known
+     * about the users of the node has to be forgotten.
+     * @param nodeId    The id of the node.
+     */
+    void onNodeDown(String nodeId);
+
+    /**
+     * Called when a node wants to log in a user. The username is reserved for the node
+     * if it is not in use yet.
+     * @param nodeId    The id of the node.
+     * @param username  The requested username.
+     * @return  Returns true if the node may use the username.
+     */
+    boolean onClaimUser(String nodeId, String username);
+
+    /**
+     * Called when a node wants to create a group. The group name is reserved for the node
+     * if it is not in use yet.
+     * @param nodeId    The id of the node.
+     * @param groupName The requested group name.
+     * @param owner     The username of the owner of the group or null.
+     * @return  Returns true if the node may create the group.
+     */
+    boolean onClaimGroup(String nodeId, String groupName, String owner);
+
+    void onUserJoined(String nodeId, String username);
+
+    void onUserLeft(String nodeId, String username);
+
+    void onGroupCreated(String nodeId, String groupName, String owner);
+
+    void onGroupReleased(String nodeId, String groupName);
+
+    /**
+     * Called when the number of participants of a group on a node has changed.
+     * @param nodeId    The id of the node.
+     * @param groupName The name of the group.
+     * @param count     The number of participants of the group connected to the node.
+     */
+    void onMembers(String nodeId, String groupName, int count);
+
+    void onBroadcast(String from, String text);
+
+    void onPrivate(String from, String to, String text);
+
+    void onGroupMessage(String groupName, String from, String text);
+
+    void onKick(String groupName, String username);
+}
@@ -0,0 +1,508 @@
+package nl.saxion.internettech;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Connects this server to the other server processes of a cluster. Every pair of nodes
+ * shares a single TCP link over which the nodes exchange presence (which user is logged in
+ * on which node), groups and messages for users on the other node, one line per event:
+ * <pre>
+ * NODE id nonce                handshake, sent by both sides
+ * AUTH hmac                    proof that the node knows the secret of the cluster
+ * CLAIM claimId USER username  reserve a username, answered with VOTE claimId YES|NO
+ * CLAIM claimId GROUP owner name
+ * USER username / LEAVE username
+ * GROUP owner name / UNGROUP name
+ * MEMBERS count name           number of participants of a group on the sending node
+ * BCST from text
+ * PRIVATE from to text
+ * GROUPMSG from name-text
+ * KICK username name
+ * </pre>
+ * A message is sent over a link at most once, no matter how many users of the other
+ * node receive it.
+ * <p>
+ * The nodes of a cluster share a secret. Both sides of a new link send a random nonce and answer
+ * the nonce of the other side with the HMAC-SHA256 of that nonce and their own id, keyed with the
+ * secret. The link is only used once the answer of the other side is correct, so a host that does
+ * not know the secret can't inject events or vote on claims. The secret itself is never sent, but
+ * the events are not encrypted: the cluster port listens on the loopback address unless another
+ * address is configured, which should be on a private network.
+ */
+public class ClusterNode {
+
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int LINK_QUEUE_SIZE = 65536;
+    // Owner of a group that was created by a client that is not logged in.
+    private static final String NO_OWNER = "-";
+    private static final int NONCE_LENGTH = 16;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final String nodeId;
+    private final ServerConfiguration conf;
+    private final AsyncLogger logger;
+    private final ServerMetrics metrics;
+    private final ClusterHandler handler;
+    // The established links indexed by the id of the node at the other side.
+    private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Claim> claims = new ConcurrentHashMap<>();
+    private final AtomicLong nextClaimId = new AtomicLong();
+    private final SecureRandom random = new SecureRandom();
+
+    public ClusterNode(ServerConfiguration conf, AsyncLogger logger, ServerMetrics metrics, ClusterHandler handler) {
+        this.nodeId = conf.getNodeId();
+        this.conf = conf;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.handler = handler;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Starts listening for links from other nodes and connects to the configured peers.
+     * Lost links to peers are reconnected in the background.
+     */
+    public void start() throws IOException {
+        String secret = conf.getClusterSecret();
+        if (secret == null || secret.isEmpty()) {
+            throw new IOException("a cluster needs a shared secret, see --cluster-secret");
+        }
+        InetAddress bindAddress = InetAddress.getByName(conf.getClusterBindAddress());
+        ServerSocket serverSocket = new ServerSocket(conf.getClusterPort(), 50, bindAddress);
+        startThread("cluster-acceptor", () -> accept(serverSocket));
+        for (String peer : conf.getClusterPeers()) {
+            startThread("cluster-connector-" + peer, () -> connect(peer));
+        }
+        logger.log(LogLevel.INFO, "Cluster node " + nodeId + " listening on " + bindAddress.getHostAddress() + ":" + conf.getClusterPort());
+    }
+
+    private void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                startThread("cluster-link", () -> runLink(socket, false));
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Cluster Exception: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps a link to the given peer. A new connection is only made while no link to the
+     * node exists, the link may also have been made by the peer.
+     */
+    private void connect(String peer) {
+        int separator = peer.lastIndexOf(':');
+        String host = peer.substring(0, separator);
+        int port = Integer.parseInt(peer.substring(separator + 1));
+        String peerId = null;
+        while (true) {
+            if (peerId == null || !links.containsKey(peerId)) {
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(host, port));
+                    peerId = runLink(socket, true);
+                } catch (IOException e) {
+                    logger.log(LogLevel.DEBUG, "Cluster peer " + peer + " not reachable: " + e.getMessage());
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Does the handshake and reads the events of the other node until the link is closed.
+     * @return  Returns the id of the other node or null if the handshake failed.
+     */
+    private String runLink(Socket socket, boolean outgoing) {
+        Link link = null;
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutboundQueue outbound = new OutboundQueue(LINK_QUEUE_SIZE, 0, SlowConsumerPolicy.DISCONNECT, 0, logger, metrics);
+            SocketConnection connection = new SocketConnection(socket, outbound, conf, logger);
+            connection.startWriter(Thread::new);
+            byte[] nonce = new byte[NONCE_LENGTH];
+            random.nextBytes(nonce);
+            String ownNonce = HexFormat.of().formatHex(nonce);
+            connection.writeLine("NODE " + nodeId + " " + ownNonce);
+
+            // NODE id nonce, answered with the proof of this node, followed by the proof of the other node.
+            String hello = readLine(in);
+            String[] handshake = hello == null ? new String[0] : hello.split(" ");
+            if (handshake.length != 3 || !handshake[0].equals("NODE") || handshake[1].equals(nodeId)) {
+                logger.log(LogLevel.WARN, "[CLUSTER] Invalid handshake from " + socket + ": " + hello);
+                connection.close();
+                return null;
+            }
+            String peerId = handshake[1];
+            connection.writeLine("AUTH " + prove(handshake[2], nodeId));
+            String auth = readLine(in);
+            if (auth == null || !auth.startsWith("AUTH ") || !MessageDigest.isEqual(
+                    prove(ownNonce, peerId).getBytes(StandardCharsets.US_ASCII), auth.substring(5).getBytes(StandardCharsets.US_ASCII))) {
+                logger.log(LogLevel.WARN, "[CLUSTER] Node " + peerId + " at " + socket + " failed to authenticate");
+                connection.close();
+                return null;
+            }
+            link = new Link(peerId, connection, outgoing);
+            if (!register(link)) {
+                connection.close();
+                return link.nodeId;
+            }
+            logger.log(LogLevel.INFO, "[CLUSTER] Node " + link.nodeId + " joined");
+            handler.onNodeUp(link.nodeId);
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                onLine(link, line);
+            }
+        } catch (IOException e) {
+            logger.log(LogLevel.WARN, "[CLUSTER] Link Exception: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Exception when closing socket: " + e.getMessage());
+            }
+            if (link != null && links.remove(link.nodeId, link)) {
+                logger.log(LogLevel.INFO, "[CLUSTER] Node " + link.nodeId + " left");
+                nodeDown(link.nodeId);
+            }
+        }
+        return link == null ? null : link.nodeId;
+    }
+
+    /**
+     * Reads a line of at most the maximum line length, a node that sends longer lines is disconnected.
+     * @return  Returns the line without terminator or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (line.size() == LineDecoder.MAX_LINE_LENGTH) {
+                throw new IOException("Line exceeds " + LineDecoder.MAX_LINE_LENGTH + " bytes");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return  Returns the proof that a node knows the secret: the HMAC of the nonce it received and its own id.
+     */
+    private String prove(String nonce, String id) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(conf.getClusterSecret().getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+            return HexFormat.of().formatHex(mac.doFinal((nonce + " " + id).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            // Every Java platform supports HmacSHA256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Registers an established link. When both nodes connected to each other at the same time,
+     * both nodes keep the link that was made by the node with the lowest id.
+     * @return  Returns false if the link is not needed because there already is a link to the node.
+     */
+    private synchronized boolean register(Link link) {
+        Link existing = links.get(link.nodeId);
+        if (existing != null) {
+            boolean preferOutgoing = nodeId.compareTo(link.nodeId) < 0;
+            if (existing.outgoing == preferOutgoing) {
+                return false;
+            }
+            existing.connection.close();
+        }
+        links.put(link.nodeId, link);
+        return true;
+    }
+
+    private void nodeDown(String downNodeId) {
+        // The node can't hold on to a username or group anymore, so it no longer has to agree with claims.
+        for (Claim claim : claims.values()) {
+            claim.vote(downNodeId, true);
+        }
+        handler.onNodeDown(downNodeId);
+    }
+
+    /**
+     * Handles a single event received from another node. An event that can't be parsed is logged
+     * and dropped, the link stays up.
+     */
+    private void onLine(Link link, String line) {
+        try {
+            handleEvent(link, line);
+        } catch (RuntimeException e) {
+            logger.log(LogLevel.WARN, "[CLUSTER] Invalid event from " + link.nodeId + " (" + e + "): " + line);
+        }
+    }
+
+    private void handleEvent(Link link, String line) {
+        String[] parts;
+        int separator = line.indexOf(' ');
+        String command = separator < 0 ? line : line.substring(0, separator);
+        switch (command) {
+            case "CLAIM":
+                parts = line.split(" ", 5);
+                boolean granted;
+                if (parts[2].equals("USER")) {
+                    granted = handler.onClaimUser(link.nodeId, parts[3]);
+                } else {
+                    granted = handler.onClaimGroup(link.nodeId, parts[4], toOwner(parts[3]));
+                }
+                link.send("VOTE " + parts[1] + (granted ? " YES" : " NO"));
+                break;
+            case "VOTE":
+                parts = line.split(" ", 3);
+                Claim claim = claims.get(Long.parseLong(parts[1]));
+                if (claim != null) {
+                    claim.vote(link.nodeId, parts[2].equals("YES"));
+                }
+                break;
+            case "USER":
+                handler.onUserJoined(link.nodeId, line.substring(separator + 1));
+                break;
+            case "LEAVE":
+                handler.onUserLeft(link.nodeId, line.substring(separator + 1));
+                break;
+            case "GROUP":
+                parts = line.split(" ", 3);
+                handler.onGroupCreated(link.nodeId, parts[2], toOwner(parts[1]));
+                break;
+            case "UNGROUP":
+                handler.onGroupReleased(link.nodeId, line.substring(separator + 1));
+                break;
+            case "MEMBERS":
+                parts = line.split(" ", 3);
+                handler.onMembers(link.nodeId, parts[2], Integer.parseInt(parts[1]));
+                break;
+            case "BCST":
+                parts = line.split(" ", 3);
+                handler.onBroadcast(parts[1], parts[2]);
+                break;
+            case "PRIVATE":
+                parts = line.split(" ", 4);
+                handler.onPrivate(parts[1], parts[2], parts[3]);
+                break;
+            case "GROUPMSG":
+                parts = line.split(" ", 3);
+                int dash = parts[2].indexOf('-');
+                handler.onGroupMessage(parts[2].substring(0, dash), parts[1], parts[2].substring(dash + 1));
+                break;
+            case "KICK":
+                parts = line.split(" ", 3);
+                handler.onKick(parts[2], parts[1]);
+                break;
+            default:
+                logger.log(LogLevel.WARN, "[CLUSTER] Unknown event from " + link.nodeId + ": " + line);
+        }
+    }
+
+    private static String toOwner(String owner) {
+        return owner.equals(NO_OWNER) ? null : owner;
+    }
+
+    private static String fromOwner(String owner) {
+        return owner == null ? NO_OWNER : owner;
+    }
+
+    /**
+     * Asks all other nodes to reserve a username for this node.
+     * @param username  The username, already reserved on this node.
+     * @return  Returns a future that completes with true if all nodes agreed.
+     */
+    public CompletableFuture<Boolean> claimUser(String username) {
+        return claim("USER " + username);
+    }
+
+    /**
+     * Asks all other nodes to reserve a group name for this node.
+     * @param groupName The group name, already reserved on this node.
+     * @param owner     The username of the owner of the group or null.
+     * @return  Returns a future that completes with true if all nodes agreed.
+     */
+    public CompletableFuture<Boolean> claimGroup(String groupName, String owner) {
+        return claim("GROUP " + fromOwner(owner) + " " + groupName);
+    }
+
+    private CompletableFuture<Boolean> claim(String what) {
+        List<Link> targets = new ArrayList<>(links.values());
+        if (targets.isEmpty()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        long claimId = nextClaimId.incrementAndGet();
+        Claim claim = new Claim(targets);
+        claims.put(claimId, claim);
+        Frame frame = Frame.of("CLAIM " + claimId + " " + what);
+        for (Link link : targets) {
+            link.send(frame);
+        }
+        // A node that does not answer in time counts as a node that does not agree.
+        return claim.result
+                .completeOnTimeout(false, conf.CLUSTER_CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((granted, e) -> claims.remove(claimId));
+    }
+
+    /**
+     * Tells all other nodes that a username is no longer used by this node, either because
+     * the user logged out or because the claim of the username failed.
+     */
+    public void releaseUser(String username) {
+        sendToAll(Frame.of("LEAVE " + username));
+    }
+
+    /**
+     * Tells all other nodes that the claim of a group name failed.
+     */
+    public void releaseGroup(String groupName) {
+        sendToAll(Frame.of("UNGROUP " + groupName));
+    }
+
+    /**
+     * Tells all other nodes how many participants a group has on this node.
+     */
+    public void publishMembers(String groupName, int count) {
+        sendToAll(Frame.of("MEMBERS " + count + " " + groupName));
+    }
+
+    /**
+     * Relays a broadcast to all other nodes, once per node.
+     */
+    public void broadcast(String from, String text) {
+        sendToAll(Frame.of("BCST " + from + " " + text));
+    }
+
+    public void sendPrivate(String toNodeId, String from, String to, String text) {
+        send(toNodeId, "PRIVATE " + from + " " + to + " " + text);
+    }
+
+    public void sendGroupMessage(String toNodeId, String groupName, String from, String text) {
+        send(toNodeId, "GROUPMSG " + from + " " + groupName + "-" + text);
+    }
+
+    public void kick(String toNodeId, String groupName, String username) {
+        send(toNodeId, "KICK " + username + " " + groupName);
+    }
+
+    // Used to send the state of this node to a node that just joined.
+
+    public void sendUser(String toNodeId, String username) {
+        send(toNodeId, "USER " + username);
+    }
+
+    public void sendGroup(String toNodeId, String groupName, String owner) {
+        send(toNodeId, "GROUP " + fromOwner(owner) + " " + groupName);
+    }
+
+    public void sendMembers(String toNodeId, String groupName, int count) {
+        send(toNodeId, "MEMBERS " + count + " " + groupName);
+    }
+
+    private void send(String toNodeId, String line) {
+        Link link = links.get(toNodeId);
+        if (link != null) {
+            link.send(Frame.of(line));
+        }
+    }
+
+    private void sendToAll(Frame frame) {
+        for (Link link : links.values()) {
+            link.send(frame);
+        }
+    }
+
+    /**
+     * @return  Returns the ids of the nodes this node has a link to.
+     */
+    public Set<String> getConnectedNodes() {
+        return links.keySet();
+    }
+
+    /**
+     * A link to another node. Events are queued and written by the writer of the connection,
+     * so a slow node never blocks the clients of this node.
+     */
+    private static class Link {
+        private final String nodeId;
+        private final SocketConnection connection;
+        // Whether this node made the connection.
+        private final boolean outgoing;
+
+        Link(String nodeId, SocketConnection connection, boolean outgoing) {
+            this.nodeId = nodeId;
+            this.connection = connection;
+            this.outgoing = outgoing;
+        }
+
+        void send(String line) {
+            connection.writeLine(line);
+        }
+
+        void send(Frame frame) {
+            connection.writeFrame(frame);
+        }
+    }
+
+    /**
+     * A claim waiting for the votes of the other nodes.
+     */
+    private static class Claim {
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        private final Set<String> waitingFor = ConcurrentHashMap.newKeySet();
+
+        Claim(List<Link> targets) {
+            for (Link link : targets) {
+                waitingFor.add(link.nodeId);
+            }
+        }
+
+        void vote(String voter, boolean granted) {
+            if (!granted) {
+                result.complete(false);
+            } else if (waitingFor.remove(voter) && waitingFor.isEmpty()) {
+                result.complete(true);
+            }
+        }
+    }
+}
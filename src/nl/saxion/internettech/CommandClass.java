@@ -0,0 +1,59 @@
+package nl.saxion.internettech;
+
+/**
+ * The classes of commands that have their own rate limit. Commands that control the connection
+ * (HELO, BINARY, PING, PONG, QUIT, UNSUBSCRIBE, RELIABLE, ACK and COMPRESS) are never limited.
+ */
+public enum CommandClass {
+    // BCST
+    BROADCAST,
+    // PRIVATE
+    PRIVATE,
+    // GROUPMSG
+    GROUP,
+    // NEWGROUP, JOINGROUP, QUITGROUP and KICKUSER
+    GROUP_ADMIN,
+    // ALLCLIENTS, ALLGROUPS, HISTORY, STATS and SUBSCRIBE
+    QUERY,
+    // Everything else
+    CONTROL;
+
+    private static final CommandClass[] BY_MESSAGE_TYPE = new CommandClass[Message.MessageType.values().length];
+    static {
+        for (Message.MessageType type : Message.MessageType.values()) {
+            BY_MESSAGE_TYPE[type.ordinal()] = classify(type);
+        }
+    }
+
+    /**
+     * @param type  The type of a command.
+     * @return  Returns the class the command belongs to.
+     */
+    public static CommandClass of(Message.MessageType type) {
+        return BY_MESSAGE_TYPE[type.ordinal()];
+    }
+
+    private static CommandClass classify(Message.MessageType type) {
+        switch (type) {
+            case BCST:
+                return BROADCAST;
+            case PRIVATE:
+                return PRIVATE;
+            case GROUPMSG:
+                return GROUP;
+            case NEWGROUP:
+            case JOINGROUP:
+            case QUITGROUP:
+            case KICKUSER:
+                return GROUP_ADMIN;
+            case ALLCLIENTS:
+            case ALLGROUPS:
+            case HISTORY:
+            case STATS:
+            case SUBSCRIBE:
+                return QUERY;
+            default:
+                return CONTROL;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package nl.saxion.internettech;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the large messages for clients that asked for it with COMPRESS deflate or COMPRESS fast,
+ * so bulky broadcasts and listings take less bandwidth. A compressed message is sent as the line
+ * Z &lt;data&gt;, where data is the base64 of the raw deflate data (RFC 1951) of the line without its
+ * terminator. Messages shorter than the threshold are sent as they are, no other line starts with "Z ".
+ * <p>
+ * With deflate the connection has a single compression context that is kept between messages, every
+ * message ends with a sync flush. The client inflates the Z lines with a single inflater as they
+ * arrive, text repeated from earlier messages is sent as a reference to it. Because the result depends
+ * on everything sent before, a message is compressed for every recipient and the client must receive
+ * every Z line in order, so deflate is not available when messages can be lost or sent again.
+ * <p>
+ * With fast every message is a complete deflate stream of its own, compressed at the fastest level.
+ * The result only depends on the message, so it is kept with the frame: a broadcast or a listing is
+ * compressed once for all recipients that use fast.
+ */
+public class Compression {
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final int threshold;
+    private final BufferPool buffers;
+    private final boolean direct;
+    private final ServerMetrics metrics;
+
+    /**
+     * @param threshold The length in bytes from which a message is compressed.
+     * @param buffers   The pool the compressed messages of deflate streams are encoded into.
+     * @param direct    Whether frames are written from direct buffers.
+     * @param metrics   Counts the compressed bytes and the time spent compressing.
+     */
+    public Compression(int threshold, BufferPool buffers, boolean direct, ServerMetrics metrics) {
+        this.threshold = threshold;
+        this.buffers = buffers;
+        this.direct = direct;
+        this.metrics = metrics;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Compresses a message with the fast codec. The result is kept with the frame, the other
+     * recipients of the frame get the same result without compressing it again.
+     * @param frame The text frame of the message.
+     * @return  Returns the compressed frame or the frame itself if it is shorter than the threshold
+     *          or does not get shorter. The compressed frame is not pooled.
+     */
+    public Frame compress(Frame frame) {
+        Frame compressed = frame.getCompressed();
+        if (compressed == null) {
+            if (frame.length() < threshold) {
+                compressed = frame;
+            } else {
+                long startNanos = System.nanoTime();
+                Scratch scratch = SCRATCH.get();
+                Deflater deflater = scratch.fast;
+                deflater.reset();
+                deflater.setInput(payload(frame));
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    length += deflater.deflate(scratch.grow(length), length, scratch.bytes.length - length);
+                }
+                compressed = Frame.of(line(scratch.bytes, length));
+                metrics.recordCompressionNanos(System.nanoTime() - startNanos);
+                if (compressed.length() >= frame.length()) {
+                    compressed = frame;
+                }
+            }
+            // Compressing twice when two recipients get here at once is harmless.
+            frame.setCompressed(compressed);
+        }
+        if (compressed == frame) {
+            metrics.recordUncompressed();
+        } else {
+            metrics.recordCompressed(frame.length(), compressed.length());
+        }
+        return compressed;
+    }
+
+    /**
+     * Starts the deflate context of a connection.
+     * @param output    The connection of the client.
+     * @return  Returns the stream the messages of the connection must be written through.
+     */
+    public Stream startStream(ClientConnection output) {
+        return new Stream(output);
+    }
+
+    // The line without its terminator.
+    private static ByteBuffer payload(Frame frame) {
+        return frame.asByteBuffer().limit(frame.length() - 1);
+    }
+
+    private static String line(byte[] data, int length) {
+        byte[] encoded = Base64.getEncoder().encode(Arrays.copyOf(data, length));
+        return "Z " + new String(encoded, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Output buffer and fast deflater, one per thread.
+     */
+    private static final class Scratch {
+        private final Deflater fast = new Deflater(Deflater.BEST_SPEED, true);
+        private byte[] bytes = new byte[4096];
+
+        /**
+         * @return  Returns the buffer, grown if less than a quarter is left after the used bytes.
+         */
+        byte[] grow(int used) {
+            if (bytes.length - used < bytes.length / 4) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * The deflate context of a single connection. A message is compressed and added to the output
+     * under the lock of the stream, so the messages reach the client in the order they were compressed
+     * in. It is written after releasing the lock: the presence flush on the timing wheel writes through
+     * the stream too, and must not wait for a sender that waits for room in the queue of the client.
+     */
+    public final class Stream {
+        // About 256 KB of native memory per connection, released by end().
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final SerialOutput output;
+        private boolean ended = false;
+
+        private Stream(ClientConnection output) {
+            this.output = new SerialOutput(output);
+        }
+
+        /**
+         * Writes a message to the client, compressed if it is not shorter than the threshold.
+         * @param frame     The text frame of the message, possibly shared with other recipients.
+         * @return  Returns the number of bytes written.
+         */
+        public int write(Frame frame) {
+            int written;
+            synchronized (this) {
+                if (ended) {
+                    return 0;
+                }
+                if (frame.length() < threshold) {
+                    metrics.recordUncompressed();
+                    output.add(frame);
+                    written = frame.length();
+                } else {
+                    long startNanos = System.nanoTime();
+                    Scratch scratch = SCRATCH.get();
+                    deflater.setInput(payload(frame));
+                    int length = 0;
+                    // All input has been compressed when the deflater leaves room in the buffer.
+                    do {
+                        length += deflater.deflate(scratch.grow(length), length, scratch.bytes.length - length, Deflater.SYNC_FLUSH);
+                    } while (length == scratch.bytes.length);
+                    Frame compressed = Frame.of(line(scratch.bytes, length), buffers, direct);
+                    metrics.recordCompressionNanos(System.nanoTime() - startNanos);
+                    metrics.recordCompressed(frame.length(), compressed.length());
+                    output.add(compressed);
+                    written = compressed.length();
+                    compressed.release();
+                }
+            }
+            output.flush();
+            return written;
+        }
+
+        /**
+         * Releases the context when the connection is closed, later messages are not written anymore.
+         */
+        public synchronized void end() {
+            if (!ended) {
+                ended = true;
+                deflater.end();
+            }
+        }
+    }
+}
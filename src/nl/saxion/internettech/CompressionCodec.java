@@ -0,0 +1,11 @@
+package nl.saxion.internettech;
+
+/**
+ * The compression codecs a client can choose with the COMPRESS command.
+ */
+public enum CompressionCodec {
+    // Deflate with a context per connection that is kept between messages, the best ratio.
+    DEFLATE,
+    // Deflate at the fastest level of every message on its own, shared by all recipients of a message.
+    FAST
+}
@@ -0,0 +1,32 @@
+package nl.saxion.internettech;
+
+/**
+ * Callbacks used by an event loop to hand the events of a connection to the code that
+ * implements the chat protocol.
+ */
+public interface ConnectionHandler {
+
+    /**
+     * Called once after the connection has been registered with its event loop.
+     */
+    void onConnect();
+
+    /**
+     * Called for every complete line received from the client.
+     * @param line    The received line without line terminator.
+     * @param length  The length of the line in bytes, including the line terminator.
+     */
+    void onLine(String line, int length);
+
+    /**
+     * Called for every frame received from a client that switched to the binary protocol.
+     * @param message   The command of the frame.
+     * @param length    The length of the frame in bytes.
+     */
+    void onMessage(Message message, int length);
+
+    /**
+     * Called once when the connection has been closed, either by the client or the server.
+     */
+    void onDisconnect();
+}
@@ -0,0 +1,227 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single threaded event loop that multiplexes many non-blocking client connections on
+ * one selector. All reads, writes and protocol handling of a connection happen on the loop
+ * that owns it. Other threads hand over work to the loop using {@link #execute(Runnable)}.
+ */
+public class EventLoop implements Runnable {
+
+    // Size of the read buffer shared by all connections of this loop.
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Maximum number of frames written with a single gathering write.
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    // The event loop running on the current thread, if any.
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    private final String name;
+    private final AsyncLogger logger;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+    private final Frame[] writeBatchFrames = new Frame[WRITE_BATCH_SIZE];
+    // Delayed tasks ordered by deadline, only used on the loop thread.
+    private final PriorityQueue<DelayedTask> delayedTasks = new PriorityQueue<>();
+    private Thread thread;
+
+    public EventLoop(String name, AsyncLogger logger) throws IOException {
+        this.name = name;
+        this.logger = logger;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop on its own thread.
+     */
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public AsyncLogger getLogger() {
+        return logger;
+    }
+
+    /**
+     * @return  Returns the array used to collect the buffers of a gathering write. Shared by
+     *          all connections of this loop, so it may only be used on the loop thread.
+     */
+    ByteBuffer[] getWriteBatch() {
+        return writeBatch;
+    }
+
+    /**
+     * @return  Returns the array used to collect the frames of the buffers of a gathering write,
+     *          at the same index as their buffer. Only used on the loop thread.
+     */
+    Frame[] getWriteBatchFrames() {
+        return writeBatchFrames;
+    }
+
+    /**
+     * @return  Returns true if the calling thread is the thread of this event loop.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return  Returns true if the calling thread is the thread of any event loop.
+     */
+    public static boolean inAnyEventLoop() {
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Runs a task on the event loop. Safe to call from any thread.
+     * @param task  The task to be run.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on the event loop after a delay. The delay is rounded up to the resolution
+     * of the selector (one millisecond). Safe to call from any thread.
+     * @param task          The task to be run.
+     * @param delayNanos    The minimum time before the task is run.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        DelayedTask delayedTask = new DelayedTask(task, System.nanoTime() + delayNanos);
+        if (inEventLoop()) {
+            delayedTasks.add(delayedTask);
+        } else {
+            execute(() -> delayedTasks.add(delayedTask));
+        }
+    }
+
+    /**
+     * Hands a newly accepted connection over to this loop.
+     * @param connection    The connection to be registered.
+     */
+    public void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                connection.onRegistered(key);
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Server Exception: " + e.getMessage());
+                connection.closeNow();
+            }
+        });
+    }
+
+    public void run() {
+        CURRENT.set(this);
+        while (true) {
+            try {
+                wakeupPending.set(false);
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (delayedTasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    long waitNanos = delayedTasks.peek().deadline - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, (waitNanos + 999_999) / 1_000_000));
+                    }
+                }
+                processSelectedKeys();
+                runTasks();
+                runDelayedTasks();
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Event loop exception: " + e.getMessage());
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            if (!key.isValid()) {
+                connection.closeNow();
+                continue;
+            }
+            try {
+                if (key.isWritable()) {
+                    connection.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                // A misbehaving connection must never take down the other connections of this loop.
+                logger.log(LogLevel.ERROR, "Server Exception: " + e.getMessage());
+                connection.closeNow();
+            }
+        }
+    }
+
+    private void read(NioConnection connection) throws IOException {
+        readBuffer.clear();
+        int read = connection.getChannel().read(readBuffer);
+        if (read < 0) {
+            // End of stream, the client closed the connection.
+            connection.closeNow();
+            return;
+        }
+        readBuffer.flip();
+        // Ignore everything the client sent after the connection has been closed (e.g. after QUIT).
+        connection.getDecoder().decode(readBuffer, connection.getHandler(), connection::isClosing);
+    }
+
+    private void runDelayedTasks() {
+        long now = System.nanoTime();
+        while (!delayedTasks.isEmpty() && delayedTasks.peek().deadline - now <= 0) {
+            tasks.add(delayedTasks.poll().task);
+        }
+        runTasks();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(LogLevel.ERROR, "Event loop exception: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class DelayedTask implements Comparable<DelayedTask> {
+        final Runnable task;
+        final long deadline;
+
+        DelayedTask(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(DelayedTask other) {
+            return Long.compare(deadline, other.deadline);
+        }
+    }
+}
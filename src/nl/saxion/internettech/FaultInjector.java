@@ -0,0 +1,279 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+
+/**
+ * Injects faults for the bad server modes: messages to a client are dropped, corrupted, delayed,
+ * split in two writes or sent after the next message, and clients are disconnected after a while.
+ * All timers run on the timing wheel of the server, no thread is started per client or per delay.
+ * <p>
+ * Every connection gets its own random generator, split from a single generator in the order the
+ * clients connect. With a fixed seed the faults of a client therefore only depend on the order of
+ * the connections and the messages of that client, so a load test can be repeated with the same faults.
+ */
+public class FaultInjector {
+
+    private final ServerConfiguration conf;
+    private final TimingWheel timer;
+    private final AsyncLogger logger;
+    private final ServerMetrics metrics;
+    private final SplittableRandom random;
+
+    public FaultInjector(ServerConfiguration conf, TimingWheel timer, AsyncLogger logger, ServerMetrics metrics) {
+        this.conf = conf;
+        this.timer = timer;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.random = conf.getFaultSeed() != null ? new SplittableRandom(conf.getFaultSeed()) : new SplittableRandom();
+    }
+
+    /**
+     * Creates the random generator for a new connection.
+     */
+    private synchronized SplittableRandom split() {
+        return random.split();
+    }
+
+    /**
+     * Wraps the connection of a new client in a connection that injects faults in the messages
+     * sent to the client, if any message faults are configured.
+     * @param connection    The connection of the client.
+     * @return  Returns the connection to write to.
+     */
+    public ClientConnection wrap(ClientConnection connection) {
+        if (!conf.doInjectMessageFaults()) {
+            return connection;
+        }
+        return new FaultyConnection(connection, split());
+    }
+
+    /**
+     * Decides whether a new client will lose its connection and if so, schedules the disconnect.
+     * @param disconnect    Disconnects the client, runs on the timing wheel.
+     */
+    public void scheduleDisconnect(Runnable disconnect) {
+        if (conf.getDisconnectRate() <= 0) {
+            return;
+        }
+        SplittableRandom connectionRandom = split();
+        if (connectionRandom.nextDouble() < conf.getDisconnectRate()) {
+            long delay = connectionRandom.nextLong(conf.FAULT_DISCONNECT_MIN_MS, conf.FAULT_DISCONNECT_MAX_MS + 1);
+            timer.schedule(disconnect, delay);
+        }
+    }
+
+    /**
+     * This methods implements a (naive) simulation of a corrupt message by replacing
+     * some charaters at random indexes with the charater X.
+     * @param message   The message to be corrupted.
+     * @param random    The random generator of the connection.
+     * @return  Returns the message with some charaters replaced with X's.
+     */
+    private static String corrupt(String message, SplittableRandom random) {
+        int x = random.nextInt(4);
+        char[] messageChars =  message.toCharArray();
+
+        while (x < messageChars.length) {
+            messageChars[x] = 'X';
+            x = x + random.nextInt(10);
+        }
+
+        return new String(messageChars);
+    }
+
+    /**
+     * A frame that is written once the time it is due has come.
+     */
+    private static final class DelayedFrame {
+        final Frame frame;
+        final long due;
+
+        DelayedFrame(Frame frame, long due) {
+            this.frame = frame;
+            this.due = due;
+        }
+    }
+
+    /**
+     * Injects faults in the frames written to a connection. Delayed frames keep their order, a
+     * frame is only written when all frames before it have been written. Senders of different
+     * threads synchronize on the connection, which is fine for a simulation. Frames that are
+     * kept for later are retained until they have been passed on to the connection. The frames
+     * are passed on after releasing the lock, the timing wheel never waits for a sender that
+     * waits for room in the queue of the client.
+     */
+    private class FaultyConnection implements ClientConnection {
+
+        private final ClientConnection connection;
+        private final SerialOutput output;
+        private final SplittableRandom random;
+        // Frames waiting for their due time, in the order they were written.
+        private final ArrayDeque<DelayedFrame> delayed = new ArrayDeque<>();
+        private boolean drainScheduled = false;
+        // The frame that is sent after the next frame, to swap the order of two messages.
+        private Frame heldBack;
+        private TimingWheel.Timeout heldBackTimeout;
+        // Set after the frame that switches the client to binary, the frames are split in their binary encoding.
+        private boolean binary = false;
+        private boolean closeWhenDrained = false;
+
+        FaultyConnection(ClientConnection connection, SplittableRandom random) {
+            this.connection = connection;
+            this.output = new SerialOutput(connection);
+            this.random = random;
+        }
+
+        @Override
+        public boolean writeFrame(Frame frame) {
+            synchronized (this) {
+                inject(frame);
+            }
+            return output.flush();
+        }
+
+        private void inject(Frame frame) {
+            if (frame.isSwitchToBinary()) {
+                // Never tamper with the switch to the binary protocol, not even by swapping it with another frame.
+                releaseHeldBack();
+                enqueue(frame, conf.getLatencyMillis());
+                binary = true;
+                return;
+            }
+            if (chance(conf.getDropRate())) {
+                metrics.recordDroppedPacket();
+                if (logger.isEnabled(LogLevel.WARN)) {
+                    logger.log(LogLevel.WARN, "[DROPPED] " + frame.getLine());
+                }
+                // Lost on purpose.
+                return;
+            }
+            if (frame.getLine() != null && chance(conf.getCorruptRate())) {
+                // The shared frame can't be corrupted, the corrupt message gets its own frame.
+                String corrupted = corrupt(frame.getLine(), random);
+                frame = Frame.of(corrupted);
+                metrics.recordCorruptedPacket();
+                if (logger.isEnabled(LogLevel.WARN)) {
+                    logger.log(LogLevel.WARN, "[CORRUPT] " + corrupted);
+                }
+            }
+            if (heldBack == null && chance(conf.getReorderRate())) {
+                // Send it after the next frame, or after a while if no other frame is sent.
+                frame.retain();
+                heldBack = frame;
+                heldBackTimeout = timer.schedule(this::releaseHeldBackLater, conf.FAULT_REORDER_TIMEOUT_MS);
+                metrics.recordReorderedPacket();
+                return;
+            }
+
+            Frame encoded = binary ? frame.toBinary() : frame;
+            if (encoded.length() > 1 && chance(conf.getPartialWriteRate())) {
+                // Write the second part later, so the client receives the message in two reads.
+                Frame[] parts = encoded.split(1 + random.nextInt(encoded.length() - 1));
+                enqueue(parts[0], conf.getLatencyMillis());
+                enqueue(parts[1], conf.getLatencyMillis() + conf.FAULT_PARTIAL_WRITE_DELAY_MS);
+                metrics.recordPartialWrite();
+            } else {
+                enqueue(frame, conf.getLatencyMillis());
+            }
+            releaseHeldBack();
+        }
+
+        private boolean chance(double rate) {
+            return rate > 0 && random.nextDouble() < rate;
+        }
+
+        private void releaseHeldBack() {
+            if (heldBack != null) {
+                heldBackTimeout.cancel();
+                Frame frame = heldBack;
+                heldBack = null;
+                enqueue(frame, conf.getLatencyMillis());
+                frame.release();
+            }
+        }
+
+        private void releaseHeldBackLater() {
+            synchronized (this) {
+                releaseHeldBack();
+                closeIfDrained();
+            }
+            output.flush();
+        }
+
+        /**
+         * Passes the frame on when it is due and all frames before it have been passed on.
+         */
+        private void enqueue(Frame frame, long delay) {
+            if (delay <= 0 && delayed.isEmpty()) {
+                output.add(frame);
+                return;
+            }
+            frame.retain();
+            delayed.add(new DelayedFrame(frame, System.nanoTime() + delay * 1_000_000L));
+            if (!drainScheduled) {
+                drainScheduled = true;
+                timer.schedule(this::drain, delay);
+            }
+        }
+
+        private void drain() {
+            synchronized (this) {
+                drainScheduled = false;
+                long now = System.nanoTime();
+                DelayedFrame next;
+                while ((next = delayed.peek()) != null && next.due - now <= 0) {
+                    Frame frame = delayed.poll().frame;
+                    output.add(frame);
+                    frame.release();
+                }
+                if (next != null) {
+                    drainScheduled = true;
+                    timer.schedule(this::drain, Math.max(1, (next.due - now) / 1_000_000L));
+                }
+                closeIfDrained();
+            }
+            output.flush();
+        }
+
+        private void closeIfDrained() {
+            if (closeWhenDrained && delayed.isEmpty() && heldBack == null) {
+                closeWhenDrained = false;
+                // After the frames that have been passed on but not written yet.
+                output.close();
+            }
+        }
+
+        @Override
+        public void switchToBinary() {
+            connection.switchToBinary();
+        }
+
+        @Override
+        public void pauseReads(long nanos) {
+            connection.pauseReads(nanos);
+        }
+
+        @Override
+        public synchronized int getQueuedFrames() {
+            return connection.getQueuedFrames() + output.size() + delayed.size() + (heldBack == null ? 0 : 1);
+        }
+
+        /**
+         * Closes the connection once the delayed frames have been written.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                closeWhenDrained = true;
+                closeIfDrained();
+            }
+            output.flush();
+        }
+
+        @Override
+        public String toString() {
+            return connection.toString();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package nl.saxion.internettech;
+
+/**
+ * When the writer of a connection writes the frames it has collected to the socket. All
+ * frames that are queued when the writer runs are always combined into a single write.
+ */
+public enum FlushPolicy {
+    // Write as soon as the outbound queue is empty.
+    IMMEDIATE,
+    // Write when the write buffer (flush size) is full, or when no new frame arrived within the flush delay.
+    SIZE,
+    // Write when the flush delay has passed since the first collected frame.
+    DEADLINE
+}
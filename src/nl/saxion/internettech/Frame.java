@@ -0,0 +1,312 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.zip.CRC32C;
+
+/**
+ * A message that has been encoded into the bytes that go on the wire, including the line
+ * terminator. Frames are immutable, so a single frame can be queued for many clients at
+ * once (e.g. a broadcast) without copying or encoding the message again. Clients that use
+ * the binary protocol get the binary encoding of the frame, which is also created only once.
+ * <p>
+ * A frame can be encoded into a buffer of a {@link BufferPool}. Such a frame counts its
+ * references: the creator holds the first reference and every queue or delayed write that keeps
+ * the frame after {@link ClientConnection#writeFrame(Frame)} returns takes one with {@link #retain()}.
+ * Whoever is done with the frame calls {@link #release()}, the last release returns the buffer
+ * to the pool. For other frames retain and release do nothing.
+ */
+public final class Frame {
+
+    private static final AtomicIntegerFieldUpdater<Frame> REFERENCES = AtomicIntegerFieldUpdater.newUpdater(Frame.class, "references");
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    // The encoded frame between position 0 and the limit, never changed after the frame has been created.
+    private final ByteBuffer bytes;
+    private final int length;
+    // The line of a text frame, null for a binary frame.
+    private final String line;
+    private final boolean switchToBinary;
+    // Created by the first writer that needs it, creating it twice is harmless.
+    private volatile Frame binary;
+    // The frame for clients that use the fast compression codec, the frame itself if it is sent uncompressed.
+    private volatile Frame compressed;
+    // The pool the buffer belongs to, null if the buffer is not pooled.
+    private final BufferPool pool;
+    private volatile int references = 1;
+    // Reports the frame if it is never released, null unless leaks are detected.
+    private final BufferPool.Leak leak;
+
+    private Frame(byte[] bytes, String line, boolean switchToBinary) {
+        this.bytes = ByteBuffer.wrap(bytes);
+        this.length = bytes.length;
+        this.line = line;
+        this.switchToBinary = switchToBinary;
+        this.pool = null;
+        this.leak = null;
+    }
+
+    private Frame(ByteBuffer bytes, String line, BufferPool pool) {
+        this.bytes = bytes;
+        this.length = bytes.limit();
+        this.line = line;
+        this.switchToBinary = false;
+        this.pool = pool;
+        this.leak = pool.track(this, bytes);
+    }
+
+    /**
+     * Encodes a line of text (without line terminator) into a frame.
+     * @param line  The line to be encoded.
+     * @return  Returns the UTF-8 encoded line followed by a newline.
+     */
+    public static Frame of(String line) {
+        return new Frame(encode(line), line, false);
+    }
+
+    /**
+     * Encodes text into a frame without replacing the newlines in it, for the replies that have
+     * several lines in the original protocol, like the complete ALLGROUPS listing.
+     * @param text  The text to be encoded, a newline is added after its last line.
+     * @return  Returns the UTF-8 encoded text followed by a newline.
+     */
+    public static Frame ofLines(String text) {
+        return new Frame((text + "\n").getBytes(StandardCharsets.UTF_8), text, false);
+    }
+
+    /**
+     * Encodes a line of text (without line terminator) into a buffer of the pool. The caller
+     * holds the only reference and must release it once the frame has been written to all recipients.
+     * @param line      The line to be encoded.
+     * @param pool      The pool to take the buffer from.
+     * @param direct    Whether the frame is written from a direct buffer.
+     * @return  Returns the UTF-8 encoded line followed by a newline.
+     */
+    public static Frame of(String line, BufferPool pool, boolean direct) {
+        // Payloads of binary clients may contain newlines, which must not split the line for text clients.
+        String text = line.indexOf('\n') < 0 ? line : line.replace('\n', ' ');
+        Scratch scratch = SCRATCH.get();
+        int length = scratch.encode(text);
+        ByteBuffer buffer = pool.allocate(length, direct);
+        buffer.put(0, scratch.bytes, 0, length);
+        return new Frame(buffer, line, pool);
+    }
+
+    /**
+     * Prefixes a text frame with a sequence number and a checksum, for a client in reliable mode:
+     * SEQ &lt;sequence&gt; &lt;checksum&gt; &lt;line&gt;. The checksum is the CRC32C of the sequence
+     * number as 8 big-endian bytes followed by the encoded line without its terminator, as 8 hex
+     * digits. The bytes of the line are copied from the frame, the line is not encoded again.
+     * @param sequence  The sequence number of the message.
+     * @param payload   The text frame of the message, possibly shared with other recipients.
+     * @param pool      The pool to take the buffer from.
+     * @param direct    Whether the frame is written from a direct buffer.
+     * @return  Returns the sequenced frame, the caller holds the only reference.
+     */
+    public static Frame sequenced(long sequence, Frame payload, BufferPool pool, boolean direct) {
+        Scratch scratch = SCRATCH.get();
+        CRC32C checksum = scratch.checksum;
+        checksum.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            checksum.update((int) (sequence >>> shift));
+        }
+        int payloadLength = payload.length - 1;
+        if (payload.bytes.hasArray()) {
+            checksum.update(payload.bytes.array(), payload.bytes.arrayOffset(), payloadLength);
+        } else {
+            checksum.update(payload.bytes.duplicate().position(0).limit(payloadLength));
+        }
+
+        String header = "SEQ " + sequence + " " + hex(checksum.getValue()) + " ";
+        ByteBuffer buffer = pool.allocate(header.length() + payload.length, direct);
+        for (int i = 0; i < header.length(); i++) {
+            buffer.put(i, (byte) header.charAt(i));
+        }
+        buffer.put(header.length(), payload.bytes, 0, payload.length);
+        return new Frame(buffer, header + payload.line, pool);
+    }
+
+    private static String hex(long value) {
+        char[] digits = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            digits[i] = Character.forDigit((int) (value & 0xF), 16);
+            value >>>= 4;
+        }
+        return new String(digits);
+    }
+
+    /**
+     * Encodes lines for pooled frames, one per thread. The encoder works on arrays that are kept
+     * between frames, so encoding a frame allocates nothing and still uses the fast ASCII path of the JDK.
+     */
+    private static final class Scratch {
+        // Unmappable chars become '?', just like with String.getBytes.
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private char[] chars = new char[0];
+        private CharBuffer charBuffer;
+        private byte[] bytes = new byte[0];
+        private ByteBuffer byteBuffer;
+        private final CRC32C checksum = new CRC32C();
+
+        /**
+         * @return  Returns the number of bytes of the encoded text and newline in the bytes array.
+         */
+        int encode(String text) {
+            int count = text.length();
+            if (chars.length < count) {
+                chars = new char[Math.max(count, 1024)];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            // A char takes at most 3 bytes in UTF-8, a surrogate pair 4 bytes for 2 chars.
+            if (bytes.length < count * 3 + 1) {
+                bytes = new byte[Math.max(count * 3 + 1, 3 * 1024)];
+                byteBuffer = ByteBuffer.wrap(bytes);
+            }
+            text.getChars(0, count, chars, 0);
+            charBuffer.clear().limit(count);
+            byteBuffer.clear();
+            encoder.reset();
+            encoder.encode(charBuffer, byteBuffer, true);
+            encoder.flush(byteBuffer);
+            byteBuffer.put((byte) '\n');
+            return byteBuffer.position();
+        }
+    }
+
+    private static byte[] encode(String line) {
+        // Payloads of binary clients may contain newlines, which must not split the line for text clients.
+        String text = line.indexOf('\n') < 0 ? line : line.replace('\n', ' ');
+        return (text + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes the last line sent to a client before it switches to the binary protocol. The
+     * writer of the connection sends all frames queued after this frame in binary.
+     * @param line  The line to be encoded.
+     * @return  Returns the text frame that marks the switch.
+     */
+    public static Frame switchingToBinary(String line) {
+        return new Frame(encode(line), line, true);
+    }
+
+    public boolean isSwitchToBinary() {
+        return switchToBinary;
+    }
+
+    /**
+     * @return  Returns the line of a text frame or null for a binary frame.
+     */
+    public String getLine() {
+        return line;
+    }
+
+    /**
+     * @return  Returns the frame encoded for the binary protocol.
+     */
+    public Frame toBinary() {
+        if (line == null) {
+            return this;
+        }
+        Frame frame = binary;
+        if (frame == null) {
+            frame = new Frame(BinaryCodec.encodeLine(line), null, false);
+            binary = frame;
+        }
+        return frame;
+    }
+
+    /**
+     * @return  Returns the frame as it is sent to clients that use the fast compression codec,
+     *          or null if it has not been compressed yet (see {@link Compression#compress(Frame)}).
+     */
+    public Frame getCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(Frame compressed) {
+        this.compressed = compressed;
+    }
+
+    /**
+     * Splits the encoded frame in two frames with the raw bytes before and after the position,
+     * used to simulate a message that arrives in two parts.
+     * @param position  The position to split at, between 1 and the length of the frame.
+     * @return  Returns the two parts, both are written as they are in both protocols.
+     */
+    public Frame[] split(int position) {
+        byte[] first = new byte[position];
+        byte[] second = new byte[length - position];
+        bytes.get(0, first);
+        bytes.get(position, second);
+        return new Frame[] {
+                new Frame(first, null, false),
+                new Frame(second, null, false)
+        };
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return  Returns a new read-only buffer over the frame. Every recipient needs its own
+     *          buffer because the position of a buffer is changed by writing it.
+     */
+    public ByteBuffer asByteBuffer() {
+        return bytes.asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        if (bytes.hasArray()) {
+            os.write(bytes.array(), bytes.arrayOffset(), length);
+        } else {
+            byte[] copy = new byte[length];
+            bytes.get(0, copy);
+            os.write(copy);
+        }
+    }
+
+    /**
+     * Copies the frame into a buffer.
+     * @param buffer    The buffer to copy to, must have room for the whole frame.
+     * @param offset    The position in the buffer of the first byte of the frame.
+     */
+    public void copyTo(byte[] buffer, int offset) {
+        bytes.get(0, buffer, offset, length);
+    }
+
+    /**
+     * Takes another reference to a pooled frame, the frame stays valid until that reference is released.
+     */
+    public void retain() {
+        if (pool != null) {
+            REFERENCES.incrementAndGet(this);
+        }
+    }
+
+    /**
+     * Releases a reference to a pooled frame. The frame must not be used after its last reference has been released.
+     */
+    public void release() {
+        if (pool == null) {
+            return;
+        }
+        int left = REFERENCES.decrementAndGet(this);
+        if (left == 0) {
+            if (leak != null) {
+                leak.close();
+            }
+            pool.release(bytes);
+        } else if (left < 0) {
+            throw new IllegalStateException("Frame released more often than it was retained: " + line);
+        }
+    }
+}
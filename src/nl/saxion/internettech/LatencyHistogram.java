@@ -0,0 +1,202 @@
+package nl.saxion.internettech;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size histogram with log-linear buckets in the style of HdrHistogram. Values below
+ * 128 are counted exactly, larger values with a relative error of at most 1/64 (about 1.6%).
+ * Recording is lock-free and safe to do from many threads at once. The histogram is striped:
+ * a thread records into the stripe its id maps to, so threads recording at the same time rarely
+ * touch the same buckets, totals or maximum. The stripes are merged when the histogram is read.
+ */
+public class LatencyHistogram {
+
+    // Number of bits of a value that are kept, the remaining low bits are rounded off.
+    private static final int PRECISION_BITS = 7;
+    private static final int EXACT_BUCKETS = 1 << PRECISION_BITS;
+    private static final int HALF_BUCKETS = EXACT_BUCKETS >> 1;
+    private static final int BUCKET_COUNT = EXACT_BUCKETS + (64 - PRECISION_BITS) * HALF_BUCKETS;
+    // A power of two of at least the number of processors, at most 8 as a stripe takes about 30 KB.
+    private static final int STRIPE_COUNT = Math.min(8,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+    // A stripe is created by the first thread that records into it.
+    private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<>(STRIPE_COUNT);
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     * @param value The value to be recorded, e.g. a latency in microseconds.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        stripe().record(indexOf(value), value);
+    }
+
+    private Stripe stripe() {
+        long id = Thread.currentThread().getId();
+        int index = (int) (id ^ (id >>> 16)) & (STRIPE_COUNT - 1);
+        Stripe stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new Stripe());
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    private static int indexOf(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits <= PRECISION_BITS) {
+            return (int) value;
+        }
+        int shift = bits - PRECISION_BITS;
+        int subBucket = (int) (value >>> shift) - HALF_BUCKETS;
+        return EXACT_BUCKETS + (shift - 1) * HALF_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return  Returns the highest value that ends up in the bucket with the given index.
+     */
+    private static long highestValueOf(int index) {
+        if (index < EXACT_BUCKETS) {
+            return index;
+        }
+        int shift = (index - EXACT_BUCKETS) / HALF_BUCKETS + 1;
+        long subBucket = (index - EXACT_BUCKETS) % HALF_BUCKETS + HALF_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public long getTotalCount() {
+        long count = 0;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                count += stripe.totalCount.get();
+            }
+        }
+        return count;
+    }
+
+    public long getMaxValue() {
+        long max = 0;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                max = Math.max(max, stripe.maxValue.get());
+            }
+        }
+        return max;
+    }
+
+    public double getMean() {
+        long count = 0;
+        long value = 0;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                count += stripe.totalCount.get();
+                value += stripe.totalValue.get();
+            }
+        }
+        return count == 0 ? 0 : (double) value / count;
+    }
+
+    /**
+     * @param percentile    The percentile, between 0 and 100.
+     * @return  Returns the value below which the given percentage of the recorded values fall.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] counts = counts();
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long max = getMaxValue();
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds all values recorded by another histogram to this histogram.
+     * @param other The histogram to be added.
+     */
+    public void add(LatencyHistogram other) {
+        Stripe stripe = stripe();
+        long[] counts = other.counts();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] != 0) {
+                stripe.counts.addAndGet(i, counts[i]);
+            }
+        }
+        long count = 0;
+        long value = 0;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            Stripe otherStripe = other.stripes.get(i);
+            if (otherStripe != null) {
+                count += otherStripe.totalCount.get();
+                value += otherStripe.totalValue.get();
+            }
+        }
+        stripe.add(count, value, other.getMaxValue());
+    }
+
+    // The counts of all stripes merged.
+    private long[] counts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            Stripe stripe = stripes.get(i);
+            if (stripe != null) {
+                for (int j = 0; j < BUCKET_COUNT; j++) {
+                    counts[j] += stripe.counts.get(j);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The buckets and totals of the threads that map to the same stripe.
+     */
+    private static final class Stripe {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong totalCount = new AtomicLong();
+        private final AtomicLong totalValue = new AtomicLong();
+        private final AtomicLong maxValue = new AtomicLong();
+
+        void record(int index, long value) {
+            counts.incrementAndGet(index);
+            add(1, value, value);
+        }
+
+        void add(long count, long value, long max) {
+            totalCount.addAndGet(count);
+            totalValue.addAndGet(value);
+            long current = maxValue.get();
+            while (max > current && !maxValue.compareAndSet(current, max)) {
+                current = maxValue.get();
+            }
+        }
+    }
+
+    /**
+     * @return  Returns a one line summary with the count, mean and the most used percentiles.
+     */
+    public String summary() {
+        return String.format("count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                getTotalCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getValueAtPercentile(99.9), getMaxValue());
+    }
+}
@@ -0,0 +1,119 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Incrementally splits the bytes received from a non-blocking channel into lines. A read
+ * can end halfway a line, so the bytes after the last line terminator are kept until the
+ * rest of the line arrives. Lines are terminated by \n, a preceding \r is stripped.
+ */
+public class LineDecoder {
+
+    // Maximum length of a single line, protects the server against clients that never send a newline.
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Bytes of a line that has not been terminated yet.
+    private byte[] pending = EMPTY;
+    private int pendingLength = 0;
+    // Set when the connection switched to another protocol, the bytes after the current line are left in the buffer.
+    private boolean stopped = false;
+    // Set when decoding has to wait, only the current decode returns after the current line.
+    private boolean paused = false;
+
+    /**
+     * Decodes all complete lines in the buffer and passes them to the consumer. The buffer
+     * must be backed by an array. Remaining bytes of an incomplete line are stored until the
+     * next call.
+     * @param buffer    The buffer to read from, positioned at the first unread byte.
+     * @param consumer  Receives every complete line and its length in bytes, including the terminator.
+     * @throws IOException  When a line exceeds the maximum line length.
+     */
+    public void decode(ByteBuffer buffer, ObjIntConsumer<String> consumer) throws IOException {
+        if (stopped) {
+            return;
+        }
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        int start = offset + buffer.position();
+        int end = offset + buffer.limit();
+
+        for (int i = start; i < end; i++) {
+            if (array[i] == '\n') {
+                String line;
+                int length;
+                if (pendingLength == 0) {
+                    line = toLine(array, start, i - start);
+                    length = i - start + 1;
+                } else {
+                    append(array, start, i - start);
+                    line = toLine(pending, 0, pendingLength);
+                    length = pendingLength + 1;
+                    releasePending();
+                }
+                start = i + 1;
+                consumer.accept(line, length);
+                if (stopped || paused) {
+                    paused = false;
+                    buffer.position(start - offset);
+                    return;
+                }
+            }
+        }
+
+        // Keep the start of an incomplete line.
+        append(array, start, end - start);
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Stops decoding lines. Called while a line is handled, decode then returns right after
+     * that line and leaves the rest of the buffer for the decoder of the other protocol.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Called while a line is handled, decode then returns right after that line and leaves the
+     * rest of the buffer. The next call decodes lines as usual.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    private void append(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (pendingLength + length > MAX_LINE_LENGTH) {
+            throw new IOException("Line exceeds " + MAX_LINE_LENGTH + " bytes");
+        }
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + length, pending.length * 2));
+        }
+        System.arraycopy(bytes, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private void releasePending() {
+        pendingLength = 0;
+        // Don't let idle connections hold on to the buffer of a single large line.
+        if (pending.length > 1024) {
+            pending = EMPTY;
+        }
+    }
+
+    private static String toLine(byte[] bytes, int offset, int length) {
+        // Strip the \r of a \r\n line terminator.
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,186 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A listing of the server, like the connected users or the groups, that is served from a
+ * snapshot. The snapshot is only rebuilt when the listing is requested after it changed, so many
+ * clients asking for the same listing share the encoded frames of a single snapshot.
+ * <p>
+ * Every change of the listed items must be reported with {@link #changed()}. The version is
+ * read before the items are collected, so a change during a rebuild causes another rebuild on
+ * the next request.
+ * <p>
+ * The complete listing keeps the format of the original server: the summaries of the items are
+ * appended to each other and a summary may end with a newline, so the listing can span several lines.
+ */
+public class Listing {
+
+    /**
+     * Collects the current items of the listing.
+     */
+    public interface Source {
+        void collect(Consumer<Item> items);
+    }
+
+    /**
+     * An item of the listing.
+     */
+    public static final class Item {
+        private final String key;
+        private final String summary;
+        private final String line;
+
+        /**
+         * @param key       The name the items are sorted and filtered on, case insensitive, or null
+         *                  if the item is only in the complete listing and not in the pages.
+         * @param summary   The text of the item in the complete listing.
+         * @param line      The line sent for the item in a page of the listing, null without a key.
+         */
+        public Item(String key, String summary, String line) {
+            this.key = key == null ? null : key.toLowerCase(Locale.ROOT);
+            this.summary = summary;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The listing at a certain version.
+     */
+    public static final class Snapshot {
+        private final long version;
+        // Sorted on key.
+        private final String[] keys;
+        private final Frame[] lines;
+        private final Frame all;
+
+        private Snapshot(long version, String[] keys, Frame[] lines, Frame all) {
+            this.version = version;
+            this.keys = keys;
+            this.lines = lines;
+            this.all = all;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        /**
+         * @return  Returns the complete listing, the text of the frame may have several lines.
+         */
+        public Frame getAll() {
+            return all;
+        }
+
+        /**
+         * @return  Returns the index of the first item with a key starting with the prefix.
+         */
+        public int first(String prefix) {
+            return lowerBound(prefix.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * @return  Returns the index after the last item with a key starting with the prefix.
+         */
+        public int end(String prefix) {
+            return prefix.isEmpty() ? keys.length : lowerBound(prefix.toLowerCase(Locale.ROOT) + Character.MAX_VALUE);
+        }
+
+        /**
+         * @param index The index of the item.
+         * @return  Returns the encoded line of the item.
+         */
+        public Frame getLine(int index) {
+            return lines[index];
+        }
+
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle].compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final Source source;
+    // Text the complete listing starts with.
+    private final String allPrefix;
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param source    Collects the items when the snapshot is rebuilt.
+     * @param allPrefix The start of the line with the complete listing.
+     */
+    public Listing(Source source, String allPrefix) {
+        this.source = source;
+        this.allPrefix = allPrefix;
+    }
+
+    /**
+     * Marks the current snapshot as outdated.
+     */
+    public void changed() {
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return  Returns the snapshot of the current version, rebuilding it if the listing changed.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current != null && current.version == version.get()) {
+            return current;
+        }
+        // Only one thread rebuilds, the others wait for its result instead of building their own.
+        synchronized (this) {
+            long currentVersion = version.get();
+            current = snapshot;
+            if (current == null || current.version != currentVersion) {
+                current = build(currentVersion);
+                snapshot = current;
+            }
+            return current;
+        }
+    }
+
+    private Snapshot build(long version) {
+        List<Item> items = new ArrayList<>();
+        source.collect(items::add);
+        // The items without a key come last.
+        items.sort(Comparator.comparing(item -> item.key, Comparator.nullsLast(Comparator.naturalOrder())));
+
+        int keyed = 0;
+        while (keyed < items.size() && items.get(keyed).key != null) {
+            keyed++;
+        }
+        String[] keys = new String[keyed];
+        Frame[] lines = new Frame[keyed];
+        StringBuilder all = new StringBuilder(allPrefix);
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            if (i < keyed) {
+                keys[i] = item.key;
+                lines[i] = Frame.of(item.line);
+            }
+            all.append(item.summary);
+        }
+        return new Snapshot(version, keys, lines, Frame.ofLines(all.toString()));
+    }
+}
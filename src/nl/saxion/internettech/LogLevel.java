@@ -0,0 +1,17 @@
+package nl.saxion.internettech;
+
+/**
+ * Log levels of the server log, from most to least verbose.
+ */
+public enum LogLevel {
+    // Traces of every incoming and outgoing message.
+    DEBUG,
+    // Connection events, e.g. clients connecting and dropping.
+    INFO,
+    // Unexpected client behaviour and simulated failures.
+    WARN,
+    // Server side errors.
+    ERROR,
+    // Nothing is logged.
+    OFF
+}
@@ -1,5 +1,8 @@
 package nl.saxion.internettech;
 
+import java.util.Arrays;
+import java.util.Locale;
+
 public class Main {
 
     public static void main(String[] args) {
@@ -8,7 +11,59 @@ public class Main {
         System.out.println("\t--bad-server-drop-msg: starts a server instance that drops packets.");
         System.out.println("\t--bad-server-corrupt: starts a server instance that corrupts packets.");
         System.out.println("\t--bad-server-drop-client: starts a server instance that drops client, packets and corrupts packets.");
+        System.out.println("\t--fault-drop=<rate>: probability that a message is dropped (--bad-server-drop-msg: 0.17).");
+        System.out.println("\t--fault-corrupt=<rate>: probability that a message is corrupted (--bad-server-corrupt: 0.25).");
+        System.out.println("\t--fault-disconnect=<rate>: probability that a client is dropped after 10 to 20 seconds (--bad-server-drop-client: 1).");
+        System.out.println("\t--fault-latency=<ms>: delay every message to the clients.");
+        System.out.println("\t--fault-partial=<rate>: probability that a message is written in two parts.");
+        System.out.println("\t--fault-reorder=<rate>: probability that a message is sent after the next message.");
+        System.out.println("\t--fault-seed=<n>: seed of the injected faults, to repeat a test with the same faults.");
         System.out.println("\t--no-colors: log bedug messages without colors in the console.");
+        System.out.println("\t--log-level=<debug|info|warn|error|off>: lowest level that is logged, debug logs every message (default: debug).");
+        System.out.println("\t--trace-sample=<n>: only log one in every n message traces (default: 1).");
+        System.out.println("\t--event-loop: serve clients from non-blocking event loops instead of a thread per client.");
+        System.out.println("\t--event-loops=<n>: number of event loops (default: one per core), implies --event-loop.");
+        System.out.println("\t--max-connections=<n>: refuse new clients with -ERR server busy above <n> connections (default: no limit).");
+        System.out.println("\t--max-connections-per-ip=<n>: maximum number of connections from a single address (default: no limit).");
+        System.out.println("\t--accept-rate=<n>: new connections accepted per second, the rest is refused (default: no limit).");
+        System.out.println("\t--accept-burst=<n>: connections accepted at once above the accept rate (default: 100).");
+        System.out.println("\t--backlog=<n>: connections queued by the OS until they are accepted (default: 50).");
+        System.out.println("\t--acceptors=<n>: number of threads that accept connections (default: 1).");
+        System.out.println("\t--tcp-nodelay: disable Nagle's algorithm on client connections.");
+        System.out.println("\t--send-buffer=<bytes>: socket send buffer size of client connections (default: OS default).");
+        System.out.println("\t--receive-buffer=<bytes>: socket receive buffer size of client connections (default: OS default).");
+        System.out.println("\t--virtual-threads: run every client on a virtual thread (requires Java 21).");
+        System.out.println("\t--outbound-queue=<n>: maximum number of messages queued for a single client (default: 1024).");
+        System.out.println("\t--slow-consumer=<drop|disconnect|block>: what to do when the queue of a client is full (default: disconnect).");
+        System.out.println("\t--flush=<immediate|size|deadline>: when collected messages are written to a client (default: immediate).");
+        System.out.println("\t--flush-size=<bytes>: size of the write buffer of a client (default: 8192).");
+        System.out.println("\t--flush-delay=<us>: how long the size and deadline policies wait for more messages (default: 200).");
+        System.out.println("\t--metrics-port=<port>: serve metrics over HTTP on localhost:<port>/metrics (metrics are always available over JMX and with STATS).");
+        System.out.println("\t--port=<port>: port the server listens on for clients (default: 1337).");
+        System.out.println("\t--cluster-port=<port>: join a cluster, other nodes connect to this port.");
+        System.out.println("\t--node-id=<id>: id of this node, unique in the cluster (default: node-<port>).");
+        System.out.println("\t--peers=<host:port,...>: cluster ports of the other nodes of the cluster.");
+        System.out.println("\t--cluster-bind=<address>: address the cluster port listens on (default: 127.0.0.1).");
+        System.out.println("\t--cluster-secret=<secret>: secret shared by all nodes of the cluster, required in cluster mode.");
+        System.out.println("\t--heartbeat=<ms>: send a PING to clients that have been silent for <ms> (default: off).");
+        System.out.println("\t--heartbeat-timeout=<ms>: close connections that don't answer a PING within <ms> (default: 3000).");
+        System.out.println("\t--presence-window=<ms>: time roster changes are collected before they are sent to SUBSCRIBE clients (default: 100).");
+        System.out.println("\t--reliable-window=<n>: messages kept for a client in reliable mode until it acknowledges them (default: 1024).");
+        System.out.println("\t--reliable-window-memory=<KB>: bytes kept for a single client in reliable mode (default: 1024).");
+        System.out.println("\t--reliable-memory=<MB>: bytes kept for all clients in reliable mode together (default: 64, 0: no ceiling).");
+        System.out.println("\t--resume-timeout=<ms>: how long a client in reliable mode can resume its session after losing its connection (default: 30000).");
+        System.out.println("\t--compress-threshold=<bytes>: messages to clients that sent COMPRESS are compressed from this length (default: 512).");
+        System.out.println("\t--limit=<class>:<n>: commands per second a client may send, class is broadcast, private, group, group_admin or query (default: no limit).");
+        System.out.println("\t--limit-burst=<n>: commands a client may send at once above its limit (default: 10).");
+        System.out.println("\t--fanout-limit=<n>: messages per second all clients together may send to other clients (default: no limit).");
+        System.out.println("\t--limit-action=<error|delay|disconnect>: what to do with a client over its limit (default: error).");
+        System.out.println("\t--buffer-memory=<MB>: memory for queued messages, above it new messages are refused (default: half the heap, 0: no ceiling).");
+        System.out.println("\t--connection-memory=<KB>: maximum size of the messages queued for a single client (default: no limit).");
+        System.out.println("\t--detect-leaks: report message buffers that are never returned to the pool (debugging).");
+        System.out.println("\t--capture=<file>: record the commands of all clients in <file>, to replay them with the TrafficReplay tool.");
+        System.out.println("\t--store=<dir>: keep private and group messages in <dir> for offline users and HISTORY.");
+        System.out.println("\t--store-fsync=<ms>: how often stored messages are forced to disk (default: 100).");
+        System.out.println("\t--store-rejoin=<minutes>: with --store, a user that loses its connection stays in its groups and rejoins them when it logs in within <minutes> (default: 1440, 0: leave the groups right away).");
         System.out.println("");
 
         if (args.length == 0) {
@@ -22,25 +77,182 @@ public class Main {
             if(arg.equals("--no-colors")) {
                 config.setShowColors(false);
                 System.out.println(" * Colors in debug message disabled");
+            } else if(arg.startsWith("--log-level=")) {
+                config.setLogLevel(LogLevel.valueOf(arg.substring("--log-level=".length()).toUpperCase(Locale.ROOT)));
+                System.out.println(" * Log level: " + config.getLogLevel());
+            } else if(arg.startsWith("--trace-sample=")) {
+                config.setTraceSampleRate(Math.max(1, Integer.parseInt(arg.substring("--trace-sample=".length()))));
+                System.out.println(" * Logging 1 in " + config.getTraceSampleRate() + " message traces");
             } else if(arg.equals("--bad-server-drop-msg")) {
-                config.setSimulateDroppedPackets(true);
+                config.setDropRate(config.BAD_SERVER_DROP_RATE);
                 System.out.println(" * Drop message simulation enabled");
             } else if(arg.equals("--bad-server-corrupt")) {
-                config.setSimulateCorruptedPackets(true);
+                config.setCorruptRate(config.BAD_SERVER_CORRUPT_RATE);
                 System.out.println(" * Corrupt message simulation enabled");
             } else if(arg.equals("--bad-server-drop-client")) {
-                config.setSimulateConnectionLost(true);
+                config.setDisconnectRate(1);
                 System.out.println(" * Connection lost simulation (drop clients) enabled");
             } else if(arg.equals("--bad-server")) {
-                config.setSimulateCorruptedPackets(true);
-                config.setSimulateDroppedPackets(true);
-                config.setSimulateConnectionLost(true);
+                config.setCorruptRate(config.BAD_SERVER_CORRUPT_RATE);
+                config.setDropRate(config.BAD_SERVER_DROP_RATE);
+                config.setDisconnectRate(1);
                 System.out.println(" * Full bad server mode enabled");
+            } else if(arg.startsWith("--fault-drop=")) {
+                config.setDropRate(Double.parseDouble(arg.substring("--fault-drop=".length())));
+                System.out.println(" * Drop message rate: " + config.getDropRate());
+            } else if(arg.startsWith("--fault-corrupt=")) {
+                config.setCorruptRate(Double.parseDouble(arg.substring("--fault-corrupt=".length())));
+                System.out.println(" * Corrupt message rate: " + config.getCorruptRate());
+            } else if(arg.startsWith("--fault-disconnect=")) {
+                config.setDisconnectRate(Double.parseDouble(arg.substring("--fault-disconnect=".length())));
+                System.out.println(" * Drop client rate: " + config.getDisconnectRate());
+            } else if(arg.startsWith("--fault-latency=")) {
+                config.setLatencyMillis(Math.max(0, Long.parseLong(arg.substring("--fault-latency=".length()))));
+                System.out.println(" * Message latency: " + config.getLatencyMillis() + " ms");
+            } else if(arg.startsWith("--fault-partial=")) {
+                config.setPartialWriteRate(Double.parseDouble(arg.substring("--fault-partial=".length())));
+                System.out.println(" * Partial write rate: " + config.getPartialWriteRate());
+            } else if(arg.startsWith("--fault-reorder=")) {
+                config.setReorderRate(Double.parseDouble(arg.substring("--fault-reorder=".length())));
+                System.out.println(" * Reorder message rate: " + config.getReorderRate());
+            } else if(arg.startsWith("--fault-seed=")) {
+                config.setFaultSeed(Long.parseLong(arg.substring("--fault-seed=".length())));
+                System.out.println(" * Fault seed: " + config.getFaultSeed());
+            } else if(arg.equals("--event-loop")) {
+                config.setUseEventLoop(true);
+                System.out.println(" * Event loop mode enabled (" + config.getEventLoopCount() + " loops)");
+            } else if(arg.equals("--virtual-threads")) {
+                config.setUseVirtualThreads(true);
+                System.out.println(" * Virtual threads enabled");
+            } else if(arg.startsWith("--outbound-queue=")) {
+                config.setOutboundQueueSize(Math.max(1, Integer.parseInt(arg.substring("--outbound-queue=".length()))));
+                System.out.println(" * Outbound queue size: " + config.getOutboundQueueSize());
+            } else if(arg.startsWith("--slow-consumer=")) {
+                config.setSlowConsumerPolicy(SlowConsumerPolicy.valueOf(arg.substring("--slow-consumer=".length()).toUpperCase(Locale.ROOT)));
+                System.out.println(" * Slow consumer policy: " + config.getSlowConsumerPolicy());
+            } else if(arg.startsWith("--flush=")) {
+                config.setFlushPolicy(FlushPolicy.valueOf(arg.substring("--flush=".length()).toUpperCase(Locale.ROOT)));
+                System.out.println(" * Flush policy: " + config.getFlushPolicy());
+            } else if(arg.startsWith("--flush-size=")) {
+                config.setFlushSize(Math.max(256, Integer.parseInt(arg.substring("--flush-size=".length()))));
+                System.out.println(" * Flush size: " + config.getFlushSize() + " bytes");
+            } else if(arg.startsWith("--flush-delay=")) {
+                config.setFlushDelayMicros(Math.max(0, Long.parseLong(arg.substring("--flush-delay=".length()))));
+                System.out.println(" * Flush delay: " + config.getFlushDelayMicros() + " us");
+            } else if(arg.startsWith("--metrics-port=")) {
+                config.setMetricsPort(Integer.parseInt(arg.substring("--metrics-port=".length())));
+                System.out.println(" * Metrics endpoint: http://localhost:" + config.getMetricsPort() + "/metrics");
+            } else if(arg.startsWith("--event-loops=")) {
+                config.setUseEventLoop(true);
+                config.setEventLoopCount(Math.max(1, Integer.parseInt(arg.substring("--event-loops=".length()))));
+                System.out.println(" * Event loop mode enabled (" + config.getEventLoopCount() + " loops)");
+            } else if(arg.startsWith("--max-connections=")) {
+                config.setMaxConnections(Integer.parseInt(arg.substring("--max-connections=".length())));
+                System.out.println(" * Maximum connections: " + config.getMaxConnections());
+            } else if(arg.startsWith("--max-connections-per-ip=")) {
+                config.setMaxConnectionsPerAddress(Integer.parseInt(arg.substring("--max-connections-per-ip=".length())));
+                System.out.println(" * Maximum connections per address: " + config.getMaxConnectionsPerAddress());
+            } else if(arg.startsWith("--accept-rate=")) {
+                config.setAcceptRate(Double.parseDouble(arg.substring("--accept-rate=".length())));
+                System.out.println(" * Accept rate: " + config.getAcceptRate() + " connections/s");
+            } else if(arg.startsWith("--accept-burst=")) {
+                config.setAcceptBurst(Math.max(1, Integer.parseInt(arg.substring("--accept-burst=".length()))));
+                System.out.println(" * Accept burst: " + config.getAcceptBurst());
+            } else if(arg.startsWith("--backlog=")) {
+                config.setAcceptBacklog(Math.max(1, Integer.parseInt(arg.substring("--backlog=".length()))));
+                System.out.println(" * Accept backlog: " + config.getAcceptBacklog());
+            } else if(arg.startsWith("--acceptors=")) {
+                config.setAcceptorCount(Math.max(1, Integer.parseInt(arg.substring("--acceptors=".length()))));
+                System.out.println(" * Acceptor threads: " + config.getAcceptorCount());
+            } else if(arg.equals("--tcp-nodelay")) {
+                config.setTcpNoDelay(true);
+                System.out.println(" * TCP_NODELAY enabled");
+            } else if(arg.startsWith("--send-buffer=")) {
+                config.setSendBufferSize(Integer.parseInt(arg.substring("--send-buffer=".length())));
+                System.out.println(" * Socket send buffer: " + config.getSendBufferSize() + " bytes");
+            } else if(arg.startsWith("--receive-buffer=")) {
+                config.setReceiveBufferSize(Integer.parseInt(arg.substring("--receive-buffer=".length())));
+                System.out.println(" * Socket receive buffer: " + config.getReceiveBufferSize() + " bytes");
+            } else if(arg.startsWith("--port=")) {
+                config.setServerPort(Integer.parseInt(arg.substring("--port=".length())));
+            } else if(arg.startsWith("--cluster-port=")) {
+                config.setClusterPort(Integer.parseInt(arg.substring("--cluster-port=".length())));
+                System.out.println(" * Cluster mode enabled (cluster port " + config.getClusterPort() + ")");
+            } else if(arg.startsWith("--node-id=")) {
+                config.setNodeId(arg.substring("--node-id=".length()));
+                System.out.println(" * Node id: " + config.getNodeId());
+            } else if(arg.startsWith("--peers=")) {
+                config.setClusterPeers(Arrays.asList(arg.substring("--peers=".length()).split(",")));
+                System.out.println(" * Cluster peers: " + config.getClusterPeers());
+            } else if(arg.startsWith("--cluster-bind=")) {
+                config.setClusterBindAddress(arg.substring("--cluster-bind=".length()));
+                System.out.println(" * Cluster bind address: " + config.getClusterBindAddress());
+            } else if(arg.startsWith("--cluster-secret=")) {
+                config.setClusterSecret(arg.substring("--cluster-secret=".length()));
+                System.out.println(" * Cluster secret set");
+            } else if(arg.startsWith("--heartbeat=")) {
+                config.setHeartbeatIntervalMillis(Math.max(0, Long.parseLong(arg.substring("--heartbeat=".length()))));
+                System.out.println(" * Heartbeat after " + config.getHeartbeatIntervalMillis() + " ms of silence");
+            } else if(arg.startsWith("--heartbeat-timeout=")) {
+                config.setHeartbeatTimeoutMillis(Math.max(1, Long.parseLong(arg.substring("--heartbeat-timeout=".length()))));
+                System.out.println(" * Heartbeat timeout: " + config.getHeartbeatTimeoutMillis() + " ms");
+            } else if(arg.startsWith("--presence-window=")) {
+                config.setPresenceWindowMillis(Math.max(1, Long.parseLong(arg.substring("--presence-window=".length()))));
+                System.out.println(" * Presence window: " + config.getPresenceWindowMillis() + " ms");
+            } else if(arg.startsWith("--compress-threshold=")) {
+                config.setCompressionThreshold(Math.max(1, Integer.parseInt(arg.substring("--compress-threshold=".length()))));
+                System.out.println(" * Compression threshold: " + config.getCompressionThreshold() + " bytes");
+            } else if(arg.startsWith("--reliable-window=")) {
+                config.setReliableWindow(Math.max(1, Integer.parseInt(arg.substring("--reliable-window=".length()))));
+                System.out.println(" * Reliable window: " + config.getReliableWindow() + " messages");
+            } else if(arg.startsWith("--reliable-window-memory=")) {
+                config.setReliableWindowMemory(Math.max(1, Integer.parseInt(arg.substring("--reliable-window-memory=".length()))) * 1024);
+                System.out.println(" * Reliable window memory: " + config.getReliableWindowMemory() / 1024 + " KB per client");
+            } else if(arg.startsWith("--reliable-memory=")) {
+                config.setReliableMemory(Math.max(0, Long.parseLong(arg.substring("--reliable-memory=".length()))) * 1024 * 1024);
+                System.out.println(" * Reliable memory: " + config.getReliableMemory() / (1024 * 1024) + " MB");
+            } else if(arg.startsWith("--resume-timeout=")) {
+                config.setResumeTimeoutMillis(Math.max(0, Long.parseLong(arg.substring("--resume-timeout=".length()))));
+                System.out.println(" * Resume timeout: " + config.getResumeTimeoutMillis() + " ms");
+            } else if(arg.startsWith("--limit=")) {
+                String[] limit = arg.substring("--limit=".length()).split(":");
+                config.setCommandRate(CommandClass.valueOf(limit[0].toUpperCase(Locale.ROOT)), Double.parseDouble(limit[1]));
+                System.out.println(" * Rate limit " + limit[0] + ": " + limit[1] + " commands/s per client");
+            } else if(arg.startsWith("--limit-burst=")) {
+                config.setCommandBurst(Math.max(1, Integer.parseInt(arg.substring("--limit-burst=".length()))));
+                System.out.println(" * Rate limit burst: " + config.getCommandBurst());
+            } else if(arg.startsWith("--fanout-limit=")) {
+                config.setFanoutRate(Double.parseDouble(arg.substring("--fanout-limit=".length())));
+                System.out.println(" * Fan-out limit: " + config.getFanoutRate() + " messages/s");
+            } else if(arg.startsWith("--limit-action=")) {
+                config.setRateLimitAction(RateLimitAction.valueOf(arg.substring("--limit-action=".length()).toUpperCase(Locale.ROOT)));
+                System.out.println(" * Rate limit action: " + config.getRateLimitAction());
+            } else if(arg.startsWith("--buffer-memory=")) {
+                config.setBufferMemory(Long.parseLong(arg.substring("--buffer-memory=".length())) * 1024 * 1024);
+                System.out.println(" * Buffer memory: " + (config.getBufferMemory() / (1024 * 1024)) + " MB");
+            } else if(arg.startsWith("--connection-memory=")) {
+                config.setConnectionMemory(Integer.parseInt(arg.substring("--connection-memory=".length())) * 1024);
+                System.out.println(" * Connection memory: " + (config.getConnectionMemory() / 1024) + " KB");
+            } else if(arg.equals("--detect-leaks")) {
+                config.setDetectLeaks(true);
+                System.out.println(" * Detecting buffer leaks");
+            } else if(arg.startsWith("--capture=")) {
+                config.setCaptureFile(arg.substring("--capture=".length()));
+                System.out.println(" * Capturing client traffic in: " + config.getCaptureFile());
+            } else if(arg.startsWith("--store=")) {
+                config.setStoreDirectory(arg.substring("--store=".length()));
+                System.out.println(" * Message store: " + config.getStoreDirectory());
+            } else if(arg.startsWith("--store-fsync=")) {
+                config.setStoreFsyncMillis(Math.max(1, Long.parseLong(arg.substring("--store-fsync=".length()))));
+                System.out.println(" * Message store fsync interval: " + config.getStoreFsyncMillis() + " ms");
+            } else if(arg.startsWith("--store-rejoin=")) {
+                config.setStoreRejoinMillis(Math.max(0, Long.parseLong(arg.substring("--store-rejoin=".length()))) * 60 * 1000);
+                System.out.println(" * Message store rejoin time: " + config.getStoreRejoinMillis() / 60000 + " minutes");
             }
         }
         System.out.println("-------------------------------");
         System.out.println("\tversion:\t"+ config.VERSION);
-        System.out.println("\tport:\t\t"+ config.SERVER_PORT);
+        System.out.println("\tport:\t\t"+ config.getServerPort());
         System.out.println("-------------------------------");
         new Server(config).run();
     }
@@ -1,42 +1,190 @@
 package nl.saxion.internettech;
 
+import java.util.Arrays;
+
 public class Message {
     public enum MessageType {
-        HELO,
-        BCST,
-        PRIVATE,
-        ALLCLIENTS,
-        NEWGROUP,
-        ALLGROUPS,
-        JOINGROUP,
-        QUITGROUP,
-        KICKUSER,
-        QUIT,
-        UNKOWN
+        HELO(0x01),
+        BCST(0x02),
+        PRIVATE(0x03),
+        ALLCLIENTS(0x04),
+        NEWGROUP(0x05),
+        ALLGROUPS(0x06),
+        JOINGROUP(0x07),
+        QUITGROUP(0x08),
+        KICKUSER(0x09),
+        GROUPMSG(0x0A),
+        STATS(0x0B),
+        HISTORY(0x0C),
+        BINARY(0x0D),
+        QUIT(0x0E),
+        PING(0x0F),
+        PONG(0x10),
+        SUBSCRIBE(0x11),
+        UNSUBSCRIBE(0x12),
+        RELIABLE(0x13),
+        ACK(0x14),
+        COMPRESS(0x15),
+        UNKOWN(0x00);
+
+        // Message types indexed by their opcode in the binary protocol.
+        private static final MessageType[] BY_OPCODE = new MessageType[256];
+        static {
+            Arrays.fill(BY_OPCODE, UNKOWN);
+            for (MessageType type : values()) {
+                BY_OPCODE[type.opcode] = type;
+            }
+        }
+
+        private final int opcode;
+
+        MessageType(int opcode) {
+            this.opcode = opcode;
+        }
+
+        /**
+         * @return  Returns the opcode of the message type in the binary protocol.
+         */
+        public int getOpcode() {
+            return opcode;
+        }
+
+        /**
+         * @param opcode    An opcode of the binary protocol (0-255).
+         * @return  Returns the message type with the opcode or UNKOWN.
+         */
+        public static MessageType fromOpcode(int opcode) {
+            return BY_OPCODE[opcode];
+        }
     }
 
     private String line;
+    private MessageType messageType;
+    // Index of the first character of the payload, -1 if the message has no payload.
+    private int payloadStart;
+    private String payload;
+    // The arguments of a binary frame with more than one field, null otherwise.
+    private String head;
+    private String tail;
+    private boolean binary;
 
+    /**
+     * Parses the message type and the bounds of the payload in a single pass over the line,
+     * without regular expressions or intermediate arrays.
+     * @param line  The raw line received from the client.
+     */
     public Message(String line) {
         this.line = line;
+        this.messageType = MessageType.UNKOWN;
+        this.payloadStart = -1;
+        if (line == null || line.length() == 0) {
+            return;
+        }
+
+        // The message type is the first word of the line.
+        int verbLength = 0;
+        while (verbLength < line.length() && !Character.isWhitespace(line.charAt(verbLength))) {
+            verbLength++;
+        }
+        messageType = lookup(line, verbLength);
+        if (messageType != MessageType.UNKOWN && line.length() > verbLength + 1) {
+            payloadStart = verbLength + 1;
+        }
+    }
+
+    /**
+     * Creates a message from the fields of a binary frame. A frame with a single field is handled
+     * like the payload of a line, so its arguments may also be separated with a '-'.
+     * @param messageType   The message type of the opcode of the frame.
+     * @param fields        The fields of the frame.
+     */
+    public Message(MessageType messageType, String[] fields) {
+        this.messageType = messageType;
+        this.payloadStart = -1;
+        this.binary = true;
+        if (fields.length == 1) {
+            this.line = fields[0];
+            this.payloadStart = line.isEmpty() ? -1 : 0;
+        } else if (fields.length > 1) {
+            this.head = fields[0];
+            this.tail = fields[1];
+            this.payload = head + "-" + tail;
+        }
     }
 
     /**
-     * Parses the first word in the message in an attempt to get the message type.
+     * Finds the message type of a command by switching on its length and first character,
+     * followed by a single comparison with the only candidate.
+     * @param line      The line starting with the command.
+     * @param length    The length of the command.
+     * @return  Returns the matching message type or UNKOWN.
+     */
+    private static MessageType lookup(String line, int length) {
+        MessageType candidate;
+        switch (length) {
+            case 3:
+                candidate = MessageType.ACK;
+                break;
+            case 4:
+                switch (line.charAt(0)) {
+                    case 'H': candidate = MessageType.HELO; break;
+                    case 'B': candidate = MessageType.BCST; break;
+                    case 'Q': candidate = MessageType.QUIT; break;
+                    case 'P': candidate = line.charAt(1) == 'I' ? MessageType.PING : MessageType.PONG; break;
+                    default: return MessageType.UNKOWN;
+                }
+                break;
+            case 5:
+                candidate = MessageType.STATS;
+                break;
+            case 6:
+                candidate = MessageType.BINARY;
+                break;
+            case 7:
+                switch (line.charAt(0)) {
+                    case 'P': candidate = MessageType.PRIVATE; break;
+                    case 'H': candidate = MessageType.HISTORY; break;
+                    default: return MessageType.UNKOWN;
+                }
+                break;
+            case 8:
+                switch (line.charAt(0)) {
+                    case 'N': candidate = MessageType.NEWGROUP; break;
+                    case 'K': candidate = MessageType.KICKUSER; break;
+                    case 'G': candidate = MessageType.GROUPMSG; break;
+                    case 'R': candidate = MessageType.RELIABLE; break;
+                    case 'C': candidate = MessageType.COMPRESS; break;
+                    default: return MessageType.UNKOWN;
+                }
+                break;
+            case 9:
+                switch (line.charAt(0)) {
+                    case 'A': candidate = MessageType.ALLGROUPS; break;
+                    case 'J': candidate = MessageType.JOINGROUP; break;
+                    case 'Q': candidate = MessageType.QUITGROUP; break;
+                    case 'S': candidate = MessageType.SUBSCRIBE; break;
+                    default: return MessageType.UNKOWN;
+                }
+                break;
+            case 10:
+                candidate = MessageType.ALLCLIENTS;
+                break;
+            case 11:
+                candidate = MessageType.UNSUBSCRIBE;
+                break;
+            default:
+                return MessageType.UNKOWN;
+        }
+        return line.startsWith(candidate.name()) ? candidate : MessageType.UNKOWN;
+    }
+
+    /**
+     * Gets the type of the message, which is the first word in the message.
      * @return  Return a message type if it can be parsed correctly or UKNOWN if
      *          the message type cannot be derived.
      */
     public MessageType getMessageType() {
-        MessageType result = MessageType.UNKOWN;
-        try{
-            if (line != null && line.length() > 0) {
-                String[] splits = line.split("\\s+");
-                result = MessageType.valueOf(splits[0]);
-            }
-        } catch (IllegalArgumentException iaex) {
-            System.out.println("[ERROR] Unknown command");
-        }
-        return  result;
+        return messageType;
     }
 
     /**
@@ -48,18 +196,86 @@ public class Message {
     public String getPayload() {
 
         // Return the raw line if we don't know what the message type is.
-        if (getMessageType().equals(MessageType.UNKOWN)) {
+        if (messageType == MessageType.UNKOWN) {
             return line;
         }
 
-        // Return an empty string if the raw line was null or
-        // the length of the line is smaller than the message type plus one (this
-        // should prevent index out of bounds in the substring).
-        if (line == null || line.length() < getMessageType().name().length() + 1) {
+        if (payload != null) {
+            return payload;
+        }
+
+        // Return an empty string if there is nothing after the message type.
+        if (payloadStart < 0) {
             return "";
         }
 
-        // Return the part after the message type (excluding whitespace).
-        return line.substring(getMessageType().name().length() + 1);
+        // Return the part after the message type (excluding whitespace), the substring is only created once.
+        if (payload == null) {
+            payload = line.substring(payloadStart);
+        }
+        return payload;
+    }
+
+    /**
+     * Gets the part of the payload before the first separator, e.g. the username in
+     * "PRIVATE username-message".
+     * @param separator The character separating the arguments.
+     * @return  Returns the part before the separator or null if the payload has no separator.
+     */
+    public String getPayloadHead(char separator) {
+        if (head != null) {
+            return head;
+        }
+        int index = separatorIndex(separator);
+        return index < 0 ? null : line.substring(payloadStart, index);
+    }
+
+    /**
+     * Gets the part of the payload after the first separator, e.g. the message in
+     * "PRIVATE username-message". Further separators are part of the result.
+     * @param separator The character separating the arguments.
+     * @return  Returns the part after the separator or null if the payload has no separator.
+     */
+    public String getPayloadTail(char separator) {
+        if (tail != null) {
+            return tail;
+        }
+        int index = separatorIndex(separator);
+        return index < 0 ? null : line.substring(index + 1);
+    }
+
+    private int separatorIndex(char separator) {
+        return payloadStart < 0 ? -1 : line.indexOf(separator, payloadStart);
+    }
+
+    /**
+     * @return  Returns the line the message was parsed from, or the equivalent line for a binary frame.
+     */
+    @Override
+    public String toString() {
+        if (!binary) {
+            return line;
+        }
+        String text = getPayload();
+        return text == null || text.isEmpty() ? messageType.name() : messageType.name() + " " + text;
+    }
+
+    /**
+     * Checks the username format (3 to 14 letters, digits or underscores) without a regular expression.
+     * @param username  The username to be checked.
+     * @return  Returns true if the username is valid.
+     */
+    public static boolean isValidUsername(String username) {
+        if (username.length() < 3 || username.length() > 14) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -0,0 +1,463 @@
+package nl.saxion.internettech;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the private and group messages, stored in memory mapped segment files.
+ * Every message is written once, together with the users that were offline when it was sent.
+ * Those users get the message when they log in again.
+ * <p>
+ * All writes are done by a single writer thread: senders only queue the message and never
+ * wait for the disk. The writer forces the written records to disk in batches, at most once
+ * per fsync interval. Messages are read straight from the mapped segments, a record is only
+ * copied to the heap when it is sent to a client.
+ * <p>
+ * Record layout: length (int), CRC32C of the body (int), followed by the body: timestamp (long),
+ * type (byte), sender, conversation, the number of offline recipients (short), the recipients
+ * and the text. Strings are stored as UTF-8 prefixed by their length (short), the text as the
+ * rest of the record.
+ */
+public class MessageStore {
+
+    public static final byte PRIVATE = 1;
+    public static final byte GROUP = 2;
+    // Marks that all messages for the user stored before this record have been delivered.
+    public static final byte DELIVERED = 3;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int QUEUE_CAPACITY = 65536;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long fsyncIntervalNanos;
+    private final AsyncLogger logger;
+
+    // The segments ordered by their base offset, replaced as a whole when a segment is added.
+    private volatile Segment[] segments = new Segment[0];
+    // Offsets of the messages of every conversation, used to page through the history.
+    private final ConcurrentMap<String, OffsetList> conversations = new ConcurrentHashMap<>();
+    // Offsets of the messages waiting for an offline user. Only used by the writer thread.
+    private final Map<String, OffsetList> inboxes = new HashMap<>();
+
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private Thread writer;
+    private boolean dirty = false;
+
+    public MessageStore(ServerConfiguration conf, AsyncLogger logger) {
+        this.directory = new File(conf.getStoreDirectory());
+        this.segmentSize = conf.STORE_SEGMENT_SIZE;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(conf.getStoreFsyncMillis());
+        this.logger = logger;
+    }
+
+    /**
+     * Maps the existing segments, rebuilds the indexes from their records and starts the writer.
+     */
+    public void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create message store directory " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        List<Segment> recovered = new ArrayList<>();
+        for (File file : files) {
+            long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+            Segment segment = new Segment(file, baseOffset, Math.max(segmentSize, (int) file.length()));
+            recover(segment);
+            recovered.add(segment);
+        }
+        if (recovered.isEmpty()) {
+            recovered.add(createSegment(0));
+        }
+        segments = recovered.toArray(new Segment[0]);
+        logger.log(LogLevel.INFO, "Message store opened: " + segments.length + " segments, " + conversations.size() + " conversations");
+
+        writer = new Thread(this::writeLoop, "message-store");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Segment createSegment(long baseOffset) throws IOException {
+        return new Segment(new File(directory, String.format("%020d.log", baseOffset)), baseOffset, segmentSize);
+    }
+
+    /**
+     * Reads the records of a segment until the first empty or damaged record and adds them to the indexes.
+     */
+    private void recover(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()
+                    || buffer.getInt(position + 4) != crc(buffer, position + HEADER_SIZE, length)) {
+                break;
+            }
+            StoredMessage message = read(segment, position);
+            if (message.type == DELIVERED) {
+                OffsetList inbox = inboxes.get(message.from);
+                if (inbox != null) {
+                    inbox.clear();
+                }
+            } else {
+                index(message.offset, message.conversation, message.recipients);
+            }
+            position += HEADER_SIZE + length;
+        }
+        segment.position = position;
+    }
+
+    private static int crc(MappedByteBuffer buffer, int position, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(position, length));
+        return (int) crc.getValue();
+    }
+
+    private void index(long offset, String conversation, String[] recipients) {
+        conversations.computeIfAbsent(conversationKey(conversation), key -> new OffsetList()).add(offset);
+        for (String recipient : recipients) {
+            inboxes.computeIfAbsent(recipient, key -> new OffsetList()).add(offset);
+        }
+    }
+
+    /**
+     * @param userA The sender or receiver of a private message.
+     * @param userB The other user.
+     * @return  Returns the name of the conversation between two users.
+     */
+    public static String privateConversation(String userA, String userB) {
+        return userA.compareTo(userB) < 0 ? userA + " " + userB : userB + " " + userA;
+    }
+
+    /**
+     * @param groupName The name of a group.
+     * @return  Returns the name of the conversation of a group.
+     */
+    public static String groupConversation(String groupName) {
+        return "#" + groupName;
+    }
+
+    // Group names are case insensitive.
+    private static String conversationKey(String conversation) {
+        return conversation.startsWith("#") ? conversation.toLowerCase(Locale.ROOT) : conversation;
+    }
+
+    /**
+     * Queues a message to be stored. Never waits for the disk.
+     * @param type          PRIVATE or GROUP.
+     * @param from          The username of the sender.
+     * @param conversation  The conversation the message belongs to.
+     * @param text          The text of the message.
+     * @param offline       The users that are offline and get the message when they log in.
+     */
+    public void append(byte type, String from, String conversation, String text, Collection<String> offline) {
+        long timestamp = System.currentTimeMillis();
+        String[] recipients = offline.toArray(new String[0]);
+        submit(() -> write(timestamp, type, from, conversation, recipients, text));
+    }
+
+    /**
+     * Sends the messages stored for a user that was offline. The messages are read on the
+     * writer thread, after all messages that were queued before. The consumer runs on the writer
+     * thread too, which never waits for a full queue of a client (see {@link OutboundQueue#isBlockingAllowed()}),
+     * so a slow client that logs in can't hold up the appends of the other clients.
+     * @param username  The user that logged in.
+     * @param consumer  Receives the stored messages, oldest first, must not block.
+     */
+    public void deliver(String username, Consumer<StoredMessage> consumer) {
+        submit(() -> {
+            OffsetList inbox = inboxes.remove(username);
+            if (inbox == null) {
+                return;
+            }
+            for (long offset : inbox.toArray()) {
+                consumer.accept(read(offset));
+            }
+            write(System.currentTimeMillis(), DELIVERED, username, "", new String[0], "");
+        });
+    }
+
+    private void submit(Runnable task) {
+        if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+            queued.decrementAndGet();
+            logger.log(LogLevel.WARN, "[DROPPED] Message store queue full");
+            return;
+        }
+        tasks.add(task);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Gets a page of the history of a conversation.
+     * @param conversation  The conversation.
+     * @param before        Only messages stored before this offset are returned, Long.MAX_VALUE for the latest messages.
+     * @param limit         The maximum number of messages.
+     * @return  Returns the messages, oldest first.
+     */
+    public List<StoredMessage> history(String conversation, long before, int limit) {
+        List<StoredMessage> messages = new ArrayList<>();
+        OffsetList offsets = conversations.get(conversationKey(conversation));
+        if (offsets != null) {
+            for (long offset : offsets.before(before, limit)) {
+                messages.add(read(offset));
+            }
+        }
+        return messages;
+    }
+
+    private void writeLoop() {
+        long lastSync = System.nanoTime();
+        while (true) {
+            Runnable task = tasks.poll();
+            if (task != null) {
+                queued.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.log(LogLevel.ERROR, "Message store Exception: " + e.getMessage());
+                }
+            } else if (dirty && System.nanoTime() - lastSync >= fsyncIntervalNanos) {
+                // Force all records written since the last sync to disk at once.
+                segments[segments.length - 1].buffer.force();
+                dirty = false;
+                lastSync = System.nanoTime();
+            } else {
+                LockSupport.parkNanos(this, dirty ? fsyncIntervalNanos : TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private void write(long timestamp, byte type, String from, String conversation, String[] recipients, String text) {
+        byte[] fromBytes = from.getBytes(StandardCharsets.UTF_8);
+        byte[] conversationBytes = conversation.getBytes(StandardCharsets.UTF_8);
+        byte[][] recipientBytes = new byte[recipients.length][];
+        int length = 8 + 1 + 2 + fromBytes.length + 2 + conversationBytes.length + 2;
+        for (int i = 0; i < recipients.length; i++) {
+            recipientBytes[i] = recipients[i].getBytes(StandardCharsets.UTF_8);
+            length += 2 + recipientBytes[i].length;
+        }
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        length += textBytes.length;
+
+        Segment segment = segments[segments.length - 1];
+        if (segment.position + HEADER_SIZE + length > segment.buffer.capacity()) {
+            segment = roll(segment, HEADER_SIZE + length);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int start = segment.position;
+        int position = start + HEADER_SIZE;
+        buffer.putLong(position, timestamp);
+        buffer.put(position + 8, type);
+        position = putString(buffer, position + 9, fromBytes);
+        position = putString(buffer, position, conversationBytes);
+        buffer.putShort(position, (short) recipients.length);
+        position += 2;
+        for (byte[] recipient : recipientBytes) {
+            position = putString(buffer, position, recipient);
+        }
+        buffer.put(position, textBytes);
+
+        // The length is written last, a record is only complete once it has a length.
+        buffer.putInt(start + 4, crc(buffer, start + HEADER_SIZE, length));
+        buffer.putInt(start, length);
+        segment.position = start + HEADER_SIZE + length;
+        dirty = true;
+
+        long offset = segment.baseOffset + start;
+        if (type == DELIVERED) {
+            return;
+        }
+        index(offset, conversation, recipients);
+    }
+
+    private static int putString(MappedByteBuffer buffer, int position, byte[] bytes) {
+        buffer.putShort(position, (short) bytes.length);
+        buffer.put(position + 2, bytes);
+        return position + 2 + bytes.length;
+    }
+
+    /**
+     * Closes the full segment and continues in a new one. The offsets continue where the full segment ended.
+     */
+    private Segment roll(Segment full, int recordSize) {
+        try {
+            full.buffer.force();
+            Segment segment = new Segment(new File(directory, String.format("%020d.log", full.baseOffset + full.position)),
+                    full.baseOffset + full.position, Math.max(segmentSize, recordSize));
+            Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[grown.length - 1] = segment;
+            segments = grown;
+            return segment;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't create segment: " + e.getMessage(), e);
+        }
+    }
+
+    private StoredMessage read(long offset) {
+        Segment[] current = segments;
+        int low = 0;
+        int high = current.length - 1;
+        // Find the last segment starting at or before the offset.
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (current[middle].baseOffset <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return read(current[low], (int) (offset - current[low].baseOffset));
+    }
+
+    /**
+     * Reads a record with absolute gets, so the segment can be read by several threads while it is written.
+     */
+    private static StoredMessage read(Segment segment, int start) {
+        MappedByteBuffer buffer = segment.buffer;
+        int end = start + HEADER_SIZE + buffer.getInt(start);
+        int position = start + HEADER_SIZE;
+        long timestamp = buffer.getLong(position);
+        byte type = buffer.get(position + 8);
+        position += 9;
+        String from = getString(buffer, position);
+        position += 2 + Short.toUnsignedInt(buffer.getShort(position));
+        String conversation = getString(buffer, position);
+        position += 2 + Short.toUnsignedInt(buffer.getShort(position));
+        String[] recipients = new String[Short.toUnsignedInt(buffer.getShort(position))];
+        position += 2;
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = getString(buffer, position);
+            position += 2 + Short.toUnsignedInt(buffer.getShort(position));
+        }
+        byte[] text = new byte[end - position];
+        buffer.get(position, text);
+        return new StoredMessage(segment.baseOffset + start, timestamp, type, from, conversation, recipients,
+                new String(text, StandardCharsets.UTF_8));
+    }
+
+    private static String getString(MappedByteBuffer buffer, int position) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort(position))];
+        buffer.get(position + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A segment file, mapped into memory as a whole.
+     */
+    private static class Segment {
+        private final long baseOffset;
+        private final MappedByteBuffer buffer;
+        // Position of the next record, only changed by the writer thread.
+        private int position;
+
+        Segment(File file, long baseOffset, int size) throws IOException {
+            this.baseOffset = baseOffset;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+
+    /**
+     * Growable array of offsets in increasing order.
+     */
+    private static class OffsetList {
+        private long[] offsets = new long[8];
+        private int size = 0;
+
+        synchronized void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        synchronized void clear() {
+            size = 0;
+        }
+
+        synchronized long[] toArray() {
+            return Arrays.copyOf(offsets, size);
+        }
+
+        /**
+         * @return  Returns at most limit offsets smaller than the given offset, the largest ones.
+         */
+        synchronized long[] before(long offset, int limit) {
+            int end = Arrays.binarySearch(offsets, 0, size, offset);
+            if (end < 0) {
+                end = -end - 1;
+            }
+            int start = Math.max(0, end - limit);
+            return Arrays.copyOfRange(offsets, start, end);
+        }
+    }
+
+    /**
+     * A message read from the store.
+     */
+    public static class StoredMessage {
+        private final long offset;
+        private final long timestamp;
+        private final byte type;
+        private final String from;
+        private final String conversation;
+        private final String[] recipients;
+        private final String text;
+
+        StoredMessage(long offset, long timestamp, byte type, String from, String conversation, String[] recipients, String text) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.from = from;
+            this.conversation = conversation;
+            this.recipients = recipients;
+            this.text = text;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getConversation() {
+            return conversation;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+}
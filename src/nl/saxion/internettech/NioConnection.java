@@ -0,0 +1,295 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client connection backed by a non-blocking channel. Frames are put in the outbound
+ * queue of the connection and written by the event loop that owns the channel. Frames
+ * queued in the same loop iteration are written with a single gathering write; the flush
+ * policy decides how long the loop waits for more frames before writing.
+ */
+public class NioConnection implements ClientConnection {
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private final ProtocolDecoder decoder = new ProtocolDecoder();
+    private final OutboundQueue outbound;
+    // Frames that have been written partially because the socket buffer was full, null if none.
+    private ArrayDeque<ByteBuffer> unwritten;
+    // The frames of the unwritten buffers, released once they have been written completely.
+    private ArrayDeque<Frame> unwrittenFrames;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::scheduledFlush;
+    private final FlushPolicy flushPolicy;
+    private final int flushSize;
+    private final long flushDelayNanos;
+    private ConnectionHandler handler;
+    private SelectionKey key;
+    private volatile boolean closing = false;
+    private boolean closed = false;
+    // Set once the frame that switches the client to the binary protocol has been written.
+    private boolean binaryOutput = false;
+    // Set while the loop does not read from the channel, because the client exceeded its rate limit.
+    private boolean readsPaused = false;
+    private long readsResumeAt;
+
+    public NioConnection(SocketChannel channel, EventLoop loop, OutboundQueue outbound, ServerConfiguration conf) {
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = outbound;
+        this.flushPolicy = conf.getFlushPolicy();
+        this.flushSize = conf.getFlushSize();
+        this.flushDelayNanos = conf.getFlushDelayMicros() * 1000L;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public EventLoop getLoop() {
+        return loop;
+    }
+
+    public ProtocolDecoder getDecoder() {
+        return decoder;
+    }
+
+    @Override
+    public void switchToBinary() {
+        decoder.switchToBinary();
+    }
+
+    public ConnectionHandler getHandler() {
+        return handler;
+    }
+
+    public void setHandler(ConnectionHandler handler) {
+        this.handler = handler;
+    }
+
+    public boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Called by the event loop once the channel has been registered with its selector.
+     */
+    void onRegistered(SelectionKey key) {
+        this.key = key;
+        handler.onConnect();
+    }
+
+    @Override
+    public boolean writeFrame(Frame frame) {
+        if (closing) {
+            return false;
+        }
+        // An event loop must never wait for another client, neither may the other shared threads.
+        if (!outbound.offer(frame, OutboundQueue.isBlockingAllowed() && !EventLoop.inAnyEventLoop())) {
+            loop.getLogger().log(LogLevel.WARN, "[SLOW CONSUMER] Disconnecting " + this);
+            closing = true;
+            loop.execute(this::closeNow);
+            return false;
+        }
+        requestFlush();
+        return true;
+    }
+
+    /**
+     * Makes sure the queued frames get written according to the flush policy. The frames are
+     * never written right away, so all frames queued while the loop handles a batch of reads
+     * end up in the same write.
+     */
+    private void requestFlush() {
+        boolean immediate = flushPolicy == FlushPolicy.IMMEDIATE
+                || (flushPolicy == FlushPolicy.SIZE && outbound.getQueuedBytes() >= flushSize);
+        if (immediate && flushPolicy != FlushPolicy.IMMEDIATE) {
+            // The buffer is full, don't wait for an already scheduled delayed flush.
+            loop.execute(flushTask);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            if (immediate) {
+                loop.execute(flushTask);
+            } else {
+                loop.schedule(flushTask, flushDelayNanos);
+            }
+        }
+    }
+
+    /**
+     * Stops decoding after the command that is being handled and stops selecting the channel
+     * for reads, the loop continues when the time is up. Called by the handler, on the event loop.
+     */
+    @Override
+    public void pauseReads(long nanos) {
+        if (closed || key == null) {
+            return;
+        }
+        decoder.pause();
+        long resumeAt = System.nanoTime() + nanos;
+        if (readsPaused) {
+            // Already waiting, wait longer if needed.
+            if (resumeAt - readsResumeAt > 0) {
+                readsResumeAt = resumeAt;
+            }
+            return;
+        }
+        readsPaused = true;
+        readsResumeAt = resumeAt;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        loop.schedule(this::resumeReads, nanos);
+    }
+
+    private void resumeReads() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        long wait = readsResumeAt - System.nanoTime();
+        if (wait > 0) {
+            loop.schedule(this::resumeReads, wait);
+            return;
+        }
+        readsPaused = false;
+        try {
+            // First handle the commands that were received before the pause, they may pause reads again.
+            if (decoder.resume(handler, this::isClosing) && !readsPaused && !closed) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            loop.getLogger().log(LogLevel.ERROR, "Server Exception: " + e.getMessage());
+            closeNow();
+        }
+    }
+
+    private int readInterest() {
+        return readsPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Closes the connection after the frames that are already queued have been written
+     * (as far as the socket accepts them without blocking).
+     */
+    @Override
+    public void close() {
+        closing = true;
+        loop.execute(() -> {
+            flush();
+            closeNow();
+        });
+    }
+
+    private void scheduledFlush() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    /**
+     * Writes queued frames until the queue is empty or the socket buffer is full. In the
+     * latter case the loop is asked to notify us when the socket becomes writable again.
+     * Up to a batch of frames is written with a single gathering write. Must be called on
+     * the event loop.
+     */
+    void flush() {
+        if (closed || key == null) {
+            return;
+        }
+        ByteBuffer[] batch = loop.getWriteBatch();
+        Frame[] batchFrames = loop.getWriteBatchFrames();
+        int count = 0;
+        try {
+            while (true) {
+                // Frames that were written partially go first, then the queued frames.
+                count = 0;
+                while (unwritten != null && !unwritten.isEmpty() && count < batch.length) {
+                    batchFrames[count] = unwrittenFrames.poll();
+                    batch[count++] = unwritten.poll();
+                }
+                Frame frame;
+                while (count < batch.length && (frame = outbound.poll()) != null) {
+                    batchFrames[count] = frame;
+                    batch[count++] = (binaryOutput ? frame.toBinary() : frame).asByteBuffer();
+                    if (frame.isSwitchToBinary()) {
+                        binaryOutput = true;
+                    }
+                }
+                if (count == 0) {
+                    key.interestOps(readInterest());
+                    return;
+                }
+
+                channel.write(batch, 0, count);
+
+                boolean socketFull = false;
+                for (int i = 0; i < count; i++) {
+                    if (batch[i].hasRemaining()) {
+                        if (unwritten == null) {
+                            unwritten = new ArrayDeque<>();
+                            unwrittenFrames = new ArrayDeque<>();
+                        }
+                        unwritten.add(batch[i]);
+                        unwrittenFrames.add(batchFrames[i]);
+                        socketFull = true;
+                    } else {
+                        batchFrames[i].release();
+                    }
+                    batch[i] = null;
+                    batchFrames[i] = null;
+                }
+                count = 0;
+                if (socketFull) {
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            loop.getLogger().log(LogLevel.ERROR, "Server Exception: " + e.getMessage());
+            for (int i = 0; i < count; i++) {
+                batch[i] = null;
+                batchFrames[i].release();
+                batchFrames[i] = null;
+            }
+            closeNow();
+        }
+    }
+
+    /**
+     * Closes the channel immediately and notifies the handler. Must be called on the event loop.
+     */
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closing = true;
+        outbound.clear();
+        if (unwrittenFrames != null) {
+            for (Frame frame : unwrittenFrames) {
+                frame.release();
+            }
+        }
+        unwritten = null;
+        unwrittenFrames = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            loop.getLogger().log(LogLevel.ERROR, "Exception when closing channel: " + e.getMessage());
+        }
+        if (handler != null) {
+            handler.onDisconnect();
+        }
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return outbound.size();
+    }
+
+    @Override
+    public String toString() {
+        return channel.socket().toString();
+    }
+}
@@ -0,0 +1,239 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of frames waiting to be written to a single client. Senders only add frames
+ * to the queue, the frames are written by the writer of the connection. This way a client
+ * that reads slowly can only fill up its own queue and never stalls the sender or the other
+ * recipients of a message.
+ * <p>
+ * The queue takes a reference to every pooled frame it keeps, the writer releases it once the
+ * frame has been written. The queue can be limited in frames and in bytes, so the memory a
+ * single connection uses is bounded no matter how large the messages are.
+ */
+public class OutboundQueue {
+
+    // Set on the threads that may wait for room in a full queue: only a thread that reads from a
+    // single client. The timing wheel, the event loops, the message store and the cluster links
+    // serve everybody and must never wait for one client.
+    private static final ThreadLocal<Boolean> BLOCKING_ALLOWED = ThreadLocal.withInitial(() -> false);
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private int queuedBytes = 0;
+    private final int capacity;
+    // Maximum total length of the queued frames, 0 for no limit.
+    private final int byteCapacity;
+    private final SlowConsumerPolicy policy;
+    private final long blockTimeoutMillis;
+    private final AsyncLogger logger;
+    private final ServerMetrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed = false;
+
+    public OutboundQueue(int capacity, int byteCapacity, SlowConsumerPolicy policy, long blockTimeoutMillis, AsyncLogger logger, ServerMetrics metrics) {
+        this.capacity = capacity;
+        this.byteCapacity = byteCapacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.logger = logger;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Allows the current thread to wait for room in a full queue, called by the thread that reads from a client.
+     */
+    public static void allowBlocking() {
+        BLOCKING_ALLOWED.set(true);
+    }
+
+    /**
+     * @return  Returns true if the current thread may wait for room in a full queue.
+     */
+    public static boolean isBlockingAllowed() {
+        return BLOCKING_ALLOWED.get();
+    }
+
+    /**
+     * Adds a frame to the queue. If the queue is full the slow consumer policy decides
+     * what happens with the frame.
+     * @param frame     The frame to be written to the client.
+     * @param mayBlock  Whether the calling thread is allowed to wait for room in the queue.
+     * @return  Returns false if the client should be disconnected because it can't keep up.
+     */
+    public boolean offer(Frame frame, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (isFull(frame)) {
+                switch (policy) {
+                    case DROP:
+                        logger.log(LogLevel.WARN, "[DROPPED] Outbound queue full");
+                        metrics.recordDroppedFrame();
+                        return true;
+                    case DISCONNECT:
+                        metrics.recordSlowConsumerDisconnect();
+                        return false;
+                    case BLOCK:
+                        if (!mayBlock || !awaitNotFull(frame)) {
+                            metrics.recordSlowConsumerDisconnect();
+                            return false;
+                        }
+                        if (closed) {
+                            return true;
+                        }
+                        break;
+                }
+            }
+            frame.retain();
+            frames.add(frame);
+            queuedBytes += frame.length();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  Returns true if the frame does not fit. A frame always fits in an empty queue, even
+     *          if it is larger than the byte capacity.
+     */
+    private boolean isFull(Frame frame) {
+        return frames.size() >= capacity
+                || (byteCapacity > 0 && !frames.isEmpty() && queuedBytes + frame.length() > byteCapacity);
+    }
+
+    private boolean awaitNotFull(Frame frame) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        try {
+            while (isFull(frame) && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return  Returns the next frame or null if the queue is empty. Never blocks. The caller
+     *          must release the frame once it has been written.
+     */
+    public Frame poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits at most the given time for the next frame.
+     * @param timeoutNanos  The maximum time to wait.
+     * @return  Returns the next frame or null if no frame arrived in time or the queue has been closed.
+     */
+    public Frame poll(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed && timeoutNanos > 0) {
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame next() {
+        Frame frame = frames.poll();
+        if (frame != null) {
+            queuedBytes -= frame.length();
+            notFull.signal();
+        }
+        return frame;
+    }
+
+    /**
+     * Waits for the next frame.
+     * @return  Returns the next frame or null once the queue has been closed and all frames
+     *          queued before closing have been taken.
+     */
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue. New frames are ignored, frames that are already queued can still be taken.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue and throws away all queued frames.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            closed = true;
+            Frame frame;
+            while ((frame = frames.poll()) != null) {
+                frame.release();
+            }
+            queuedBytes = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return  Returns the total length of the queued frames in bytes.
+     */
+    public int getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pushes the users that join, leave or rename to the clients that subscribed to the roster, instead
+ * of letting them poll ALLCLIENTS. A subscriber first receives the complete roster and after that
+ * only the changes. Changes are collected over a short window and sent as a single batch, in which
+ * only the net change of every user remains: a user that leaves and joins again within the window
+ * is not sent at all, so a reconnect storm results in one update per subscriber.
+ * <p>
+ * The roster is sent in PRESENCE lines with a token per user: +user for a user that joined this
+ * node, +user@node for a user of another node of the cluster, -user for a user that left and
+ * ~old:new for a user that logged in again under a new name. The snapshot is sent in the same
+ * lines as the changes, so a client handles both in the same way.
+ * <p>
+ * The frames are built while holding the lock of the roster and delivered after it has been
+ * released, so a slow subscriber never holds up the logins of other clients. The batches that are
+ * sent while the snapshot of a new subscriber is being delivered are kept for that subscriber and
+ * delivered after its snapshot.
+ */
+public class Presence {
+
+    /**
+     * A client that receives the changes of the roster.
+     */
+    public interface Subscriber {
+        void deliverPresence(Frame frame);
+    }
+
+    // The node of the users of this node.
+    private static final String LOCAL = "";
+
+    private final TimingWheel timer;
+    private final long windowMillis;
+    private final int maxEntriesPerLine;
+    private final ServerMetrics metrics;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    // Subscribers that are receiving their snapshot, with the batches sent in the meantime.
+    private final Map<Subscriber, List<Frame>> joining = new HashMap<>();
+    // The roster as last sent to the subscribers, username to node.
+    private final Map<String, String> published = new HashMap<>();
+    // The latest node of the users that changed in the current window, null for a user that left.
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    // The users that logged in again under a new name in the current window, new name to old name.
+    private final Map<String, String> renames = new HashMap<>();
+    private boolean flushScheduled = false;
+    // The encoded snapshot of the published roster, null when it changed since it was encoded.
+    private List<Frame> snapshot;
+
+    /**
+     * @param timer             Runs the window after which the changes are sent.
+     * @param windowMillis      The time changes are collected before they are sent.
+     * @param maxEntriesPerLine The maximum number of users in a single PRESENCE line.
+     * @param metrics           Counts the lines sent to the subscribers.
+     */
+    public Presence(TimingWheel timer, long windowMillis, int maxEntriesPerLine, ServerMetrics metrics) {
+        this.timer = timer;
+        this.windowMillis = windowMillis;
+        this.maxEntriesPerLine = maxEntriesPerLine;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reports a user that logged in on this node.
+     * @param username  The username.
+     */
+    public void joined(String username) {
+        joined(username, LOCAL);
+    }
+
+    /**
+     * Reports a user that logged in on a node.
+     * @param username  The username.
+     * @param nodeId    The id of the node of the user, empty for this node.
+     */
+    public synchronized void joined(String username, String nodeId) {
+        changed(username, nodeId);
+    }
+
+    /**
+     * Reports a user that left this node or another node.
+     * @param username  The username.
+     */
+    public synchronized void left(String username) {
+        changed(username, null);
+    }
+
+    /**
+     * Reports a user of this node that logged in again under a new name.
+     * @param oldUsername   The previous username.
+     * @param newUsername   The new username.
+     */
+    public synchronized void renamed(String oldUsername, String newUsername) {
+        changed(oldUsername, null);
+        changed(newUsername, LOCAL);
+        renames.put(newUsername, oldUsername);
+    }
+
+    private void changed(String username, String nodeId) {
+        pending.put(username, nodeId);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(this::flush, windowMillis);
+        }
+    }
+
+    /**
+     * Sends the complete roster to a client, after a +OK line with the number of users, and adds it
+     * to the subscribers. A client that is already subscribed receives the roster again. Changes made
+     * after the snapshot are sent in the batches after it, the batches sent while the snapshot is
+     * delivered are kept and delivered once the snapshot has been delivered.
+     * @param subscriber    The client, delivered to on the calling thread.
+     */
+    public void subscribe(Subscriber subscriber) {
+        List<Frame> frames = new ArrayList<>();
+        synchronized (this) {
+            if (snapshot == null) {
+                List<String> entries = new ArrayList<>(published.size());
+                for (Map.Entry<String, String> user : published.entrySet()) {
+                    entries.add(entry(user.getKey(), user.getValue()));
+                }
+                snapshot = encode(entries);
+            }
+            frames.add(Frame.of("+OK SUBSCRIBE " + published.size()));
+            frames.addAll(snapshot);
+            subscribers.remove(subscriber);
+            joining.put(subscriber, new ArrayList<>());
+        }
+        while (true) {
+            for (Frame frame : frames) {
+                subscriber.deliverPresence(frame);
+            }
+            synchronized (this) {
+                List<Frame> kept = joining.get(subscriber);
+                if (kept == null) {
+                    // Unsubscribed in the meantime.
+                    return;
+                }
+                if (kept.isEmpty()) {
+                    joining.remove(subscriber);
+                    subscribers.add(subscriber);
+                    return;
+                }
+                frames = kept;
+                joining.put(subscriber, new ArrayList<>());
+            }
+        }
+    }
+
+    /**
+     * Stops sending the changes to a client.
+     * @param subscriber    The client.
+     * @return  Returns true if the client was subscribed.
+     */
+    public synchronized boolean unsubscribe(Subscriber subscriber) {
+        return subscribers.remove(subscriber) | joining.remove(subscriber) != null;
+    }
+
+    /**
+     * Sends the net changes of the window to the subscribers, runs on the timing wheel.
+     */
+    private void flush() {
+        List<Frame> batch;
+        List<Subscriber> recipients;
+        synchronized (this) {
+            flushScheduled = false;
+            List<String> entries = new ArrayList<>();
+            // A rename is only sent as such if the old name is gone and the new name is new, otherwise as a leave and a join.
+            for (Map.Entry<String, String> rename : renames.entrySet()) {
+                String newUsername = rename.getKey();
+                String oldUsername = rename.getValue();
+                if (LOCAL.equals(pending.get(newUsername)) && !published.containsKey(newUsername)
+                        && pending.containsKey(oldUsername) && pending.get(oldUsername) == null
+                        && LOCAL.equals(published.get(oldUsername))) {
+                    entries.add("~" + oldUsername + ":" + newUsername);
+                    published.remove(oldUsername);
+                    published.put(newUsername, LOCAL);
+                    pending.remove(oldUsername);
+                    pending.remove(newUsername);
+                }
+            }
+            renames.clear();
+            for (Map.Entry<String, String> change : pending.entrySet()) {
+                String username = change.getKey();
+                String nodeId = change.getValue();
+                if (Objects.equals(published.get(username), nodeId)) {
+                    // Left and joined again, or the other way around, within the window.
+                    continue;
+                }
+                if (nodeId == null) {
+                    published.remove(username);
+                    entries.add("-" + username);
+                } else {
+                    published.put(username, nodeId);
+                    entries.add(entry(username, nodeId));
+                }
+            }
+            pending.clear();
+            if (entries.isEmpty()) {
+                return;
+            }
+            snapshot = null;
+            if (subscribers.isEmpty() && joining.isEmpty()) {
+                return;
+            }
+            batch = encode(entries);
+            recipients = new ArrayList<>(subscribers);
+            for (List<Frame> kept : joining.values()) {
+                kept.addAll(batch);
+            }
+        }
+        // The subscribers share the frames of the batch. This runs on the timing wheel, which never
+        // waits for a full queue: a subscriber that can't keep up is disconnected.
+        for (Subscriber subscriber : recipients) {
+            for (Frame frame : batch) {
+                subscriber.deliverPresence(frame);
+            }
+        }
+        metrics.recordPresenceUpdates((long) recipients.size() * batch.size());
+    }
+
+    private static String entry(String username, String nodeId) {
+        return nodeId.isEmpty() ? "+" + username : "+" + username + "@" + nodeId;
+    }
+
+    /**
+     * Encodes the entries in PRESENCE lines of at most the maximum number of entries.
+     */
+    private List<Frame> encode(List<String> entries) {
+        List<Frame> frames = new ArrayList<>(entries.size() / maxEntriesPerLine + 1);
+        StringBuilder line = new StringBuilder("PRESENCE");
+        int count = 0;
+        for (String entry : entries) {
+            line.append(' ').append(entry);
+            if (++count == maxEntriesPerLine) {
+                frames.add(Frame.of(line.toString()));
+                line.setLength("PRESENCE".length());
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            frames.add(Frame.of(line.toString()));
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,107 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Decodes the bytes received on a connection into commands for its handler. A connection
+ * starts with the line protocol and can switch to binary frames once (see {@link BinaryCodec}).
+ * The switch can happen halfway a buffer, the bytes after the BINARY command are decoded as frames.
+ * <p>
+ * The handler can pause decoding, for example when a client exceeds its rate limit. The bytes after
+ * the command that is being handled are then held until the connection calls {@link #resume}.
+ */
+public class ProtocolDecoder {
+
+    private final LineDecoder lineDecoder = new LineDecoder();
+    // Null as long as the connection uses the line protocol.
+    private BinaryCodec binaryCodec;
+    private boolean paused = false;
+    // Bytes that were received but not decoded because decoding was paused, null if none.
+    private byte[] held;
+
+    /**
+     * Decodes all complete lines or frames in the buffer and passes them to the handler.
+     * @param buffer    The buffer to read from, must be backed by an array.
+     * @param handler   Receives the commands.
+     * @param closing   Tells whether the connection is being closed, everything received after that is ignored.
+     * @throws IOException  When the client sends a line or frame that is too long or invalid.
+     */
+    public void decode(ByteBuffer buffer, ConnectionHandler handler, BooleanSupplier closing) throws IOException {
+        if (binaryCodec == null) {
+            lineDecoder.decode(buffer, (line, length) -> {
+                if (!closing.getAsBoolean()) {
+                    handler.onLine(line, length);
+                }
+            });
+        }
+        if (binaryCodec != null && buffer.hasRemaining()) {
+            decodeFrames(buffer, handler, closing);
+        }
+        if (paused && buffer.hasRemaining()) {
+            // The binary codec keeps its own remaining frames, only the line decoder leaves bytes behind.
+            int length = buffer.remaining();
+            int offset = held == null ? 0 : held.length;
+            held = held == null ? new byte[length] : Arrays.copyOf(held, offset + length);
+            buffer.get(held, offset, length);
+        }
+    }
+
+    private void decodeFrames(ByteBuffer buffer, ConnectionHandler handler, BooleanSupplier closing) throws IOException {
+        binaryCodec.decode(buffer, (opcode, fields, length) -> {
+            if (!closing.getAsBoolean()) {
+                handler.onMessage(new Message(Message.MessageType.fromOpcode(opcode), fields), length);
+            }
+        });
+    }
+
+    /**
+     * Stops decoding after the command that is being handled, the connection must stop reading
+     * until it calls {@link #resume}. Must be called by the handler, on the thread that decodes.
+     */
+    public void pause() {
+        paused = true;
+        lineDecoder.pause();
+        if (binaryCodec != null) {
+            binaryCodec.pause();
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Decodes the commands that were held while decoding was paused. The handler can pause
+     * decoding again, in which case the rest stays held.
+     * @param handler   Receives the commands.
+     * @param closing   Tells whether the connection is being closed.
+     * @return  Returns true if all held commands have been decoded and the connection can read again.
+     * @throws IOException  When the client sent a line or frame that is too long or invalid.
+     */
+    public boolean resume(ConnectionHandler handler, BooleanSupplier closing) throws IOException {
+        paused = false;
+        if (held != null) {
+            ByteBuffer buffer = ByteBuffer.wrap(held);
+            held = null;
+            decode(buffer, handler, closing);
+        } else if (binaryCodec != null) {
+            // The binary codec holds the frames after the one it paused at, an empty buffer makes it decode them.
+            decodeFrames(ByteBuffer.allocate(0), handler, closing);
+        }
+        return !paused;
+    }
+
+    /**
+     * Decodes everything after the line that is being handled as binary frames. Must be called
+     * by the handler, on the thread that decodes.
+     */
+    public void switchToBinary() {
+        if (binaryCodec == null) {
+            binaryCodec = new BinaryCodec();
+            lineDecoder.stop();
+        }
+    }
+}
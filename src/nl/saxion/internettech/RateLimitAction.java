@@ -0,0 +1,13 @@
+package nl.saxion.internettech;
+
+/**
+ * What to do with a command of a client that exceeds its rate limit or the fan-out budget of the server.
+ */
+public enum RateLimitAction {
+    // Refuse the command with an -ERR that tells the client when it may try again.
+    ERROR,
+    // Handle the command, but stop reading from the client until it is back within its rate.
+    DELAY,
+    // Refuse the command and disconnect the client.
+    DISCONNECT
+}
@@ -0,0 +1,379 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reliable delivery for clients that can't afford to miss a message. In reliable mode every line
+ * sent to the client is numbered and carries a checksum (see {@link Frame#sequenced}), so the client
+ * can detect lost, corrupted and reordered messages. The client acknowledges what it received with
+ * ACK &lt;n&gt;, optionally followed by the ranges it received after a gap: ACK 7 9-12,15-15. The
+ * server keeps the messages that have not been acknowledged yet in the retransmit window of the
+ * session and sends them again when a later message has been acknowledged before them, or when
+ * they have not been acknowledged within the retransmit timeout.
+ * <p>
+ * When the connection is lost the session is kept for a while. A client that logs in again under
+ * the same username resumes it with RELIABLE &lt;n&gt;, where n is the last message it received:
+ * only the messages after n are sent again. The retransmit windows are bounded per session and
+ * for all sessions together, a session that exceeds its bounds is ended and its client disconnected.
+ */
+public class ReliableDelivery {
+
+    private final ServerConfiguration conf;
+    private final TimingWheel timer;
+    private final BufferPool buffers;
+    private final AsyncLogger logger;
+    private final ServerMetrics metrics;
+    // Sessions of clients that lost their connection, indexed by username, until they expire.
+    private final ConcurrentMap<String, Session> detached = new ConcurrentHashMap<>();
+    // Bytes of all messages in the retransmit windows.
+    private final AtomicLong windowBytes = new AtomicLong();
+    private final long retransmitNanos;
+
+    public ReliableDelivery(ServerConfiguration conf, TimingWheel timer, BufferPool buffers, AsyncLogger logger, ServerMetrics metrics) {
+        this.conf = conf;
+        this.timer = timer;
+        this.buffers = buffers;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.retransmitNanos = TimeUnit.MILLISECONDS.toNanos(conf.RELIABLE_RETRANSMIT_MS);
+    }
+
+    /**
+     * Starts reliable mode for a client, resuming the session it had before it lost its connection if possible.
+     * @param username  The username of the client.
+     * @param output    The connection the messages are written to.
+     * @param acked     The last message the client received in its previous session, or -1 for a new session.
+     * @return  Returns the session, positioned after the last message the client received. The
+     *          messages after it are sent again by {@link Session#resendUnacked()}.
+     */
+    public Session start(String username, ClientConnection output, long acked) {
+        Session previous = detached.remove(username);
+        if (previous != null) {
+            synchronized (previous) {
+                if (acked >= previous.acked && acked <= previous.sent) {
+                    previous.attach(new SerialOutput(output), acked);
+                    return previous;
+                }
+                // The client asks for messages that are no longer in the window, it has to start over.
+                previous.discard();
+            }
+        }
+        return new Session(username, output);
+    }
+
+    /**
+     * Parses the ranges of an acknowledgement, first-last,first-last. The ranges must be in order
+     * and every range must start after a gap, so they can't overlap each other or the cumulative part.
+     * @param cumulative    The last message before the first gap.
+     * @param text          The ranges.
+     * @return  Returns the ranges as pairs of first and last.
+     * @throws NumberFormatException    When the ranges are invalid, overlap or are out of order.
+     */
+    public static long[] parseRanges(long cumulative, String text) {
+        String[] parts = text.split(",");
+        long[] ranges = new long[parts.length * 2];
+        long previous = cumulative;
+        for (int i = 0; i < parts.length; i++) {
+            int dash = parts[i].indexOf('-');
+            if (dash < 0) {
+                throw new NumberFormatException("Range without a dash: " + parts[i]);
+            }
+            ranges[2 * i] = Long.parseLong(parts[i].substring(0, dash));
+            ranges[2 * i + 1] = Long.parseLong(parts[i].substring(dash + 1));
+            if (ranges[2 * i] <= previous + 1 || ranges[2 * i + 1] < ranges[2 * i]) {
+                throw new NumberFormatException("Range out of order: " + parts[i]);
+            }
+            previous = ranges[2 * i + 1];
+        }
+        return ranges;
+    }
+
+    /**
+     * @return  Returns the bytes of all messages in the retransmit windows.
+     */
+    public long getWindowBytes() {
+        return windowBytes.get();
+    }
+
+    /**
+     * A message in the retransmit window.
+     */
+    private static final class Sent {
+        final Frame frame;
+        // When the message was sent for the last time.
+        long sentNanos;
+
+        Sent(Frame frame, long sentNanos) {
+            this.frame = frame;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    /**
+     * The sequence numbers and the retransmit window of a single client. Messages are numbered
+     * from 1, the window holds the messages from acked + 1 up to and including sent.
+     * <p>
+     * Messages are numbered and added to the window under the lock of the session and written to
+     * the connection after releasing it, in the same order. A sender that waits for room in the queue
+     * of the client never holds the lock, so the timing wheel never waits for it.
+     */
+    public final class Session {
+        private final String username;
+        // Null while the session is detached.
+        private SerialOutput output;
+        private final ArrayDeque<Sent> window = new ArrayDeque<>();
+        private long acked = 0;
+        private long sent = 0;
+        private long bytes = 0;
+        private TimingWheel.Timeout retransmitTimeout;
+        private TimingWheel.Timeout expireTimeout;
+        // Set when the session exceeded its bounds or ended, it can't be resumed anymore.
+        private boolean ended = false;
+
+        private Session(String username, ClientConnection output) {
+            this.username = username;
+            this.output = new SerialOutput(output);
+        }
+
+        /**
+         * @return  Returns the last message the client acknowledged.
+         */
+        public synchronized long getAcked() {
+            return acked;
+        }
+
+        /**
+         * Numbers a message, keeps it in the retransmit window and writes it to the client.
+         * @param payload   The text frame of the message, it is not kept by the session.
+         * @return  Returns the number of bytes written, 0 while the session is detached, or -1 if the
+         *          session has ended because the window is full or the client could not keep up with
+         *          its retransmits. The message is then lost and the client must be disconnected.
+         */
+        public int send(Frame payload) {
+            SerialOutput out;
+            int length;
+            synchronized (this) {
+                if (ended) {
+                    return -1;
+                }
+                if (output == null) {
+                    return 0;
+                }
+                Frame frame = Frame.sequenced(sent + 1, payload, buffers, conf.isUseEventLoop());
+                long total = windowBytes.addAndGet(frame.length());
+                if (window.size() >= conf.getReliableWindow() || bytes + frame.length() > conf.getReliableWindowMemory()
+                        || (conf.getReliableMemory() > 0 && total > conf.getReliableMemory())) {
+                    windowBytes.addAndGet(-frame.length());
+                    frame.release();
+                    metrics.recordReliableOverflow();
+                    logger.log(LogLevel.WARN, "[RELIABLE] Retransmit window of " + username + " is full");
+                    discard();
+                    return -1;
+                }
+                sent++;
+                bytes += frame.length();
+                // The window holds the reference of the creator.
+                window.add(new Sent(frame, System.nanoTime()));
+                output.add(frame);
+                if (retransmitTimeout == null) {
+                    retransmitTimeout = timer.schedule(this::retransmitExpired, conf.RELIABLE_RETRANSMIT_MS);
+                }
+                out = output;
+                length = frame.length();
+            }
+            flush(out);
+            return length;
+        }
+
+        /**
+         * Handles an acknowledgement of the client.
+         * @param cumulative    The last message before the first gap.
+         * @param ranges        The ranges of messages received after the gap, pairs of first and last, in order.
+         * @return  Returns false if the client acknowledged messages that have not been sent.
+         */
+        public boolean ack(long cumulative, long[] ranges) {
+            SerialOutput out;
+            synchronized (this) {
+                long highest = ranges.length == 0 ? cumulative : ranges[ranges.length - 1];
+                if (cumulative > sent || highest > sent) {
+                    return false;
+                }
+                if (cumulative < acked) {
+                    // An older acknowledgement that arrived late.
+                    return true;
+                }
+                removeAcked(cumulative);
+                if (ranges.length == 0 || output == null) {
+                    return true;
+                }
+
+                // A message that was sent before a message the client did receive is lost, unless it
+                // has been sent again since. Messages in the ranges no longer have to be sent again.
+                long latestReceived = window.isEmpty() ? 0 : get(highest).sentNanos;
+                long now = System.nanoTime();
+                int range = 0;
+                long sequence = acked + 1;
+                for (Sent message : window) {
+                    if (sequence > highest) {
+                        break;
+                    }
+                    while (range < ranges.length && sequence > ranges[range + 1]) {
+                        range += 2;
+                    }
+                    boolean received = range < ranges.length && sequence >= ranges[range];
+                    if (!received && message.sentNanos - latestReceived < 0) {
+                        resend(message, now);
+                    }
+                    sequence++;
+                }
+                out = output;
+            }
+            flush(out);
+            return true;
+        }
+
+        private Sent get(long sequence) {
+            Iterator<Sent> messages = window.iterator();
+            for (long i = acked + 1; i < sequence; i++) {
+                messages.next();
+            }
+            return messages.next();
+        }
+
+        private void removeAcked(long cumulative) {
+            while (acked < cumulative) {
+                Sent message = window.poll();
+                acked++;
+                bytes -= message.frame.length();
+                windowBytes.addAndGet(-message.frame.length());
+                message.frame.release();
+            }
+        }
+
+        private void resend(Sent message, long now) {
+            message.sentNanos = now;
+            metrics.recordRetransmit();
+            output.add(message.frame);
+        }
+
+        /**
+         * Writes the messages added to the output, outside the lock of the session.
+         * @param out   The output the messages were added to.
+         */
+        private void flush(SerialOutput out) {
+            if (!out.flush()) {
+                // The queue of the client is full, it can't keep up with its messages.
+                synchronized (this) {
+                    if (output == out) {
+                        logger.log(LogLevel.WARN, "[RELIABLE] Messages to " + username + " do not fit in its queue");
+                        discard();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs on the timing wheel, sends the messages again that were not acknowledged in time.
+         * The wheel never waits for a full queue, a client whose queue is full loses its session.
+         */
+        private void retransmitExpired() {
+            SerialOutput out;
+            synchronized (this) {
+                retransmitTimeout = null;
+                if (output == null || window.isEmpty()) {
+                    return;
+                }
+                long now = System.nanoTime();
+                for (Sent message : window) {
+                    if (now - message.sentNanos >= retransmitNanos) {
+                        resend(message, now);
+                    }
+                }
+                retransmitTimeout = timer.schedule(this::retransmitExpired, conf.RELIABLE_RETRANSMIT_MS);
+                out = output;
+            }
+            flush(out);
+        }
+
+        /**
+         * Continues the session on a new connection.
+         */
+        private void attach(SerialOutput output, long acked) {
+            expireTimeout.cancel();
+            this.output = output;
+            removeAcked(acked);
+        }
+
+        /**
+         * Sends all messages that have not been acknowledged again, after the session has been resumed.
+         */
+        public void resendUnacked() {
+            SerialOutput out;
+            synchronized (this) {
+                if (output == null || window.isEmpty()) {
+                    return;
+                }
+                long now = System.nanoTime();
+                for (Sent message : window) {
+                    resend(message, now);
+                }
+                if (retransmitTimeout == null) {
+                    retransmitTimeout = timer.schedule(this::retransmitExpired, conf.RELIABLE_RETRANSMIT_MS);
+                }
+                out = output;
+            }
+            flush(out);
+        }
+
+        /**
+         * Keeps the session after the client lost its connection, until the client resumes it or it expires.
+         */
+        public synchronized void detach() {
+            if (ended) {
+                return;
+            }
+            output = null;
+            if (retransmitTimeout != null) {
+                retransmitTimeout.cancel();
+                retransmitTimeout = null;
+            }
+            Session previous = detached.put(username, this);
+            if (previous != null && previous != this) {
+                previous.end();
+            }
+            expireTimeout = timer.schedule(this::expire, conf.getResumeTimeoutMillis());
+        }
+
+        private void expire() {
+            if (detached.remove(username, this)) {
+                end();
+            }
+        }
+
+        /**
+         * Ends the session and releases its retransmit window.
+         */
+        public synchronized void end() {
+            discard();
+        }
+
+        private void discard() {
+            ended = true;
+            output = null;
+            if (retransmitTimeout != null) {
+                retransmitTimeout.cancel();
+                retransmitTimeout = null;
+            }
+            removeAcked(sent);
+        }
+
+        public synchronized boolean isEnded() {
+            return ended;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package nl.saxion.internettech;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer, used to hand work to a
+ * background writer without making the producer wait. The entries are created up front and
+ * reused, a producer claims a slot, fills its entry and publishes it. When the queue is full
+ * the producer does not get a slot, the entry is then dropped and counted.
+ * <p>
+ * A slot may be claimed when its sequence equals the claimed position and read when it
+ * equals position + 1. After reading, the consumer sets it to the position of the next lap.
+ * @param <E>   The type of the entries.
+ */
+public class RingBuffer<E> {
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Object[] entries;
+    private final AtomicLong tail = new AtomicLong();
+    // Only used by the consumer.
+    private long head = 0;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity  The number of entries, rounded up to a power of two so the slot index is a simple mask.
+     * @param factory   Creates the entries.
+     */
+    public RingBuffer(int capacity, Supplier<E> factory) {
+        capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        this.entries = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+            entries[i] = factory.get();
+        }
+    }
+
+    /**
+     * Claims a slot for a producer.
+     * @return  Returns the position of the slot, or -1 if the queue is full and the entry is dropped.
+     */
+    public long claim() {
+        long position = tail.get();
+        while (true) {
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer is a full lap behind, drop the entry rather than wait.
+                dropped.incrementAndGet();
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @param position  A position returned by {@link #claim}.
+     * @return  Returns the entry of the claimed slot, to be filled before it is published.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(long position) {
+        return (E) entries[(int) position & mask];
+    }
+
+    /**
+     * Hands a filled entry to the consumer.
+     * @param position  A position returned by {@link #claim}.
+     */
+    public void publish(long position) {
+        sequences.set((int) position & mask, position + 1);
+    }
+
+    /**
+     * Called by the consumer only.
+     * @return  Returns the oldest published entry, or null if there is none. The entry stays
+     *          in the queue until {@link #release} is called.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        int index = (int) head & mask;
+        return sequences.get(index) == head + 1 ? (E) entries[index] : null;
+    }
+
+    /**
+     * Frees the slot of the entry returned by {@link #peek}, so producers can reuse it.
+     * Called by the consumer only.
+     */
+    public void release() {
+        sequences.set((int) head & mask, head + mask + 1);
+        head++;
+    }
+
+    /**
+     * @return  Returns the number of entries dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
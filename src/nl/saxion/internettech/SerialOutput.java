@@ -0,0 +1,99 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayDeque;
+
+/**
+ * Passes frames to a connection in the order they were added, without holding the lock under which
+ * they were added. Code that must keep the order of its frames, like a deflate stream or a retransmit
+ * window, adds them while it holds its own lock and calls {@link #flush} after releasing it. Writing
+ * can wait for room in the queue of a slow client (see {@link OutboundQueue#isBlockingAllowed()}), a
+ * shared thread like the timing wheel would otherwise wait for the lock of a thread that waits.
+ * <p>
+ * One thread writes at a time. A thread that flushes while another thread is writing leaves its
+ * frames to that thread and returns right away.
+ */
+public class SerialOutput {
+
+    private final ClientConnection connection;
+    // Frames that have been added but not written yet, with a reference of their own.
+    private final ArrayDeque<Frame> pending = new ArrayDeque<>();
+    private boolean writing = false;
+    private boolean closing = false;
+    // Set once the connection refused a frame, it is then being closed.
+    private volatile boolean refused = false;
+
+    public SerialOutput(ClientConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Adds a frame to be written by the next flush. The output takes its own reference to a pooled frame.
+     * @param frame The frame to be written.
+     */
+    public synchronized void add(Frame frame) {
+        frame.retain();
+        pending.add(frame);
+    }
+
+    /**
+     * Closes the connection once the frames added before have been written by the next flush.
+     */
+    public synchronized void close() {
+        closing = true;
+    }
+
+    /**
+     * Writes the frames that have been added, unless another thread is writing them already.
+     * @return  Returns false if the connection refused a frame, the client can't keep up and
+     *          the connection is being closed.
+     */
+    public boolean flush() {
+        synchronized (this) {
+            if (writing) {
+                return !refused;
+            }
+            writing = true;
+        }
+        boolean close = false;
+        boolean done = false;
+        try {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = pending.poll();
+                    if (frame == null) {
+                        writing = false;
+                        close = closing;
+                        closing = false;
+                        break;
+                    }
+                }
+                try {
+                    if (!connection.writeFrame(frame)) {
+                        refused = true;
+                    }
+                } finally {
+                    frame.release();
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    writing = false;
+                }
+            }
+        }
+        if (close) {
+            connection.close();
+        }
+        return !refused;
+    }
+
+    /**
+     * @return  Returns the number of frames that have been added but not written yet.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+}
@@ -1,24 +1,104 @@
 package nl.saxion.internettech;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Random;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 import static nl.saxion.internettech.ServerState.*;
 
 public class Server {
+    // Size of the read buffer of a client thread, only used in thread per connection mode.
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Time to wait after a failed accept before accepting again.
+    private static final long ACCEPT_RETRY_DELAY_NANOS = 100_000_000L;
+
     //A static array to hold all connected clients to the server
     private ServerSocket serverSocket;
     private Set<ClientThread> threads;
+    // Index of logged in clients by username, used for constant time lookups.
+    private ConcurrentMap<String, ClientThread> users;
     private ServerConfiguration conf;
-    private ArrayList<ClientThreadGroup> clientGroups;
-    //An arraylist to hold the groups that are going to be created
+    // Groups indexed by their name in lower case, group names are case insensitive.
+    private ConcurrentMap<String, ClientThreadGroup> clientGroups;
+    private ThreadFactory threadFactory;
+    private AsyncLogger logger;
+    private ServerMetrics metrics;
+    // The link to the other nodes of the cluster, null when the server runs stand-alone.
+    private ClusterNode cluster;
+    // Users logged in on other nodes of the cluster, indexed by username, with the id of their node.
+    private ConcurrentMap<String, String> remoteUsers;
+    // Log of the private and group messages, null when no messages are kept.
+    private MessageStore store;
+    // Snapshots of the users and groups for ALLCLIENTS and ALLGROUPS, rebuilt when they are requested after a change.
+    private Listing clientListing;
+    private Listing groupListing;
+    // Pushes the changes of the roster to the clients that subscribed to it.
+    private Presence presence;
+    // Runs the timers of the server and injects the faults of the bad server modes.
+    private TimingWheel timer;
+    private FaultInjector faults;
+    // Budget for the messages all clients together cause to be delivered to other clients, null for no limit.
+    private TokenBucket fanoutLimit;
+    // Buffers of the messages sent to the clients and of the reads of the client threads.
+    private BufferPool buffers;
+    // Decides which new connections are served.
+    private AdmissionControl admission;
+    // Numbers and retransmits the messages of the clients in reliable mode.
+    private ReliableDelivery reliability;
+    // Records the traffic of the clients, null when no traffic is captured.
+    private TrafficCapture capture;
+    // Compresses the messages to the clients that asked for it.
+    private Compression compression;
+    private final AtomicLong connectionIds = new AtomicLong();
+
     public Server(ServerConfiguration conf) {
         this.conf = conf;
+        this.logger = new AsyncLogger(conf);
+        this.clientGroups = new ConcurrentHashMap<>();
+        this.threads = ConcurrentHashMap.newKeySet();
+        this.users = new ConcurrentHashMap<>();
+        this.threadFactory = createThreadFactory();
+        this.metrics = new ServerMetrics(() -> threads.size(), () -> clientGroups.size(), this::countQueuedFrames, logger::getDroppedCount,
+                () -> buffers.getUsedBytes(), () -> reliability.getWindowBytes());
+        this.buffers = new BufferPool(conf.getBufferMemory(), conf.BUFFER_POOL_RETAINED_BYTES, conf.doDetectLeaks(), logger, metrics);
+        this.admission = new AdmissionControl(conf, buffers);
+        this.remoteUsers = new ConcurrentHashMap<>();
+        this.timer = new TimingWheel(conf.TIMER_TICK_MS, conf.TIMER_WHEEL_SIZE, logger);
+        this.faults = new FaultInjector(conf, timer, logger, metrics);
+        this.reliability = new ReliableDelivery(conf, timer, buffers, logger, metrics);
+        this.compression = new Compression(conf.getCompressionThreshold(), buffers, conf.isUseEventLoop(), metrics);
+        this.presence = new Presence(timer, conf.getPresenceWindowMillis(), conf.PRESENCE_MAX_LINE_ENTRIES, metrics);
+        if (conf.getFanoutRate() > 0) {
+            // The budget can be used up in a second, a single broadcast to more clients takes the whole budget.
+            this.fanoutLimit = new TokenBucket(conf.getFanoutRate(), (int) Math.max(1, conf.getFanoutRate()));
+        }
+        this.clientListing = new Listing(this::collectClients, "+OK ");
+        this.groupListing = new Listing(this::collectGroups, "+OK");
+        if (conf.getClusterPort() > 0) {
+            this.cluster = new ClusterNode(conf, logger, metrics, new ClusterEvents());
+        }
+        if (conf.getStoreDirectory() != null) {
+            this.store = new MessageStore(conf, logger);
+        }
     }
 
     /**
@@ -26,54 +106,487 @@ public class Server {
      * by opening a socket on a specific port.
      */
     public void run() {
-        clientGroups = new ArrayList<>();
-        // Create a socket to wait for clients.
+        startMetrics();
+        if (store != null) {
+            try {
+                store.open();
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Failed to open message store: " + e.getMessage());
+                return;
+            }
+        }
+        if (conf.getCaptureFile() != null) {
+            try {
+                capture = new TrafficCapture(conf.getCaptureFile(), conf.CAPTURE_BUFFER_SIZE, logger);
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Failed to open traffic capture: " + e.getMessage());
+                return;
+            }
+        }
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Failed to start cluster node: " + e.getMessage());
+                return;
+            }
+        }
+        if (conf.isUseEventLoop()) {
+            runEventLoops();
+        } else {
+            runThreadPerConnection();
+        }
+    }
+
+    /**
+     * Makes the metrics available over JMX and, if configured, over HTTP.
+     */
+    private void startMetrics() {
         try {
-            serverSocket = new ServerSocket(conf.SERVER_PORT);
-            threads = new HashSet<>();
+            metrics.registerMBean();
+            if (conf.getMetricsPort() > 0) {
+                metrics.startHttpEndpoint(conf.getMetricsPort());
+            }
+        } catch (Exception e) {
+            logger.log(LogLevel.ERROR, "Failed to start metrics: " + e.getMessage());
+        }
+    }
 
-            while (true) {
-                // Wait for an incoming client-connection request (blocking).
-                Socket socket = serverSocket.accept();
+    /**
+     * Collects the users that are logged in on this node or on another node of the cluster. The
+     * clients that have connected but not logged in yet are only in the complete listing, as
+     * "Username: null", like the original server listed them.
+     */
+    private void collectClients(Consumer<Listing.Item> items) {
+        for (Map.Entry<String, ClientThread> user : users.entrySet()) {
+            String username = user.getKey();
+            // Skip usernames that are still being claimed in the cluster.
+            if (username.equals(user.getValue().getUsername())) {
+                items.accept(new Listing.Item(username,
+                        "Username: " + username + " is connected to the server. Socket: " + user.getValue().connection.toString(),
+                        "CLIENT " + username));
+            }
+        }
+        for (Map.Entry<String, String> remoteUser : remoteUsers.entrySet()) {
+            items.accept(new Listing.Item(remoteUser.getKey(),
+                    "Username: " + remoteUser.getKey() + " is connected to node " + remoteUser.getValue() + ".",
+                    "CLIENT " + remoteUser.getKey() + " " + remoteUser.getValue()));
+        }
+        for (ClientThread ct : threads) {
+            if (ct.getUsername() == null) {
+                items.accept(new Listing.Item(null,
+                        "Username: null is connected to the server. Socket: " + ct.connection.toString(), null));
+            }
+        }
+    }
+
+    /**
+     * Collects the groups with their number of participants.
+     */
+    private void collectGroups(Consumer<Listing.Item> items) {
+        for (ClientThreadGroup group : clientGroups.values()) {
+            int size = group.getGroupSize();
+            items.accept(new Listing.Item(group.getName(),
+                    "Group: " + group.getName() + ", has " + size + " participants. \n",
+                    "GROUP " + group.getName() + " " + size));
+        }
+    }
+
+    /**
+     * @return  Returns the total number of frames waiting to be written to all clients.
+     */
+    private int countQueuedFrames() {
+        int queued = 0;
+        for (ClientThread ct : threads) {
+            queued += ct.output.getQueuedFrames();
+        }
+        return queued;
+    }
+
+    /**
+     * Adds a client that talks to the server through the given connection instead of a socket
+     * accepted by the server. The caller passes every line of the client to the returned
+     * handler. Used to run the server in-process, e.g. by the benchmarks.
+     * @param connection    The connection used to write to the client.
+     * @return  Returns the handler for the lines received from the client.
+     */
+    public ConnectionHandler connect(ClientConnection connection) {
+        ClientThread ct = addClient(connection, null);
+        ct.onConnect();
+        return ct;
+    }
+
+    /**
+     * Creates the client thread for a new connection and adds it to the list of client threads.
+     * @param connection    The connection of the client.
+     * @param address       The address of an admitted client, released when the client is removed, or null.
+     */
+    private ClientThread addClient(ClientConnection connection, InetAddress address) {
+        ClientThread ct = new ClientThread(connection, address);
+        threads.add(ct);
+        clientListing.changed();
+        metrics.recordAccept();
+        logger.log(LogLevel.INFO, "Num clients: " + threads.size());
+
+        // Simulate lost connections if configured, the client is dropped by the timer.
+        faults.scheduleDisconnect(() -> {
+            metrics.recordInjectedDisconnect();
+            ct.kill();
+            logger.log(LogLevel.INFO, "Num clients: " + threads.size());
+        });
+        return ct;
+    }
+
+    /**
+     * @param groupName The name of a group.
+     * @return  Returns the key of the group in the group index.
+     */
+    private static String groupKey(String groupName) {
+        return groupName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Creates the factory used for client and drop client threads. Uses virtual threads if
+     * configured and supported by the JVM, platform threads otherwise.
+     */
+    private ThreadFactory createThreadFactory() {
+        if (conf.isUseVirtualThreads()) {
+            ThreadFactory factory = VirtualThreads.newFactory();
+            if (factory != null) {
+                return factory;
+            }
+            logger.log(LogLevel.WARN, "[WARNING] Virtual threads require Java 21 or later, using platform threads");
+        }
+        return Thread::new;
+    }
 
-                // When a new connection has been established, start a new thread.
-                ClientThread ct = new ClientThread(socket);
-                threads.add(ct);
-                new Thread(ct).start();
-                System.out.println("Num clients: " + threads.size());
+    /**
+     * Encodes a message to clients into a pooled buffer, direct when the event loops write it.
+     * @param line  The message.
+     * @return  Returns the frame, which must be released once it has been written to all recipients.
+     */
+    private Frame encode(String line) {
+        return Frame.of(line, buffers, conf.isUseEventLoop());
+    }
 
-                // Simulate lost connections if configured.
-                if(conf.doSimulateConnectionLost()){
-                    DropClientThread dct = new DropClientThread(ct);
-                    new Thread(dct).start();
+    private OutboundQueue createOutboundQueue() {
+        return new OutboundQueue(conf.getOutboundQueueSize(), conf.getConnectionMemory(), conf.getSlowConsumerPolicy(), conf.SLOW_CONSUMER_BLOCK_TIMEOUT_MS, logger, metrics);
+    }
+
+    /**
+     * Accepts connections on a blocking server socket and starts a thread for every client.
+     */
+    private void runThreadPerConnection() {
+        // Create a socket to wait for clients.
+        try {
+            serverSocket = new ServerSocket();
+            if (conf.getReceiveBufferSize() > 0) {
+                // Set before binding, accepted sockets inherit it and the OS can then offer a window above 64 KB.
+                serverSocket.setReceiveBufferSize(conf.getReceiveBufferSize());
+            }
+            serverSocket.bind(new InetSocketAddress(conf.getServerPort()), conf.getAcceptBacklog());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        runAcceptors(() -> {
+            // Wait for an incoming client-connection request (blocking).
+            Socket socket = serverSocket.accept();
+            String refused = admission.admit(socket.getInetAddress());
+            if (refused != null) {
+                refuse(socket.getInetAddress(), refused);
+                try (socket) {
+                    socket.getOutputStream().write(AdmissionControl.BUSY);
                 }
+                return;
+            }
+            socket.setTcpNoDelay(conf.isTcpNoDelay());
+            if (conf.getSendBufferSize() > 0) {
+                socket.setSendBufferSize(conf.getSendBufferSize());
             }
+
+            // When a new connection has been established, start a new thread.
+            SocketConnection connection = new SocketConnection(socket, createOutboundQueue(), conf, logger);
+            ClientThread ct = addClient(connection, socket.getInetAddress());
+            connection.startWriter(threadFactory);
+            threadFactory.newThread(ct).start();
+        });
+    }
+
+    /**
+     * Accepts connections on a server socket channel and distributes them round-robin over
+     * a fixed number of event loops. No thread is started per client.
+     */
+    private void runEventLoops() {
+        EventLoop[] loops = new EventLoop[conf.getEventLoopCount()];
+        ServerSocketChannel serverChannel;
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop("event-loop-" + i, logger);
+                loops[i].start();
+            }
+            logger.log(LogLevel.INFO, "Started " + loops.length + " event loops");
+
+            serverChannel = ServerSocketChannel.open();
+            if (conf.getReceiveBufferSize() > 0) {
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, conf.getReceiveBufferSize());
+            }
+            serverChannel.bind(new InetSocketAddress(conf.getServerPort()), conf.getAcceptBacklog());
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
+
+        AtomicInteger next = new AtomicInteger();
+        runAcceptors(() -> {
+            // Wait for an incoming client-connection request (blocking), the client itself is non-blocking.
+            SocketChannel channel = serverChannel.accept();
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            String refused = admission.admit(address);
+            if (refused != null) {
+                refuse(address, refused);
+                try (channel) {
+                    // Still in blocking mode, the reply fits in the empty socket buffer.
+                    channel.write(ByteBuffer.wrap(AdmissionControl.BUSY));
+                }
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, conf.isTcpNoDelay());
+            if (conf.getSendBufferSize() > 0) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, conf.getSendBufferSize());
+            }
+
+            EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+
+            NioConnection connection = new NioConnection(channel, loop, createOutboundQueue(), conf);
+            connection.setHandler(addClient(connection, address));
+            loop.register(connection);
+        });
     }
 
     /**
-     * This thread sleeps for somewhere between 10 tot 20 seconds and then drops the
-     * client thread. This is done to simulate a lost in connection.
+     * Accepts a single connection.
      */
-    private class DropClientThread implements Runnable {
-        ClientThread ct;
+    private interface Acceptor {
+        void accept() throws IOException;
+    }
 
-        DropClientThread(ClientThread ct){
-            this.ct = ct;
+    /**
+     * Runs the acceptor on the configured number of threads, the current thread being one of them.
+     * A failed accept (e.g. when the server runs out of file descriptors) does not stop accepting.
+     */
+    private void runAcceptors(Acceptor acceptor) {
+        Runnable acceptLoop = () -> {
+            while (true) {
+                try {
+                    acceptor.accept();
+                } catch (IOException e) {
+                    logger.log(LogLevel.ERROR, "Accept failed: " + e.getMessage());
+                    // Give the clients that are disconnecting some time to free their resources.
+                    LockSupport.parkNanos(ACCEPT_RETRY_DELAY_NANOS);
+                }
+            }
+        };
+        for (int i = 1; i < conf.getAcceptorCount(); i++) {
+            Thread thread = new Thread(acceptLoop, "acceptor-" + i);
+            thread.setDaemon(true);
+            thread.start();
         }
+        acceptLoop.run();
+    }
 
-        public void run() {
-            try {
-                // Drop a client thread between 10 to 20 seconds.
-                int sleep = (10 + new Random().nextInt(10)) * 1000;
-                Thread.sleep(sleep);
-                ct.kill();
-                threads.remove(ct);
-                System.out.println("Num clients: " + threads.size());
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+    /**
+     * Logs and counts a connection that has been refused by the admission control.
+     */
+    private void refuse(InetAddress address, String reason) {
+        metrics.recordRefusedConnection();
+        if (logger.isEnabled(LogLevel.WARN)) {
+            logger.log(LogLevel.WARN, "[REFUSED] " + address.getHostAddress() + ": " + reason);
+        }
+    }
+
+    /**
+     * Handles the events received from the other nodes of the cluster. Users of other nodes
+     * are only known by name, messages for them are sent to their node.
+     */
+    private class ClusterEvents implements ClusterHandler {
+
+        @Override
+        public void onNodeUp(String nodeId) {
+            // Send the users, groups and participants of this node to the new node.
+            for (String username : users.keySet()) {
+                cluster.sendUser(nodeId, username);
+            }
+            for (ClientThreadGroup group : clientGroups.values()) {
+                if (group.getNodeId() == null) {
+                    cluster.sendGroup(nodeId, group.getName(), group.getOwnerName());
+                }
+                synchronized (group) {
+                    if (!group.getClientThreads().isEmpty()) {
+                        cluster.sendMembers(nodeId, group.getName(), group.getClientThreads().size());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onNodeDown(String nodeId) {
+            // The users of the node are gone, the groups created on the node stay.
+            remoteUsers.entrySet().removeIf(remoteUser -> {
+                if (!remoteUser.getValue().equals(nodeId)) {
+                    return false;
+                }
+                presence.left(remoteUser.getKey());
+                return true;
+            });
+            for (ClientThreadGroup group : clientGroups.values()) {
+                group.getRemoteMembers().remove(nodeId);
+            }
+            clientListing.changed();
+            groupListing.changed();
+        }
+
+        @Override
+        public boolean onClaimUser(String nodeId, String username) {
+            if (!yieldsTo(users.get(username), username, nodeId)) {
+                return false;
+            }
+            String owner = remoteUsers.putIfAbsent(username, nodeId);
+            if (owner != null && !owner.equals(nodeId)) {
+                return false;
+            }
+            // A client of this node may have claimed the username at the same time.
+            if (!yieldsTo(users.get(username), username, nodeId)) {
+                remoteUsers.remove(username, nodeId);
+                return false;
+            }
+            clientListing.changed();
+            presence.joined(username, nodeId);
+            return true;
+        }
+
+        /**
+         * When nodes claim the same username at the same time, the node with the lowest id wins.
+         * The claim of this node then fails, because the winning node does not agree with it.
+         * @param local     The client of this node that claimed the username or null.
+         * @param username  The claimed username.
+         * @param nodeId    The id of the node that claims the username.
+         * @return  Returns true if the username may be given to the other node.
+         */
+        private boolean yieldsTo(ClientThread local, String username, String nodeId) {
+            if (local == null) {
+                return true;
+            }
+            boolean loggedIn = username.equals(local.getUsername());
+            return !loggedIn && nodeId.compareTo(cluster.getNodeId()) < 0;
+        }
+
+        @Override
+        public boolean onClaimGroup(String nodeId, String groupName, String owner) {
+            if (clientGroups.putIfAbsent(groupKey(groupName), new ClientThreadGroup(groupName, owner, nodeId)) != null) {
+                return false;
+            }
+            groupListing.changed();
+            return true;
+        }
+
+        @Override
+        public void onUserJoined(String nodeId, String username) {
+            if (remoteUsers.putIfAbsent(username, nodeId) == null) {
+                clientListing.changed();
+                presence.joined(username, nodeId);
+            }
+        }
+
+        @Override
+        public void onUserLeft(String nodeId, String username) {
+            if (remoteUsers.remove(username, nodeId)) {
+                clientListing.changed();
+                presence.left(username);
+            }
+        }
+
+        @Override
+        public void onGroupCreated(String nodeId, String groupName, String owner) {
+            ClientThreadGroup group = clientGroups.putIfAbsent(groupKey(groupName), new ClientThreadGroup(groupName, owner, nodeId));
+            if (group != null && group.owner == null && group.ownerName == null) {
+                // The group was only known from its participants on another node.
+                group.ownerName = owner;
+                group.nodeId = nodeId;
+            }
+            groupListing.changed();
+        }
+
+        @Override
+        public void onGroupReleased(String nodeId, String groupName) {
+            ClientThreadGroup group = clientGroups.get(groupKey(groupName));
+            if (group != null && nodeId.equals(group.getNodeId())) {
+                clientGroups.remove(groupKey(groupName), group);
+                groupListing.changed();
+            }
+        }
+
+        @Override
+        public void onMembers(String nodeId, String groupName, int count) {
+            if (count > 0) {
+                ClientThreadGroup group = clientGroups.computeIfAbsent(groupKey(groupName), key -> new ClientThreadGroup(groupName, null, nodeId));
+                group.getRemoteMembers().put(nodeId, count);
+            } else {
+                ClientThreadGroup group = clientGroups.get(groupKey(groupName));
+                if (group != null) {
+                    group.getRemoteMembers().remove(nodeId);
+                }
+            }
+            groupListing.changed();
+        }
+
+        @Override
+        public void onBroadcast(String from, String text) {
+            String broadcast = "BCST [" + from + "] " + text;
+            Frame broadcastFrame = encode(broadcast);
+            for (ClientThread ct : threads) {
+                ct.writeToClient(broadcast, broadcastFrame);
+            }
+            broadcastFrame.release();
+        }
+
+        @Override
+        public void onPrivate(String from, String to, String text) {
+            ClientThread receiver = users.get(to);
+            if (receiver != null) {
+                receiver.writeToClient(from + "has sent you a message: " + text);
+            }
+            if (store != null) {
+                // Kept for the receiver if it logged out in the meantime.
+                store.append(MessageStore.PRIVATE, from, MessageStore.privateConversation(from, to), text,
+                        receiver == null ? Collections.singletonList(to) : Collections.emptyList());
+            }
+        }
+
+        @Override
+        public void onGroupMessage(String groupName, String from, String text) {
+            ClientThreadGroup group = clientGroups.get(groupKey(groupName));
+            if (group != null) {
+                String groupMessage = "GROUPMSG [" + group.getName() + "] [" + from + "] " + text;
+                Frame groupFrame = encode(groupMessage);
+                for (ClientThread ct : group.getClientThreads()) {
+                    ct.writeToClient(groupMessage, groupFrame);
+                }
+                groupFrame.release();
+                if (store != null) {
+                    store.append(MessageStore.GROUP, from, MessageStore.groupConversation(group.getName()), text, group.getOfflineMembers());
+                }
+            }
+        }
+
+        @Override
+        public void onKick(String groupName, String username) {
+            ClientThreadGroup group = clientGroups.get(groupKey(groupName));
+            ClientThread ct = users.get(username);
+            if (group != null && ct != null && group.deleteClientThread(ct)) {
+                ct.groups.remove(group);
             }
         }
     }
@@ -82,365 +595,1109 @@ public class Server {
      * This inner class is used to handle all communication between the server and a
      * specific client.
      */
-    private class ClientThread implements Runnable {
+    private class ClientThread implements Runnable, ConnectionHandler, Presence.Subscriber {
 
-        private DataInputStream is;
-        private OutputStream os;
-        private Socket socket;
+        private ClientConnection connection;
+        // The connection messages are written to, injects faults in the bad server modes.
+        private ClientConnection output;
         private ServerState state;
-        private String username;
+        // Volatile, other nodes check whether a claimed username is already in use from the link threads.
+        private volatile String username;
+        // The groups this client participates in, so they can be left when the client disconnects.
+        private Set<ClientThreadGroup> groups = ConcurrentHashMap.newKeySet();
+        // Set once the client has been removed, a login that completes later must not claim the username anymore.
+        private boolean removed = false;
+        // When the client sent something for the last time, when the last PING was sent and the heartbeat
+        // timer, which is only rescheduled when it expires (not for every message).
+        private volatile long lastReceived = System.nanoTime();
+        private boolean pingSent = false;
+        private long pingNanos;
+        private TimingWheel.Timeout heartbeat;
+        // The rate limits of this client indexed by command class, null for classes without a limit.
+        private final TokenBucket[] limits = createLimits();
+        // The address the client has been admitted for, null for in-process clients.
+        private final InetAddress address;
+        // The session of a client in reliable mode, null otherwise. Messages are written through it
+        // before the faults of the bad server modes are injected, so the client can detect them.
+        private volatile ReliableDelivery.Session reliable;
+        // Identifies the connection in the traffic capture.
+        private final long id = connectionIds.incrementAndGet();
+        // Set once the client switched to the binary protocol.
+        private boolean binary = false;
+        // The codec the client chose with COMPRESS, null while messages are sent uncompressed, and the
+        // context of the connection for deflate. The stream is set before the codec.
+        private volatile CompressionCodec codec;
+        private Compression.Stream deflate;
 
-        public ClientThread(Socket socket) {
+        public ClientThread(ClientConnection connection, InetAddress address) {
             this.state = INIT;
-            this.socket = socket;
+            this.connection = connection;
+            this.address = address;
+            this.output = faults.wrap(connection);
         }
 
         public String getUsername() {
             return username;
         }
 
-        public OutputStream getOutputStream() {
-            return os;
+        private TokenBucket[] createLimits() {
+            TokenBucket[] buckets = new TokenBucket[CommandClass.values().length];
+            for (CommandClass commandClass : CommandClass.values()) {
+                double rate = conf.getCommandRate(commandClass);
+                if (rate > 0 && commandClass != CommandClass.CONTROL) {
+                    buckets[commandClass.ordinal()] = new TokenBucket(rate, conf.getCommandBurst());
+                }
+            }
+            return buckets;
         }
 
+        /**
+         * Handles the client using blocking I/O on the current thread. Only used for socket connections.
+         */
         public void run() {
+            // This thread only serves this client, so it may wait for the queues of the clients it sends to.
+            OutboundQueue.allowBlocking();
+            ByteBuffer buffer = null;
             try {
-                // Create input and output streams for the socket.
-                os = socket.getOutputStream();
-                is = new DataInputStream(socket.getInputStream());
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+                // Read the raw bytes, the decoder splits them into lines or, after BINARY, into binary frames.
+                SocketConnection socketConnection = (SocketConnection) connection;
+                InputStream is = socketConnection.getInputStream();
+                buffer = buffers.allocate(READ_BUFFER_SIZE, false);
 
-                // According to the protocol we should send HELO <welcome message>
-                state = CONNECTING;
-                String welcomeMessage = "HELO " + conf.WELCOME_MESSAGE;
-                writeToClient(welcomeMessage);
+                onConnect();
 
                 while (!state.equals(FINISHED)) {
-                    // Wait for message from the client.
-                    String line = reader.readLine();
-                    if (line != null) {
-                        // Log incoming message for debug purposes.
-                        boolean isIncomingMessage = true;
-                        logMessage(isIncomingMessage, line);
-
-                        // Parse incoming message.
-                        Message message = new Message(line);
-
-                        // Process message.
-                        switch (message.getMessageType()) {
-                            case HELO:
-                                // Check username format.
-                                boolean isValidUsername = message.getPayload().matches("[a-zA-Z0-9_]{3,14}");
-                                if(!isValidUsername) {
-                                    state = FINISHED;
-                                    writeToClient("-ERR username has an invalid format (only characters, numbers and underscores are allowed)");
-                                } else {
-                                    // Check if user already exists.
-                                    boolean userExists = false;
-                                    for (ClientThread ct : threads) {
-                                        if (ct != this && message.getPayload().equals(ct.getUsername())) {
-                                            userExists = true;
-                                            break;
-                                        }
-                                    }
-                                    if (userExists) {
-                                        writeToClient("-ERR user already logged in");
-                                    } else {
-                                        state = CONNECTED;
-                                        this.username = message.getPayload();
-                                        writeToClient("+OK " + getUsername());
-                                    }
-                                }
-                                break;
-                            case BCST:
-                                // Broadcast to other clients.
-                                for (ClientThread ct : threads) {
-                                    if (ct != this) {
-                                        ct.writeToClient("BCST [" + getUsername() + "] " + message.getPayload());
-                                    }
-                                }
-                                writeToClient("+OK");
-                                break;
-                            case PRIVATE:
-                                //Send a private message to a selected client
-                                //Split the message payload to get the username of that client and the message
-                                String[] messageSplit = message.getPayload().split("-");
-                                String to = messageSplit[0];
-                                String messageToSend = this.username +"has sent you a message: "+messageSplit[1];
-                                boolean sent = false;
-                                //Loop through all threads to find the selected user by his username, if found then send message to
-                                for (ClientThread ct : threads){
-                                    if(ct.getUsername().equals(to)){
-                                        ct.writeToClient(messageToSend);
-                                        sent = true;
-                                        break;
-                                    }
-                                }
-                                if (sent) {
-                                    writeToClient("+OK Private message has been sent to client: " + to);
-                                } else {
-                                    writeToClient("-ERR Private message sending has failed.");
-                                }
+                    // Wait for messages from the client, unless it has to wait because it exceeded its rate limit.
+                    socketConnection.awaitReads(this, () -> state.equals(FINISHED));
+                    if (state.equals(FINISHED)) {
+                        break;
+                    }
+                    int read = is.read(buffer.array(), buffer.arrayOffset(), READ_BUFFER_SIZE);
+                    if (read >= 0) {
+                        buffer.clear().limit(read);
+                        socketConnection.getDecoder().decode(buffer, this, () -> state.equals(FINISHED));
+                    } else {
+                        // End of stream, the client closed the connection.
+                        state = FINISHED;
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Server Exception: " + e.getMessage());
+            } finally {
+                // Remove from the list of client threads and close the socket once the writer is done.
+                removeClient();
+                output.close();
+                if (buffer != null) {
+                    buffers.release(buffer);
+                }
+            }
+        }
 
-                                break;
-                            case ALLCLIENTS:
-                                //This will return all of the sockets(clients) that are connected to the server
-                                String messageToClient = "";
-                                for (ClientThread ct: threads){
-                                    messageToClient+= "Username: "+ct.username+" is connected to the server. Socket: "+ct.socket.toString();
-                                }
-                                writeToClient("+OK "+messageToClient);
-                                break;
-                            case NEWGROUP:
-                                //Get the group name from the message payload
-                                String groupName = message.getPayload();
-                                //Create a new group using the given group name and the owner that is creating the group
-                                ClientThreadGroup clientGroup = new ClientThreadGroup(groupName,this);
-                                //Add the new group to the existing groups
-                                clientGroups.add(clientGroup);
-                                writeToClient("+OK New group with the name "+groupName+" has been added.");
-                                break;
-                            case ALLGROUPS:
-                                messageToClient = "";
-                                for (ClientThreadGroup ctg: clientGroups){
-                                    messageToClient += "Group: "+ctg.name+", has "+ctg.getGroupSize()+" participants. \n";
-                                }
-                                writeToClient("+OK"+messageToClient);
-                                break;
-                            case JOINGROUP:
-                                messageToClient = "";
-                                for (ClientThreadGroup ctg: clientGroups){
-                                    if(ctg.name.equalsIgnoreCase(message.getPayload())){
-                                        ctg.setClientThreads(this);
-                                        messageToClient = "+OK You have been added to the group: "+ctg.name;
-                                        writeToClient(messageToClient);
-                                        break;
-                                    }
-                                }
-                                writeToClient("-ERR Group name not found");
-                                break;
-                            case QUITGROUP:
-                                //First check if the given group name exists
-                                for (ClientThreadGroup ctg: clientGroups){
-                                    //If so then proceed
-                                    if(ctg.getName().equals(message.getPayload())){
-                                        //Retrieve the selected group
-                                        ArrayList<ClientThread> clientThreadArrayList = ctg.getClientThreads();
-                                        //Loop through the group to remove the client
-                                        for (ClientThread ct: clientThreadArrayList){
-                                            //If the client exists in the group
-                                            if(ct.getUsername().equals(getUsername())){
-                                                //Delete the selected client
-                                                ctg.deleteClientThread(ct);
-                                                writeToClient("+OK You are no longer a participant in this group: "+ctg.getName());
-                                                break;
-                                            }
-                                        }
-                                    }else {
-                                        writeToClient("-ERR Group name does not exist.");
-                                    }
-                                }
-                                break;
-                            case KICKUSER:
-                                messageToClient = "";
-                                String[] messageSplitKick = message.getPayload().split("-");
-                                String groupKick = messageSplitKick[0];
-                                String userKick = messageSplitKick[1];
-                                boolean kicked = false;
-                                //Loop through all of the groups
-                                for (ClientThreadGroup ctg: clientGroups){
-                                    //If the group exists and I am the owner of this group then proceed with kicking
-                                    if(ctg.name.equalsIgnoreCase(groupKick) && ctg.owner.username.equals(this.username)){
-                                        //Loop through the list of client threads in this group
-                                        for (ClientThread clientThread: ctg.clientThreads){
-                                            //If the required user is found in the list
-                                            if(userKick.equalsIgnoreCase(clientThread.username)){
-                                                //Kick the user from the group
-                                                ctg.deleteClientThread(clientThread);
-                                                messageToClient = "+OK User "+message.getPayload()+" has been kicked from the group";
-                                                kicked = true;
-                                                break;
-                                            }
-                                        }
-                                        break;
-                                    }
-                                }
+        @Override
+        public void onConnect() {
+            if (capture != null) {
+                capture.connected(id);
+            }
+            // According to the protocol we should send HELO <welcome message>
+            state = CONNECTING;
+            String welcomeMessage = "HELO " + conf.WELCOME_MESSAGE;
+            writeToClient(welcomeMessage);
+            if (conf.getHeartbeatIntervalMillis() > 0) {
+                synchronized (this) {
+                    heartbeat = timer.schedule(this::checkHeartbeat, conf.getHeartbeatIntervalMillis());
+                }
+            }
+        }
+
+        /**
+         * Runs on the timing wheel when the client may have been silent for the heartbeat interval.
+         * Sends a PING to a silent client and closes the connection when the client stays silent
+         * for the heartbeat timeout after that. Anything received from the client counts as an answer.
+         */
+        private synchronized void checkHeartbeat() {
+            if (removed) {
+                return;
+            }
+            long interval = conf.getHeartbeatIntervalMillis();
+            long timeout = conf.getHeartbeatTimeoutMillis();
+            long now = System.nanoTime();
+            long received = lastReceived;
+            long next;
+            if (pingSent && received - pingNanos < 0) {
+                // Nothing has been received since the PING.
+                long waited = (now - pingNanos) / 1_000_000;
+                if (waited >= timeout) {
+                    // The client is gone without closing its connection, free its username and resources.
+                    metrics.recordReapedConnection();
+                    writeToClient("-ERR Pong timeout");
+                    kill();
+                    return;
+                }
+                next = timeout - waited;
+            } else {
+                pingSent = false;
+                long silent = (now - received) / 1_000_000;
+                if (silent >= interval) {
+                    pingSent = true;
+                    pingNanos = now;
+                    writeToClient("PING");
+                    next = timeout;
+                } else {
+                    next = interval - silent;
+                }
+            }
+            heartbeat = timer.schedule(this::checkHeartbeat, next);
+        }
+
+        /**
+         * Processes a single line received from the client. Called by the blocking read loop
+         * or by the event loop that owns the connection.
+         * @param line    The line received from the client.
+         * @param length  The length of the line in bytes, including the line terminator.
+         */
+        @Override
+        public void onLine(String line, int length) {
+            long startNanos = System.nanoTime();
+            metrics.recordBytesIn(length);
+            if (capture != null) {
+                capture.received(id, line);
+            }
+
+            // Log incoming message for debug purposes.
+            boolean isIncomingMessage = true;
+            logMessage(isIncomingMessage, line);
+
+            // Parse incoming message.
+            handle(new Message(line), startNanos);
+        }
+
+        /**
+         * Processes a single command received from a client that uses the binary protocol.
+         * @param message   The command.
+         * @param length    The length of the frame in bytes.
+         */
+        @Override
+        public void onMessage(Message message, int length) {
+            long startNanos = System.nanoTime();
+            metrics.recordBytesIn(length);
+            if (capture != null) {
+                capture.received(id, message.toString());
+            }
+
+            // The equivalent line is only created when it is logged.
+            if (logger.isEnabled(LogLevel.DEBUG)) {
+                logMessage(true, message.toString());
+            }
+            handle(message, startNanos);
+        }
 
-                                if(kicked){
-                                    this.writeToClient(messageToClient);
-                                }else {
-                                    this.writeToClient("-ERR Failed to kick the selected user");
+        private void handle(Message message, long startNanos) {
+            lastReceived = startNanos;
+            // Commands over the rate limit of the client are refused, or slow down the client.
+            CommandClass commandClass = CommandClass.of(message.getMessageType());
+            if (isRateLimited(limits[commandClass.ordinal()], 1, startNanos)) {
+                closeIfFinished();
+                return;
+            }
+            // Messages to other clients are refused while the buffers of the server are used up, until the queues drain.
+            if (buffers.isExhausted() && (commandClass == CommandClass.BROADCAST
+                    || commandClass == CommandClass.PRIVATE || commandClass == CommandClass.GROUP)) {
+                metrics.recordShedCommand();
+                writeToClient("-ERR Server is out of memory, try again later");
+                return;
+            }
+            // Process message.
+            switch (message.getMessageType()) {
+                case HELO:
+                    // Check username format.
+                    boolean isValidUsername = Message.isValidUsername(message.getPayload());
+                    if(!isValidUsername) {
+                        state = FINISHED;
+                        writeToClient("-ERR username has an invalid format (only characters, numbers and underscores are allowed)");
+                    } else {
+                        // Check if user already exists and claim the username in one atomic step.
+                        String requestedUsername = message.getPayload();
+                        ClientThread owner = users.putIfAbsent(requestedUsername, this);
+                        if (owner != null && owner != this) {
+                            writeToClient("-ERR user already logged in");
+                        } else if (owner == null && cluster != null) {
+                            // The username also has to be unique on the other nodes of the cluster.
+                            if (remoteUsers.containsKey(requestedUsername)) {
+                                users.remove(requestedUsername, this);
+                                writeToClient("-ERR user already logged in");
+                            } else {
+                                cluster.claimUser(requestedUsername).thenAccept(granted -> completeLogin(requestedUsername, granted));
+                            }
+                        } else {
+                            login(requestedUsername);
+                        }
+                    }
+                    break;
+                case BCST:
+                    // Every recipient of the broadcast counts for the fan-out budget of the server.
+                    if (isRateLimited(fanoutLimit, threads.size() - 1, startNanos)) {
+                        break;
+                    }
+                    // Broadcast to other clients, the message is encoded once and shared by all recipients.
+                    String broadcast = "BCST [" + getUsername() + "] " + message.getPayload();
+                    Frame broadcastFrame = encode(broadcast);
+                    for (ClientThread ct : threads) {
+                        if (ct != this) {
+                            ct.writeToClient(broadcast, broadcastFrame);
+                        }
+                    }
+                    broadcastFrame.release();
+                    // The other nodes of the cluster receive the broadcast once and send it to their own clients.
+                    if (cluster != null) {
+                        cluster.broadcast(getUsername(), message.getPayload());
+                    }
+                    writeToClient("+OK");
+                    break;
+                case PRIVATE:
+                    //Send a private message to a selected client
+                    //Split the message payload to get the username of that client and the message
+                    String to = message.getPayloadHead('-');
+                    boolean sent = false;
+                    boolean stored = false;
+                    if (to != null) {
+                        String messageToSend = this.username +"has sent you a message: "+message.getPayloadTail('-');
+                        //Look up the selected user by his username, if found then send message to
+                        ClientThread receiver = users.get(to);
+                        String receiverNode = cluster == null ? null : remoteUsers.get(to);
+                        if (receiver != null) {
+                            receiver.writeToClient(messageToSend);
+                            sent = true;
+                        } else if (receiverNode != null) {
+                            //The receiver is logged in on another node, the message is sent straight to that node
+                            cluster.sendPrivate(receiverNode, this.username, to, message.getPayloadTail('-'));
+                            sent = true;
+                        } else if (store != null && this.username != null && Message.isValidUsername(to)) {
+                            //Keep the message until the receiver logs in
+                            stored = true;
+                        }
+                        if ((sent || stored) && store != null && this.username != null) {
+                            store.append(MessageStore.PRIVATE, this.username, MessageStore.privateConversation(this.username, to),
+                                    message.getPayloadTail('-'), stored ? Collections.singletonList(to) : Collections.emptyList());
+                        }
+                    }
+                    if (sent) {
+                        writeToClient("+OK Private message has been sent to client: " + to);
+                    } else if (stored) {
+                        writeToClient("+OK Private message has been stored for offline client: " + to);
+                    } else {
+                        writeToClient("-ERR Private message sending has failed.");
+                    }
+
+                    break;
+                case ALLCLIENTS:
+                    //This will return all of the connected clients, or a page of the users that are logged in (ALLCLIENTS offset-limit-prefix)
+                    sendListing(clientListing, "ALLCLIENTS", message);
+                    break;
+                case SUBSCRIBE:
+                    // Send the roster once, followed by its changes as they happen, instead of polling ALLCLIENTS.
+                    presence.subscribe(this);
+                    break;
+                case UNSUBSCRIBE:
+                    if (presence.unsubscribe(this)) {
+                        writeToClient("+OK");
+                    } else {
+                        writeToClient("-ERR Not subscribed");
+                    }
+                    break;
+                case NEWGROUP:
+                    //Get the group name from the message payload
+                    String groupName = message.getPayload();
+                    //Create a new group using the given group name and the owner that is creating the group
+                    ClientThreadGroup clientGroup = new ClientThreadGroup(groupName,this);
+                    //Add the new group to the existing groups, unless a group with this name already exists
+                    if(clientGroups.putIfAbsent(groupKey(groupName), clientGroup) == null){
+                        groupListing.changed();
+                        if(cluster == null){
+                            writeToClient("+OK New group with the name "+groupName+" has been added.");
+                        }else {
+                            //The group name also has to be unique on the other nodes of the cluster
+                            cluster.claimGroup(groupName, getUsername()).thenAccept(granted -> completeNewGroup(clientGroup, granted));
+                        }
+                    }else {
+                        writeToClient("-ERR A group with the name "+groupName+" already exists.");
+                    }
+                    break;
+                case ALLGROUPS:
+                    //This will return all of the groups, or a page of them (ALLGROUPS offset-limit-prefix)
+                    sendListing(groupListing, "ALLGROUPS", message);
+                    break;
+                case JOINGROUP:
+                    ClientThreadGroup joinGroup = clientGroups.get(groupKey(message.getPayload()));
+                    if(joinGroup != null){
+                        joinGroup.addClientThread(this);
+                        groups.add(joinGroup);
+                        writeToClient("+OK You have been added to the group: "+joinGroup.name);
+                    }else {
+                        writeToClient("-ERR Group name not found");
+                    }
+                    break;
+                case QUITGROUP:
+                    //First check if the given group name exists
+                    ClientThreadGroup quitGroup = clientGroups.get(groupKey(message.getPayload()));
+                    if(quitGroup == null){
+                        writeToClient("-ERR Group name does not exist.");
+                    }else if(quitGroup.deleteClientThread(this)){
+                        //The client was a participant and has been deleted from the group
+                        groups.remove(quitGroup);
+                        writeToClient("+OK You are no longer a participant in this group: "+quitGroup.getName());
+                    }else {
+                        writeToClient("-ERR You are not a participant in this group: "+quitGroup.getName());
+                    }
+                    break;
+                case KICKUSER:
+                    String messageToClient = "";
+                    String groupKick = message.getPayloadHead('-');
+                    String userKick = message.getPayloadTail('-');
+                    boolean kicked = false;
+                    ClientThreadGroup kickGroup = groupKick == null ? null : clientGroups.get(groupKey(groupKick));
+                    //If the group exists and I am the owner of this group then proceed with kicking
+                    if(kickGroup != null && kickGroup.isOwnedBy(this)){
+                        //Look up the required user and kick him from the group if he is a participant
+                        ClientThread clientThread = users.get(userKick);
+                        if(clientThread != null && kickGroup.deleteClientThread(clientThread)){
+                            clientThread.groups.remove(kickGroup);
+                            kicked = true;
+                        }else if(clientThread == null && cluster != null){
+                            //The user may be a participant on another node, that node removes the user from the group
+                            String userNode = remoteUsers.get(userKick);
+                            if(userNode != null && kickGroup.getRemoteMembers(userNode) > 0){
+                                cluster.kick(userNode, kickGroup.getName(), userKick);
+                                kicked = true;
+                            }
+                        }
+                        if(kicked){
+                            messageToClient = "+OK User "+message.getPayload()+" has been kicked from the group";
+                        }
+                    }
+
+                    if(kicked){
+                        this.writeToClient(messageToClient);
+                    }else {
+                        this.writeToClient("-ERR Failed to kick the selected user");
+                    }
+                    break;
+                case GROUPMSG:
+                    //Send a message to all participants of a group, the sender has to be a participant or the owner
+                    String groupTo = message.getPayloadHead('-');
+                    ClientThreadGroup messageGroup = groupTo == null ? null : clientGroups.get(groupKey(groupTo));
+                    if(messageGroup == null){
+                        writeToClient("-ERR Group name does not exist.");
+                    }else if(!groups.contains(messageGroup) && !messageGroup.isOwnedBy(this)){
+                        writeToClient("-ERR You are not a participant in this group: "+messageGroup.getName());
+                    }else if(!isRateLimited(fanoutLimit, messageGroup.getClientThreads().size(), startNanos)){
+                        //Encode the message once and share it with all participants
+                        String groupMessage = "GROUPMSG ["+messageGroup.getName()+"] ["+getUsername()+"] "+message.getPayloadTail('-');
+                        Frame groupFrame = encode(groupMessage);
+                        for (ClientThread ct: messageGroup.getClientThreads()){
+                            if(ct != this){
+                                ct.writeToClient(groupMessage, groupFrame);
+                            }
+                        }
+                        groupFrame.release();
+                        if(store != null){
+                            store.append(MessageStore.GROUP, getUsername(), MessageStore.groupConversation(messageGroup.getName()),
+                                    message.getPayloadTail('-'), messageGroup.getOfflineMembers());
+                        }
+                        //Nodes with participants of the group receive the message once
+                        if(cluster != null){
+                            for (Map.Entry<String, Integer> members: messageGroup.getRemoteMembers().entrySet()){
+                                if(members.getValue() > 0){
+                                    cluster.sendGroupMessage(members.getKey(), messageGroup.getName(), getUsername(), message.getPayloadTail('-'));
                                 }
-                                break;
-                            case QUIT:
-                                // Close connection
-                                state = FINISHED;
-                                writeToClient("+OK Goodbye");
-                                break;
-                            case UNKOWN:
-                                // Unkown command has been sent
-                                writeToClient("-ERR Unkown command");
-                                break;
+                            }
                         }
+                        writeToClient("+OK");
+                    }
+                    break;
+                case HISTORY:
+                    //Page back through a private conversation (HISTORY user) or group (HISTORY #group),
+                    //older pages are requested with the offset returned by the previous page (HISTORY user-offset)
+                    if(store == null){
+                        writeToClient("-ERR History is not available");
+                    }else if(this.username == null){
+                        writeToClient("-ERR Please log in first");
+                    }else {
+                        sendHistory(message);
+                    }
+                    break;
+                case BINARY:
+                    if (codec != null) {
+                        writeToClient("-ERR The binary protocol can't be used with compression");
+                        break;
                     }
+                    // Switch to binary frames, the reply is the last line sent as text.
+                    binary = true;
+                    connection.switchToBinary();
+                    Frame switchFrame = Frame.switchingToBinary("+OK BINARY");
+                    output.writeFrame(switchFrame);
+                    metrics.recordBytesOut(switchFrame.length());
+                    logMessage(false, "+OK BINARY");
+                    break;
+                case STATS:
+                    // Return the server metrics
+                    writeToClient("+OK " + metrics.toStatsLine());
+                    break;
+                case PING:
+                    // Clients can check the connection as well.
+                    writeToClient("PONG");
+                    break;
+                case PONG:
+                    // The answer to a heartbeat, the time it was received has been recorded already.
+                    break;
+                case RELIABLE:
+                    startReliable(message.getPayload());
+                    break;
+                case ACK:
+                    acknowledge(message.getPayload());
+                    break;
+                case COMPRESS:
+                    startCompression(message.getPayload());
+                    break;
+                case QUIT:
+                    // Close connection
+                    state = FINISHED;
+                    writeToClient("+OK Goodbye");
+                    // A client that quits can't resume its session.
+                    ReliableDelivery.Session session = reliable;
+                    if (session != null) {
+                        reliable = null;
+                        session.end();
+                    }
+                    break;
+                case UNKOWN:
+                    // Unkown command has been sent
+                    logger.log(LogLevel.INFO, "[ERROR] Unknown command");
+                    writeToClient("-ERR Unkown command");
+                    break;
+            }
+            metrics.recordCommand(message.getMessageType(), System.nanoTime() - startNanos);
+            closeIfFinished();
+        }
+
+        private void closeIfFinished() {
+            // Non-blocking connections are closed as soon as the client is finished.
+            if (state.equals(FINISHED) && connection instanceof NioConnection) {
+                output.close();
+            }
+        }
+
+        /**
+         * Takes tokens from a rate limit and applies the rate limit action if there are not enough.
+         * @param limit     The rate limit, null if there is no limit.
+         * @param permits   The number of tokens the command costs.
+         * @param now       The time the command was received.
+         * @return  Returns true if the command must not be handled.
+         */
+        private boolean isRateLimited(TokenBucket limit, int permits, long now) {
+            if (limit == null) {
+                return false;
+            }
+            RateLimitAction action = conf.getRateLimitAction();
+            if (action == RateLimitAction.DELAY) {
+                long wait = limit.acquire(permits, now);
+                if (wait > 0) {
+                    metrics.recordRateLimitedCommand();
+                    output.pauseReads(wait);
                 }
-                // Remove from the list of client threads and close the socket.
-                threads.remove(this);
-                socket.close();
-            } catch (IOException e) {
-                System.out.println("Server Exception: " + e.getMessage());
+                return false;
+            }
+            long retryAfter = limit.tryAcquire(permits, now);
+            if (retryAfter == 0) {
+                return false;
+            }
+            metrics.recordRateLimitedCommand();
+            if (action == RateLimitAction.DISCONNECT) {
+                state = FINISHED;
+                writeToClient("-ERR Rate limit exceeded");
+            } else {
+                writeToClient("-ERR Rate limit exceeded, retry after " + ((retryAfter + 999_999) / 1_000_000) + " ms");
             }
+            return true;
         }
 
         /**
-         * An external process can stop the client using this methode.
+         * Switches the client to reliable mode: RELIABLE starts a new session, RELIABLE n resumes the
+         * session the client had before it lost its connection, after message n. The reply tells
+         * after which message the session continues, 0 if it could not be resumed.
+         * @param payload   Empty or the last message the client received.
          */
-        public void kill() {
+        private void startReliable(String payload) {
+            if (username == null) {
+                writeToClient("-ERR Please log in first");
+                return;
+            }
+            if (reliable != null) {
+                writeToClient("-ERR Already in reliable mode");
+                return;
+            }
+            if (codec == CompressionCodec.DEFLATE) {
+                // Messages that are sent again would not match the deflate context of the client.
+                writeToClient("-ERR Reliable mode can't be used with deflate compression, use COMPRESS fast");
+                return;
+            }
+            long acked = -1;
+            if (!payload.isEmpty()) {
+                try {
+                    acked = Long.parseLong(payload);
+                } catch (NumberFormatException e) {
+                    acked = -1;
+                }
+                if (acked < 0) {
+                    writeToClient("-ERR Invalid sequence number, use RELIABLE or RELIABLE <last received>");
+                    return;
+                }
+            }
+            ReliableDelivery.Session session = reliability.start(username, output, acked);
+            // The reply is the last message that is not numbered.
+            writeToClient("+OK RELIABLE " + session.getAcked());
+            reliable = session;
+            session.resendUnacked();
+        }
+
+        /**
+         * Switches on compression with COMPRESS deflate or COMPRESS fast, usually right after the
+         * HELO. The codec can be chosen once. The reply, which is not compressed, has the codec and
+         * the length from which messages are compressed.
+         * @param payload   The name of the codec.
+         */
+        private void startCompression(String payload) {
+            CompressionCodec requested;
             try {
-                // Log connection drop and close the outputstream.
-                System.out.println("[DROP CONNECTION] " + getUsername());
-                threads.remove(this);
-                socket.close();
-            } catch(Exception ex) {
-                System.out.println("Exception when closing outputstream: " + ex.getMessage());
+                requested = CompressionCodec.valueOf(payload.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                writeToClient("-ERR Unknown codec, use COMPRESS deflate or COMPRESS fast");
+                return;
+            }
+            if (codec != null) {
+                writeToClient("-ERR Compression has already been started");
+                return;
+            }
+            if (binary) {
+                writeToClient("-ERR Compression can't be used with the binary protocol");
+                return;
+            }
+            if (requested == CompressionCodec.DEFLATE && (reliable != null || conf.doInjectMessageFaults()
+                    || conf.getSlowConsumerPolicy() == SlowConsumerPolicy.DROP)) {
+                // A lost or repeated message breaks the deflate context of the client.
+                writeToClient("-ERR deflate is not available when messages can be lost, use COMPRESS fast");
+                return;
+            }
+            writeToClient("+OK COMPRESS " + requested.name().toLowerCase(Locale.ROOT) + " " + compression.getThreshold());
+            synchronized (this) {
+                if (removed) {
+                    return;
+                }
+                if (requested == CompressionCodec.DEFLATE) {
+                    deflate = compression.startStream(output);
+                }
+                codec = requested;
             }
-            state = FINISHED;
         }
 
         /**
-         * Write a message to this client thread.
-         * @param message   The message to be sent to the (connected) client.
+         * Handles ACK n or ACK n first-last,first-last: the client received all messages up to and
+         * including n and the messages in the ranges after it. Nothing is sent back.
+         * @param payload   The acknowledged messages.
          */
-        private void writeToClient(String message) {
-            boolean shouldDropPacket = false;
-            boolean shouldCorruptPacket = false;
+        private void acknowledge(String payload) {
+            ReliableDelivery.Session session = reliable;
+            if (session == null) {
+                writeToClient("-ERR Not in reliable mode");
+                return;
+            }
+            long cumulative;
+            long[] ranges;
+            try {
+                int space = payload.indexOf(' ');
+                cumulative = Long.parseLong(space < 0 ? payload : payload.substring(0, space));
+                ranges = space < 0 ? new long[0] : ReliableDelivery.parseRanges(cumulative, payload.substring(space + 1));
+            } catch (NumberFormatException e) {
+                writeToClient("-ERR Invalid ACK, use ACK n or ACK n first-last,first-last");
+                return;
+            }
+            if (!session.ack(cumulative, ranges)) {
+                writeToClient("-ERR ACK of a message that has not been sent");
+            }
+        }
 
-            // Check if we need to behave badly by dropping some messages.
-            if (conf.doSimulateDroppedPackets()) {
-                // Randomly select if we are going to drop this message or not.
-                int random = new Random().nextInt(6);
-                if (random == 0) {
-                    // Drop message.
-                    shouldDropPacket = true;
-                    System.out.println("[DROPPED] " + message);
+        /**
+         * Logs in the client under a username that has already been claimed for this client.
+         * @param requestedUsername The claimed username.
+         */
+        private void login(String requestedUsername) {
+            // Release the previous username when a client logs in again under a new name.
+            String previousUsername = null;
+            if (username != null && !username.equals(requestedUsername)) {
+                if (users.remove(username, this)) {
+                    previousUsername = username;
+                    if (cluster != null) {
+                        cluster.releaseUser(username);
+                    }
                 }
             }
+            boolean loggedIn = requestedUsername.equals(username);
+            state = CONNECTED;
+            this.username = requestedUsername;
+            clientListing.changed();
+            if (previousUsername != null) {
+                presence.renamed(previousUsername, requestedUsername);
+            } else if (!loggedIn) {
+                presence.joined(requestedUsername);
+            }
+            writeToClient("+OK " + getUsername());
 
-            // Check if we need to behave badly by corrupting some messages.
-            if (conf.doSimulateCorruptedPackets()) {
-                // Randomly select if we are going to corrupt this message or not.
-                int random = new Random().nextInt(4);
-                if (random == 0) {
-                    // Corrupt message.
-                    shouldCorruptPacket = true;
+            if (store != null) {
+                // A user that lost its connection is still a participant of its groups for the rejoin time
+                // (--store-rejoin), it rejoins them and gets the messages it missed.
+                for (ClientThreadGroup group : clientGroups.values()) {
+                    if (group.removeOfflineMember(requestedUsername) && group.addClientThread(this)) {
+                        groups.add(group);
+                        logger.log(LogLevel.INFO, "[REJOIN] " + requestedUsername + " rejoined group " + group.getName());
+                    }
                 }
+                store.deliver(requestedUsername, this::deliverStored);
             }
+        }
 
-            // Do the actual message sending here.
-            if (!shouldDropPacket) {
-                if (shouldCorruptPacket){
-                    message = corrupt(message);
-                    System.out.println("[CORRUPT] " + message);
+        /**
+         * Sends a listing from its current snapshot. Without arguments the complete listing is sent in
+         * the format of the original server: ALLCLIENTS as a single line, ALLGROUPS as a line per group.
+         * With offset-limit or offset-limit-prefix a +OK line with the version of the snapshot, the
+         * number of matching items, the offset and the number of items on the page is sent, followed by
+         * a line per item, sorted by name. A client can compare the version of the pages to see whether
+         * the listing changed while it was paging through it.
+         */
+        private void sendListing(Listing listing, String command, Message message) {
+            Listing.Snapshot snapshot = listing.getSnapshot();
+            String payload = message.getPayload();
+            if (payload.isEmpty()) {
+                Frame all = snapshot.getAll();
+                if (reliable != null) {
+                    // A SEQ line can't span several lines, every line of the listing gets its own sequence number.
+                    for (String line : all.getLine().split("\n")) {
+                        writeToClient(line);
+                    }
+                } else {
+                    writeToClient(all.getLine(), all);
                 }
-                PrintWriter writer = new PrintWriter(os);
-                writer.println(message);
-                writer.flush();
+                return;
+            }
 
-                // Echo the message to the server console for debugging purposes.
-                boolean isIncomingMessage = false;
-                logMessage(isIncomingMessage, message);
+            int offset;
+            int limit;
+            String prefix = "";
+            try {
+                int limitStart = payload.indexOf('-') + 1;
+                int prefixStart = payload.indexOf('-', limitStart) + 1;
+                if (limitStart == 0) {
+                    throw new NumberFormatException();
+                }
+                offset = Integer.parseInt(payload.substring(0, limitStart - 1));
+                if (prefixStart == 0) {
+                    limit = Integer.parseInt(payload.substring(limitStart));
+                } else {
+                    limit = Integer.parseInt(payload.substring(limitStart, prefixStart - 1));
+                    prefix = payload.substring(prefixStart);
+                }
+                if (offset < 0 || limit < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                writeToClient("-ERR Invalid page, use " + command + " offset-limit or " + command + " offset-limit-prefix");
+                return;
+            }
+            limit = Math.min(limit, conf.LISTING_MAX_PAGE_SIZE);
+
+            int first = snapshot.first(prefix);
+            int end = snapshot.end(prefix);
+            int start = (int) Math.min((long) first + offset, end);
+            int count = Math.min(limit, end - start);
+            writeToClient("+OK " + command + " " + snapshot.getVersion() + " " + (end - first) + " " + offset + " " + count);
+            for (int i = start; i < start + count; i++) {
+                Frame line = snapshot.getLine(i);
+                writeToClient(line.getLine(), line);
             }
         }
 
         /**
-         * This methods implements a (naive) simulation of a corrupt message by replacing
-         * some charaters at random indexes with the charater X.
-         * @param message   The message to be corrupted.
-         * @return  Returns the message with some charaters replaced with X's.
+         * Sends a page of the history of a conversation: a +OK line with the number of messages and
+         * the offset to request the previous page with, followed by the messages, oldest first.
          */
-        private String corrupt(String message) {
-            Random random = new Random();
-            int x = random.nextInt(4);
-            char[] messageChars =  message.toCharArray();
+        private void sendHistory(Message message) {
+            String with = message.getPayloadHead('-');
+            String before = message.getPayloadTail('-');
+            if (with == null) {
+                with = message.getPayload();
+            }
+            String conversation;
+            if (with.startsWith("#")) {
+                ClientThreadGroup group = clientGroups.get(groupKey(with.substring(1)));
+                if (group == null || (!groups.contains(group) && !group.isOwnedBy(this))) {
+                    writeToClient("-ERR You are not a participant in this group: " + with.substring(1));
+                    return;
+                }
+                conversation = MessageStore.groupConversation(group.getName());
+            } else {
+                conversation = MessageStore.privateConversation(username, with);
+            }
+            long beforeOffset;
+            try {
+                beforeOffset = before == null ? Long.MAX_VALUE : Long.parseLong(before);
+            } catch (NumberFormatException e) {
+                writeToClient("-ERR Invalid offset: " + before);
+                return;
+            }
+            List<MessageStore.StoredMessage> page = store.history(conversation, beforeOffset, conf.STORE_HISTORY_PAGE_SIZE);
+            writeToClient("+OK HISTORY " + page.size() + " " + (page.isEmpty() ? 0 : page.get(0).getOffset()));
+            for (MessageStore.StoredMessage stored : page) {
+                writeToClient("HISTORY " + stored.getOffset() + " " + stored.getTimestamp() + " [" + stored.getFrom() + "] " + stored.getText());
+            }
+        }
 
-            while (x < messageChars.length) {
-                messageChars[x] = 'X';
-                x = x + random.nextInt(10);
+        /**
+         * Sends a message that was stored while this client was offline, in the format it would have had when sent.
+         */
+        private void deliverStored(MessageStore.StoredMessage stored) {
+            if (stored.getType() == MessageStore.PRIVATE) {
+                writeToClient(stored.getFrom() + "has sent you a message: " + stored.getText());
+            } else {
+                writeToClient("GROUPMSG [" + stored.getConversation().substring(1) + "] [" + stored.getFrom() + "] " + stored.getText());
             }
+        }
 
-            return new String(messageChars);
+        /**
+         * Completes a login once the other nodes of the cluster voted on the username.
+         * @param requestedUsername The username, already claimed on this node.
+         * @param granted           Whether all other nodes agreed.
+         */
+        private synchronized void completeLogin(String requestedUsername, boolean granted) {
+            if (granted && !removed) {
+                login(requestedUsername);
+            } else {
+                users.remove(requestedUsername, this);
+                cluster.releaseUser(requestedUsername);
+                if (!removed) {
+                    writeToClient("-ERR user already logged in");
+                }
+            }
         }
 
         /**
-         * Util method to print (debug) information about the server's incoming and outgoing messages.
-         * @param isIncoming    Indicates whether the message was an incoming message. If false then
-         *                      an outgoing message is assumed.
-         * @param message       The message received or sent.
+         * Completes the creation of a group once the other nodes of the cluster voted on the group name.
+         * @param clientGroup   The group, already added on this node.
+         * @param granted       Whether all other nodes agreed.
          */
-        private void logMessage(boolean isIncoming, String message) {
-            String logMessage;
-            String colorCode = conf.CLI_COLOR_OUTGOING;
-            String directionString = ">> ";  // Outgoing message.
-            if (isIncoming) {
-                colorCode = conf.CLI_COLOR_INCOMING;
-                directionString = "<< ";     // Incoming message.
-            }
-
-            // Add username to log if present.
-            // Note when setting up the connection the user is not known.
-            if (getUsername() == null) {
-                logMessage = directionString + message;
+        private void completeNewGroup(ClientThreadGroup clientGroup, boolean granted) {
+            if (granted) {
+                writeToClient("+OK New group with the name "+clientGroup.getName()+" has been added.");
             } else {
-                logMessage = directionString + "[" + getUsername() + "] " + message;
+                clientGroups.remove(groupKey(clientGroup.getName()), clientGroup);
+                groupListing.changed();
+                cluster.releaseGroup(clientGroup.getName());
+                writeToClient("-ERR A group with the name "+clientGroup.getName()+" already exists.");
             }
+        }
 
-            // Log debug messages with or without colors.
-            if(conf.isShowColors()){
-                System.out.println(colorCode + logMessage + conf.RESET_CLI_COLORS);
+        @Override
+        public void onDisconnect() {
+            // Remove from the list of client threads, the connection is closed by the event loop.
+            state = FINISHED;
+            removeClient();
+        }
+
+        /**
+         * Removes this client from the list of client threads and its groups and releases its username.
+         */
+        private synchronized void removeClient() {
+            if (!removed && address != null) {
+                admission.release(address);
+            }
+            if (!removed && capture != null) {
+                capture.closed(id);
+            }
+            removed = true;
+            if (heartbeat != null) {
+                heartbeat.cancel();
+            }
+            threads.remove(this);
+            clientListing.changed();
+            presence.unsubscribe(this);
+            if (deflate != null) {
+                deflate.end();
+            }
+            // The session in reliable mode is kept for a while, so the client can resume it when it comes back.
+            ReliableDelivery.Session session = reliable;
+            if (session != null) {
+                reliable = null;
+                if (username != null) {
+                    session.detach();
+                } else {
+                    session.end();
+                }
+            }
+            if (username != null && users.remove(username, this)) {
+                clientListing.changed();
+                presence.left(username);
+                if (cluster != null) {
+                    cluster.releaseUser(username);
+                }
+            }
+            for (ClientThreadGroup group : groups) {
+                group.deleteClientThread(this);
+                // The group messages are kept for the user until it logs in again or its rejoin time has passed.
+                if (store != null && username != null) {
+                    group.addOfflineMember(username);
+                }
+            }
+            groups.clear();
+        }
+
+        /**
+         * An external process can stop the client using this methode.
+         */
+        public void kill() {
+            try {
+                // Log connection drop and close the outputstream.
+                logger.log(LogLevel.INFO, "[DROP CONNECTION] " + getUsername());
+                removeClient();
+                output.close();
+            } catch(Exception ex) {
+                logger.log(LogLevel.ERROR, "Exception when closing outputstream: " + ex.getMessage());
+            }
+            state = FINISHED;
+        }
+
+        @Override
+        public void deliverPresence(Frame frame) {
+            writeToClient(frame.getLine(), frame);
+        }
+
+        /**
+         * Write a message to this client thread.
+         * @param message   The message to be sent to the (connected) client.
+         */
+        private void writeToClient(String message) {
+            writeToClient(message, null);
+        }
+
+        /**
+         * Write a message to this client thread. The message is only queued, it is written
+         * to the client by the writer of the connection.
+         * @param message   The message to be sent to the (connected) client.
+         * @param frame     The already encoded message (shared with other recipients) or null
+         *                  if the message still has to be encoded.
+         */
+        private void writeToClient(String message, Frame frame) {
+            ReliableDelivery.Session session = reliable;
+            if (session != null) {
+                writeReliable(session, message, frame);
+                return;
+            }
+            // Faults of the bad server modes are injected by the output connection.
+            Frame payload = frame == null ? encode(message) : frame;
+            CompressionCodec compressed = codec;
+            if (compressed == CompressionCodec.DEFLATE) {
+                metrics.recordBytesOut(deflate.write(payload));
             } else {
-                System.out.println(logMessage);
+                Frame written = compressed == CompressionCodec.FAST ? compression.compress(payload) : payload;
+                output.writeFrame(written);
+                metrics.recordBytesOut(written.length());
+            }
+            if (frame == null) {
+                payload.release();
             }
+
+            // Echo the message to the server console for debugging purposes.
+            boolean isIncomingMessage = false;
+            logMessage(isIncomingMessage, message);
+        }
+
+        /**
+         * Writes a numbered message to a client in reliable mode. A client whose session has ended,
+         * because its retransmit window is full or it could not keep up with its retransmits, is
+         * disconnected, it would miss messages it can no longer get back.
+         */
+        private void writeReliable(ReliableDelivery.Session session, String message, Frame frame) {
+            Frame payload = frame == null ? encode(message) : frame;
+            // Only the fast codec is used in reliable mode, it compresses every message on its own.
+            int written = session.send(codec == CompressionCodec.FAST ? compression.compress(payload) : payload);
+            if (frame == null) {
+                payload.release();
+            }
+            if (written < 0) {
+                reliable = null;
+                writeToClient("-ERR Reliable session ended, the client can't keep up with its messages");
+                output.close();
+                return;
+            }
+            metrics.recordBytesOut(written);
+            logMessage(false, message);
+        }
+
+        /**
+         * Util method to log (debug) information about the server's incoming and outgoing messages.
+         * @param isIncoming    Indicates whether the message was an incoming message. If false then
+         *                      an outgoing message is assumed.
+         * @param message       The message received or sent.
+         */
+        private void logMessage(boolean isIncoming, String message) {
+            // The message is formatted (with or without colors) by the logger thread, not here.
+            logger.logMessage(isIncoming, getUsername(), message);
         }
     }
 
     private class ClientThreadGroup{
         private String name;
         private ClientThread owner;
-        private ArrayList<ClientThread> clientThreads = new ArrayList<>();
+        // For groups created on another node of the cluster: the username of the owner and the id of the node.
+        private String ownerName;
+        private String nodeId;
+        // Concurrent set, so participants can join and leave while a message is sent to the group.
+        private Set<ClientThread> clientThreads = ConcurrentHashMap.newKeySet();
+        // Number of participants on the other nodes of the cluster, indexed by node id.
+        private ConcurrentMap<String, Integer> remoteMembers = new ConcurrentHashMap<>();
+        // Usernames of participants that lost their connection with the time they did, only used with a message store.
+        private ConcurrentMap<String, Long> offlineMembers = new ConcurrentHashMap<>();
 
         public ClientThreadGroup(String name, ClientThread owner){
             this.name = name;
             this.owner = owner;
         }
 
-        public String getName() {
-            return name;
+        public ClientThreadGroup(String name, String ownerName, String nodeId){
+            this.name = name;
+            this.ownerName = ownerName;
+            this.nodeId = nodeId;
         }
 
-        public void setName(String name) {
-            this.name = name;
+        public String getName() {
+            return name;
         }
 
         public ClientThread getOwner() {
             return owner;
         }
 
+        public String getOwnerName() {
+            return owner != null ? owner.getUsername() : ownerName;
+        }
+
+        /**
+         * @return  Returns the id of the node the group was created on or null if it was created on this node.
+         */
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * @param ct    A client of this node.
+         * @return  Returns true if the client is the owner of the group.
+         */
+        public boolean isOwnedBy(ClientThread ct) {
+            if (owner != null) {
+                return owner == ct;
+            }
+            return ownerName != null && ownerName.equals(ct.getUsername());
+        }
+
         public void setOwner(ClientThread owner) {
             this.owner = owner;
         }
 
-        public ArrayList<ClientThread> getClientThreads() {
+        public Set<ClientThread> getClientThreads() {
             return this.clientThreads;
         }
 
-        public void setClientThreads(ClientThread newClientThread) {
-            this.clientThreads.add(newClientThread);
+        // Changes of the participants are published to the cluster under the lock of the group, so
+        // the other nodes receive the counts in the right order.
+
+        public synchronized boolean addClientThread(ClientThread newClientThread) {
+            boolean added = this.clientThreads.add(newClientThread);
+            if (added) {
+                groupListing.changed();
+                if (cluster != null) {
+                    cluster.publishMembers(name, clientThreads.size());
+                }
+            }
+            return added;
+        }
+
+        public synchronized boolean deleteClientThread(ClientThread clientThread) {
+            boolean deleted = this.clientThreads.remove(clientThread);
+            if (deleted) {
+                groupListing.changed();
+                if (cluster != null) {
+                    cluster.publishMembers(name, clientThreads.size());
+                }
+            }
+            return deleted;
+        }
+
+        /**
+         * Keeps a participant that lost its connection in the group until it logs in again or the rejoin
+         * time has passed. If the group already keeps the maximum number of offline participants, the
+         * participant that has been offline the longest leaves the group.
+         * @param username  The username of the participant.
+         */
+        public void addOfflineMember(String username) {
+            if (conf.getStoreRejoinMillis() <= 0) {
+                return;
+            }
+            offlineMembers.put(username, System.nanoTime());
+            if (offlineMembers.size() > conf.STORE_MAX_OFFLINE_MEMBERS) {
+                expireOfflineMembers();
+                while (offlineMembers.size() > conf.STORE_MAX_OFFLINE_MEMBERS) {
+                    offlineMembers.entrySet().stream()
+                            .min(Map.Entry.comparingByValue())
+                            .ifPresent(oldest -> offlineMembers.remove(oldest.getKey(), oldest.getValue()));
+                }
+            }
+        }
+
+        /**
+         * @param username  The username of a user that logged in.
+         * @return  Returns true if the user was a participant that lost its connection within the rejoin time.
+         */
+        public boolean removeOfflineMember(String username) {
+            Long since = offlineMembers.remove(username);
+            return since != null && System.nanoTime() - since <= TimeUnit.MILLISECONDS.toNanos(conf.getStoreRejoinMillis());
         }
 
-        public void deleteClientThread(ClientThread clientThread) { this.clientThreads.remove(clientThread); }
+        /**
+         * @return  Returns the participants that are offline and get the messages of the group when they log in.
+         */
+        public Set<String> getOfflineMembers() {
+            expireOfflineMembers();
+            return offlineMembers.keySet();
+        }
+
+        private void expireOfflineMembers() {
+            if (!offlineMembers.isEmpty()) {
+                long now = System.nanoTime();
+                long rejoinNanos = TimeUnit.MILLISECONDS.toNanos(conf.getStoreRejoinMillis());
+                offlineMembers.values().removeIf(since -> now - since > rejoinNanos);
+            }
+        }
+
+        public ConcurrentMap<String, Integer> getRemoteMembers() {
+            return remoteMembers;
+        }
+
+        public int getRemoteMembers(String nodeId) {
+            return remoteMembers.getOrDefault(nodeId, 0);
+        }
 
         public int getGroupSize(){
-            return this.clientThreads.size();
+            int size = this.clientThreads.size();
+            for (int count : remoteMembers.values()) {
+                size += count;
+            }
+            return size;
         }
     }
 }
@@ -1,47 +1,320 @@
 package nl.saxion.internettech;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
 public class ServerConfiguration {
 
     // Constants.
     public final String WELCOME_MESSAGE = "Welkom to WhatsUpp!";
     public final String VERSION = "1.2";
     public final int SERVER_PORT = 1337;
+    public final long SLOW_CONSUMER_BLOCK_TIMEOUT_MS = 5000;
+    public final int LOG_BUFFER_SIZE = 8192;
+    public final int CAPTURE_BUFFER_SIZE = 65536;
+    public final long CLUSTER_CLAIM_TIMEOUT_MS = 2000;
+    public final int STORE_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public final int STORE_HISTORY_PAGE_SIZE = 20;
+    // Maximum number of participants that lost their connection a group keeps messages for.
+    public final int STORE_MAX_OFFLINE_MEMBERS = 1024;
+    public final int LISTING_MAX_PAGE_SIZE = 100;
+    // Maximum number of users in a single PRESENCE line.
+    public final int PRESENCE_MAX_LINE_ENTRIES = 256;
+    // Time after which a message in reliable mode that has not been acknowledged is sent again.
+    public final long RELIABLE_RETRANSMIT_MS = 500;
+    public final long TIMER_TICK_MS = 10;
+    public final int TIMER_WHEEL_SIZE = 512;
+    // Free bytes each size class of the buffer pool keeps for reuse.
+    public final int BUFFER_POOL_RETAINED_BYTES = 4 * 1024 * 1024;
+    // Fault rates of the bad server modes and the timing of the injected faults.
+    public final double BAD_SERVER_DROP_RATE = 1.0 / 6;
+    public final double BAD_SERVER_CORRUPT_RATE = 0.25;
+    public final long FAULT_DISCONNECT_MIN_MS = 10000;
+    public final long FAULT_DISCONNECT_MAX_MS = 20000;
+    public final long FAULT_PARTIAL_WRITE_DELAY_MS = 50;
+    public final long FAULT_REORDER_TIMEOUT_MS = 100;
     // Colors for the console.
     public final String RESET_CLI_COLORS = "\u001B[0m";   // ANSI RESET
     public final String CLI_COLOR_INCOMING = "\u001B[31m";    // ANSI RED
     public final String CLI_COLOR_OUTGOING = "\u001B[32m";  // ANSI GREEN
 
 
+    // Port the server listens on for clients.
+    private int serverPort = SERVER_PORT;
+
     // Enable colors in debug messages
     private boolean showColors = true;
+    // Lowest level that is logged and the fraction (1 in n) of message traces that is logged.
+    private LogLevel logLevel = LogLevel.DEBUG;
+    private int traceSampleRate = 1;
+
+    // Simulation parameters for bad server modus: the probability that a message is dropped, corrupted,
+    // split in two writes or held back behind the next message, the probability that a client is
+    // disconnected, the extra latency of every message and the seed (null for a random seed).
+    private double dropRate = 0;
+    private double corruptRate = 0;
+    private double partialWriteRate = 0;
+    private double reorderRate = 0;
+    private double disconnectRate = 0;
+    private long latencyMillis = 0;
+    private Long faultSeed;
+
+    // Admission control: the maximum number of connections in total and per client address (0 for no
+    // limit), the connections per second that are accepted (0 for no limit) and how many may arrive at once.
+    private int maxConnections = 0;
+    private int maxConnectionsPerAddress = 0;
+    private double acceptRate = 0;
+    private int acceptBurst = 100;
+    // Connections the OS queues until they are accepted, the number of threads that accept connections and
+    // the socket options of client connections (buffer sizes of 0 keep the defaults of the OS).
+    private int acceptBacklog = 50;
+    private int acceptorCount = 1;
+    private boolean tcpNoDelay = false;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+
+    // Serve clients from a fixed number of non-blocking event loops instead of a thread per client.
+    private boolean useEventLoop = false;
+    private int eventLoopCount = Runtime.getRuntime().availableProcessors();
+
+    // Run client threads on virtual threads (Java 21+) instead of platform threads.
+    private boolean useVirtualThreads = false;
+
+    // Maximum number of messages waiting to be written to a single client and what to do when it is exceeded.
+    private int outboundQueueSize = 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+
+    // When the collected outbound frames of a client are written to its socket.
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+    private int flushSize = 8192;
+    private long flushDelayMicros = 200;
+
+    // Port of the local HTTP metrics endpoint, 0 to disable it.
+    private int metricsPort = 0;
+
+    // Port used for the links with the other nodes of a cluster (0 to run stand-alone), the id of
+    // this node and the host:port addresses of the other nodes.
+    private int clusterPort = 0;
+    // Address the cluster port listens on and the secret all nodes of the cluster share, a node
+    // that can't prove it knows the secret is refused. Cluster mode can't be used without a secret.
+    private String clusterBindAddress = "127.0.0.1";
+    private String clusterSecret;
+    private String nodeId;
+    private List<String> clusterPeers = new ArrayList<>();
+
+    // Time without anything received from a client after which the server sends a PING (0 to disable
+    // heartbeats) and the time the client then has to answer before its connection is closed.
+    private long heartbeatIntervalMillis = 0;
+    private long heartbeatTimeoutMillis = 3000;
+
+    // Time the changes of the roster are collected before they are sent to the subscribers as one batch.
+    private long presenceWindowMillis = 100;
+
+    // Maximum number of messages and bytes in the retransmit window of a client in reliable mode, the
+    // bytes in the windows of all clients together (0 for no ceiling) and how long the session of a
+    // client that lost its connection is kept so the client can resume it.
+    private int reliableWindow = 1024;
+    private int reliableWindowMemory = 1024 * 1024;
+    private long reliableMemory = 64 * 1024 * 1024;
+    private long resumeTimeoutMillis = 30000;
+
+    // Length in bytes from which the messages to clients that asked for compression are compressed.
+    private int compressionThreshold = 512;
+
+    // Commands per second a single client may send per command class (absent for no limit), the number
+    // of commands it may send at once above that rate, the number of messages per second all clients
+    // together may cause to be delivered to other clients (0 for no limit) and what to do when a limit is hit.
+    private Map<CommandClass, Double> commandRates = new EnumMap<>(CommandClass.class);
+    private int commandBurst = 10;
+    private double fanoutRate = 0;
+    private RateLimitAction rateLimitAction = RateLimitAction.ERROR;
+
+    // Bytes of pooled buffers the server may use before it refuses new messages (0 for no ceiling), the
+    // bytes that may be queued for a single client (0 for no limit) and whether leaked buffers are reported.
+    private long bufferMemory = Runtime.getRuntime().maxMemory() / 2;
+    private int connectionMemory = 0;
+    private boolean detectLeaks = false;
+
+    // File the traffic of the clients is recorded in, null to record nothing.
+    private String captureFile;
+
+    // Directory of the message store (null to keep no messages) and how often it is forced to disk.
+    private String storeDirectory;
+    private long storeFsyncMillis = 100;
+    // How long a participant that lost its connection stays in its groups, 0 to leave them right away.
+    private long storeRejoinMillis = 24 * 60 * 60 * 1000L;
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public void setServerPort(int serverPort) {
+        this.serverPort = serverPort;
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    public void setHeartbeatIntervalMillis(long heartbeatIntervalMillis) {
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    public void setPresenceWindowMillis(long presenceWindowMillis) {
+        this.presenceWindowMillis = presenceWindowMillis;
+    }
+
+    public int getReliableWindow() {
+        return reliableWindow;
+    }
+
+    public void setReliableWindow(int reliableWindow) {
+        this.reliableWindow = reliableWindow;
+    }
+
+    public int getReliableWindowMemory() {
+        return reliableWindowMemory;
+    }
+
+    public void setReliableWindowMemory(int reliableWindowMemory) {
+        this.reliableWindowMemory = reliableWindowMemory;
+    }
+
+    public long getReliableMemory() {
+        return reliableMemory;
+    }
+
+    public void setReliableMemory(long reliableMemory) {
+        this.reliableMemory = reliableMemory;
+    }
+
+    public long getResumeTimeoutMillis() {
+        return resumeTimeoutMillis;
+    }
+
+    public void setResumeTimeoutMillis(long resumeTimeoutMillis) {
+        this.resumeTimeoutMillis = resumeTimeoutMillis;
+    }
+
+    public long getHeartbeatTimeoutMillis() {
+        return heartbeatTimeoutMillis;
+    }
+
+    public void setHeartbeatTimeoutMillis(long heartbeatTimeoutMillis) {
+        this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+    }
 
-    // Simulation parameters for bad server modus.
-    private boolean simulateDroppedPackets = false;
-    private boolean simulateCorruptedPackets = false;
-    private boolean simulateConnectionLost = false;
+    /**
+     * @param commandClass  A class of commands.
+     * @return  Returns the number of commands per second a client may send or 0 if there is no limit.
+     */
+    public double getCommandRate(CommandClass commandClass) {
+        return commandRates.getOrDefault(commandClass, 0.0);
+    }
+
+    public void setCommandRate(CommandClass commandClass, double commandRate) {
+        this.commandRates.put(commandClass, commandRate);
+    }
+
+    public int getCommandBurst() {
+        return commandBurst;
+    }
+
+    public void setCommandBurst(int commandBurst) {
+        this.commandBurst = commandBurst;
+    }
+
+    public double getFanoutRate() {
+        return fanoutRate;
+    }
+
+    public void setFanoutRate(double fanoutRate) {
+        this.fanoutRate = fanoutRate;
+    }
+
+    public RateLimitAction getRateLimitAction() {
+        return rateLimitAction;
+    }
+
+    public void setRateLimitAction(RateLimitAction rateLimitAction) {
+        this.rateLimitAction = rateLimitAction;
+    }
+
+    public double getDropRate() {
+        return dropRate;
+    }
+
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    public double getCorruptRate() {
+        return corruptRate;
+    }
+
+    public void setCorruptRate(double corruptRate) {
+        this.corruptRate = corruptRate;
+    }
+
+    public double getPartialWriteRate() {
+        return partialWriteRate;
+    }
+
+    public void setPartialWriteRate(double partialWriteRate) {
+        this.partialWriteRate = partialWriteRate;
+    }
 
-    public boolean doSimulateDroppedPackets() {
-        return simulateDroppedPackets;
+    public double getReorderRate() {
+        return reorderRate;
     }
 
-    public void setSimulateDroppedPackets(boolean simulateDroppedPackets) {
-        this.simulateDroppedPackets = simulateDroppedPackets;
+    public void setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
     }
 
-    public boolean doSimulateCorruptedPackets() {
-        return simulateCorruptedPackets;
+    public double getDisconnectRate() {
+        return disconnectRate;
     }
 
-    public void setSimulateCorruptedPackets(boolean simulateCorruptedPackets) {
-        this.simulateCorruptedPackets = simulateCorruptedPackets;
+    public void setDisconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
     }
 
-    public boolean doSimulateConnectionLost() {
-        return simulateConnectionLost;
+    public long getLatencyMillis() {
+        return latencyMillis;
     }
 
-    public void setSimulateConnectionLost(boolean simulateConnectionLost) {
-        this.simulateConnectionLost = simulateConnectionLost;
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public Long getFaultSeed() {
+        return faultSeed;
+    }
+
+    public void setFaultSeed(Long faultSeed) {
+        this.faultSeed = faultSeed;
+    }
+
+    /**
+     * @return  Returns true if faults are injected in the messages sent to the clients.
+     */
+    public boolean doInjectMessageFaults() {
+        return dropRate > 0 || corruptRate > 0 || partialWriteRate > 0 || reorderRate > 0 || latencyMillis > 0;
     }
 
     public boolean isShowColors() {
@@ -52,4 +325,263 @@ public class ServerConfiguration {
         this.showColors = showColors;
     }
 
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    public int getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public void setTraceSampleRate(int traceSampleRate) {
+        this.traceSampleRate = traceSampleRate;
+    }
+
+    public boolean isUseEventLoop() {
+        return useEventLoop;
+    }
+
+    public void setUseEventLoop(boolean useEventLoop) {
+        this.useEventLoop = useEventLoop;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    public double getAcceptRate() {
+        return acceptRate;
+    }
+
+    public void setAcceptRate(double acceptRate) {
+        this.acceptRate = acceptRate;
+    }
+
+    public int getAcceptBurst() {
+        return acceptBurst;
+    }
+
+    public void setAcceptBurst(int acceptBurst) {
+        this.acceptBurst = acceptBurst;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    public void setAcceptorCount(int acceptorCount) {
+        this.acceptorCount = acceptorCount;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getEventLoopCount() {
+        return eventLoopCount;
+    }
+
+    public void setEventLoopCount(int eventLoopCount) {
+        this.eventLoopCount = eventLoopCount;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    public int getOutboundQueueSize() {
+        return outboundQueueSize;
+    }
+
+    public void setOutboundQueueSize(int outboundQueueSize) {
+        this.outboundQueueSize = outboundQueueSize;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    public void setFlushDelayMicros(long flushDelayMicros) {
+        this.flushDelayMicros = flushDelayMicros;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public void setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+    }
+
+    public String getClusterBindAddress() {
+        return clusterBindAddress;
+    }
+
+    public void setClusterBindAddress(String clusterBindAddress) {
+        this.clusterBindAddress = clusterBindAddress;
+    }
+
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public void setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+    }
+
+    /**
+     * @return  Returns the id of this node, unique within the cluster. Defaults to node-[server port].
+     */
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + serverPort;
+    }
+
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public List<String> getClusterPeers() {
+        return clusterPeers;
+    }
+
+    public void setClusterPeers(List<String> clusterPeers) {
+        this.clusterPeers = clusterPeers;
+    }
+
+    public String getStoreDirectory() {
+        return storeDirectory;
+    }
+
+    public void setStoreDirectory(String storeDirectory) {
+        this.storeDirectory = storeDirectory;
+    }
+
+    public long getBufferMemory() {
+        return bufferMemory;
+    }
+
+    public void setBufferMemory(long bufferMemory) {
+        this.bufferMemory = bufferMemory;
+    }
+
+    public int getConnectionMemory() {
+        return connectionMemory;
+    }
+
+    public void setConnectionMemory(int connectionMemory) {
+        this.connectionMemory = connectionMemory;
+    }
+
+    public boolean doDetectLeaks() {
+        return detectLeaks;
+    }
+
+    public void setDetectLeaks(boolean detectLeaks) {
+        this.detectLeaks = detectLeaks;
+    }
+
+    public String getCaptureFile() {
+        return captureFile;
+    }
+
+    public void setCaptureFile(String captureFile) {
+        this.captureFile = captureFile;
+    }
+
+    public long getStoreFsyncMillis() {
+        return storeFsyncMillis;
+    }
+
+    public void setStoreFsyncMillis(long storeFsyncMillis) {
+        this.storeFsyncMillis = storeFsyncMillis;
+    }
+
+    public long getStoreRejoinMillis() {
+        return storeRejoinMillis;
+    }
+
+    public void setStoreRejoinMillis(long storeRejoinMillis) {
+        this.storeRejoinMillis = storeRejoinMillis;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
 }
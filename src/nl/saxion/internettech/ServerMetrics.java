@@ -0,0 +1,504 @@
+package nl.saxion.internettech;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms of the server. Counters are striped (LongAdder),
+ * so recording them on the hot path costs an uncontended add. Gauges are only computed when
+ * the metrics are read. The metrics can be read with the STATS command, over JMX and, if
+ * configured, over HTTP in the Prometheus text format.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+
+    private final LongAdder[] commandCounts = new LongAdder[TYPES.length];
+    private final LatencyHistogram[] commandLatencies = new LatencyHistogram[TYPES.length];
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder droppedPackets = new LongAdder();
+    private final LongAdder corruptedPackets = new LongAdder();
+    private final LongAdder reorderedPackets = new LongAdder();
+    private final LongAdder partialWrites = new LongAdder();
+    private final LongAdder injectedDisconnects = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+    private final LongAdder reapedConnections = new LongAdder();
+    private final LongAdder rateLimitedCommands = new LongAdder();
+    private final LongAdder shedCommands = new LongAdder();
+    private final LongAdder bufferLeaks = new LongAdder();
+    private final LongAdder presenceUpdates = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder reliableOverflows = new LongAdder();
+    private final LongAdder compressedMessages = new LongAdder();
+    private final LongAdder uncompressedMessages = new LongAdder();
+    private final LongAdder compressionBytesIn = new LongAdder();
+    private final LongAdder compressionBytesOut = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    // Gauges, read from the server when the metrics are read.
+    private final IntSupplier clients;
+    private final IntSupplier groups;
+    private final IntSupplier queuedFrames;
+    private final LongSupplier droppedLogMessages;
+    private final LongSupplier bufferBytes;
+    private final LongSupplier reliableBytes;
+
+    // Last sample of the accept counter, used to calculate the accept rate.
+    private long lastAcceptSampleNanos = System.nanoTime();
+    private long lastAcceptSampleCount = 0;
+    private double acceptRate = 0;
+
+    public ServerMetrics(IntSupplier clients, IntSupplier groups, IntSupplier queuedFrames, LongSupplier droppedLogMessages,
+                         LongSupplier bufferBytes, LongSupplier reliableBytes) {
+        this.clients = clients;
+        this.groups = groups;
+        this.queuedFrames = queuedFrames;
+        this.droppedLogMessages = droppedLogMessages;
+        this.bufferBytes = bufferBytes;
+        this.reliableBytes = reliableBytes;
+        for (int i = 0; i < TYPES.length; i++) {
+            commandCounts[i] = new LongAdder();
+            commandLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records that a command has been handled.
+     * @param type              The type of the command.
+     * @param processingNanos   The time it took to handle the command.
+     */
+    public void recordCommand(Message.MessageType type, long processingNanos) {
+        commandCounts[type.ordinal()].increment();
+        commandLatencies[type.ordinal()].record(processingNanos);
+    }
+
+    public void recordAccept() {
+        accepted.increment();
+    }
+
+    public void recordRefusedConnection() {
+        refused.increment();
+    }
+
+    /**
+     * Records the PRESENCE lines sent to the subscribers of the roster.
+     * @param lines The number of lines, counted once per subscriber.
+     */
+    public void recordPresenceUpdates(long lines) {
+        presenceUpdates.add(lines);
+    }
+
+    public void recordRetransmit() {
+        retransmits.increment();
+    }
+
+    public void recordReliableOverflow() {
+        reliableOverflows.increment();
+    }
+
+    /**
+     * Records a compressed message sent to a client, counted once per recipient.
+     * @param originalBytes     The length of the message before it was compressed.
+     * @param compressedBytes   The length of the compressed message.
+     */
+    public void recordCompressed(long originalBytes, long compressedBytes) {
+        compressedMessages.increment();
+        compressionBytesIn.add(originalBytes);
+        compressionBytesOut.add(compressedBytes);
+    }
+
+    /**
+     * Records a message sent uncompressed to a client that uses compression, because it was too short.
+     */
+    public void recordUncompressed() {
+        uncompressedMessages.increment();
+    }
+
+    /**
+     * Records the time spent compressing a message, once per compression and not per recipient.
+     * @param nanos The time it took.
+     */
+    public void recordCompressionNanos(long nanos) {
+        compressionNanos.add(nanos);
+    }
+
+    public void recordBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void recordBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void recordDroppedPacket() {
+        droppedPackets.increment();
+    }
+
+    public void recordCorruptedPacket() {
+        corruptedPackets.increment();
+    }
+
+    public void recordReorderedPacket() {
+        reorderedPackets.increment();
+    }
+
+    public void recordPartialWrite() {
+        partialWrites.increment();
+    }
+
+    public void recordInjectedDisconnect() {
+        injectedDisconnects.increment();
+    }
+
+    public void recordDroppedFrame() {
+        droppedFrames.increment();
+    }
+
+    public void recordRateLimitedCommand() {
+        rateLimitedCommands.increment();
+    }
+
+    public void recordShedCommand() {
+        shedCommands.increment();
+    }
+
+    public void recordBufferLeak() {
+        bufferLeaks.increment();
+    }
+
+    public void recordReapedConnection() {
+        reapedConnections.increment();
+    }
+
+    public void recordSlowConsumerDisconnect() {
+        slowConsumerDisconnects.increment();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return clients.getAsInt();
+    }
+
+    @Override
+    public int getGroups() {
+        return groups.getAsInt();
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return queuedFrames.getAsInt();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRefusedConnections() {
+        return refused.sum();
+    }
+
+    /**
+     * @return  Returns the number of accepted connections per second since the previous sample.
+     *          A new sample is taken at most once per second.
+     */
+    @Override
+    public synchronized double getAcceptRate() {
+        long now = System.nanoTime();
+        if (now - lastAcceptSampleNanos >= 1_000_000_000L) {
+            long count = accepted.sum();
+            acceptRate = (count - lastAcceptSampleCount) * 1e9 / (now - lastAcceptSampleNanos);
+            lastAcceptSampleCount = count;
+            lastAcceptSampleNanos = now;
+        }
+        return acceptRate;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        return droppedPackets.sum();
+    }
+
+    @Override
+    public long getCorruptedPackets() {
+        return corruptedPackets.sum();
+    }
+
+    @Override
+    public long getReorderedPackets() {
+        return reorderedPackets.sum();
+    }
+
+    @Override
+    public long getPartialWrites() {
+        return partialWrites.sum();
+    }
+
+    @Override
+    public long getInjectedDisconnects() {
+        return injectedDisconnects.sum();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    @Override
+    public long getRateLimitedCommands() {
+        return rateLimitedCommands.sum();
+    }
+
+    @Override
+    public long getShedCommands() {
+        return shedCommands.sum();
+    }
+
+    @Override
+    public long getBufferLeaks() {
+        return bufferLeaks.sum();
+    }
+
+    @Override
+    public long getPresenceUpdates() {
+        return presenceUpdates.sum();
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getReliableOverflows() {
+        return reliableOverflows.sum();
+    }
+
+    @Override
+    public long getCompressedMessages() {
+        return compressedMessages.sum();
+    }
+
+    @Override
+    public long getUncompressedMessages() {
+        return uncompressedMessages.sum();
+    }
+
+    @Override
+    public long getCompressionBytesIn() {
+        return compressionBytesIn.sum();
+    }
+
+    @Override
+    public long getCompressionBytesOut() {
+        return compressionBytesOut.sum();
+    }
+
+    @Override
+    public long getCompressionMicros() {
+        return compressionNanos.sum() / 1000;
+    }
+
+    @Override
+    public long getReliableBytes() {
+        return reliableBytes.getAsLong();
+    }
+
+    @Override
+    public long getBufferBytes() {
+        return bufferBytes.getAsLong();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return reapedConnections.sum();
+    }
+
+    @Override
+    public long getDroppedLogMessages() {
+        return droppedLogMessages.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Message.MessageType type : TYPES) {
+            result.put(type.name(), commandCounts[type.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getCommandLatencyP99Micros() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Message.MessageType type : TYPES) {
+            result.put(type.name(), commandLatencies[type.ordinal()].getValueAtPercentile(99) / 1000.0);
+        }
+        return result;
+    }
+
+    /**
+     * @return  Returns all metrics on a single line, used as reply to the STATS command.
+     */
+    public String toStatsLine() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("clients=").append(getConnectedClients())
+                .append(" groups=").append(getGroups())
+                .append(" queued=").append(getQueuedFrames())
+                .append(" accepted=").append(getAcceptedConnections())
+                .append(" refused=").append(getRefusedConnections())
+                .append(String.format(" acceptRate=%.1f/s", getAcceptRate()))
+                .append(" bytesIn=").append(getBytesIn())
+                .append(" bytesOut=").append(getBytesOut())
+                .append(" dropped=").append(getDroppedPackets())
+                .append(" corrupted=").append(getCorruptedPackets())
+                .append(" reordered=").append(getReorderedPackets())
+                .append(" partialWrites=").append(getPartialWrites())
+                .append(" injectedDisconnects=").append(getInjectedDisconnects())
+                .append(" droppedFrames=").append(getDroppedFrames())
+                .append(" slowConsumers=").append(getSlowConsumerDisconnects())
+                .append(" reaped=").append(getReapedConnections())
+                .append(" rateLimited=").append(getRateLimitedCommands())
+                .append(" bufferBytes=").append(getBufferBytes())
+                .append(" shed=").append(getShedCommands())
+                .append(" bufferLeaks=").append(getBufferLeaks())
+                .append(" presenceUpdates=").append(getPresenceUpdates())
+                .append(" retransmits=").append(getRetransmits())
+                .append(" reliableOverflows=").append(getReliableOverflows())
+                .append(" reliableBytes=").append(getReliableBytes())
+                .append(" compressed=").append(getCompressedMessages())
+                .append(" uncompressed=").append(getUncompressedMessages())
+                .append(" compressionIn=").append(getCompressionBytesIn())
+                .append(" compressionOut=").append(getCompressionBytesOut())
+                .append(" compressionMicros=").append(getCompressionMicros())
+                .append(" droppedLogs=").append(getDroppedLogMessages());
+        for (Message.MessageType type : TYPES) {
+            LatencyHistogram latency = commandLatencies[type.ordinal()];
+            if (latency.getTotalCount() > 0) {
+                builder.append(' ').append(type.name()).append('=').append(commandCounts[type.ordinal()].sum())
+                        .append(String.format("/p50:%.1fus/p99:%.1fus",
+                                latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return  Returns all metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheusText() {
+        StringBuilder builder = new StringBuilder();
+        gauge(builder, "chat_connected_clients", getConnectedClients());
+        gauge(builder, "chat_groups", getGroups());
+        gauge(builder, "chat_queued_frames", getQueuedFrames());
+        counter(builder, "chat_accepted_connections_total", getAcceptedConnections());
+        counter(builder, "chat_refused_connections_total", getRefusedConnections());
+        gauge(builder, "chat_accept_rate", getAcceptRate());
+        counter(builder, "chat_bytes_in_total", getBytesIn());
+        counter(builder, "chat_bytes_out_total", getBytesOut());
+        counter(builder, "chat_dropped_packets_total", getDroppedPackets());
+        counter(builder, "chat_corrupted_packets_total", getCorruptedPackets());
+        counter(builder, "chat_reordered_packets_total", getReorderedPackets());
+        counter(builder, "chat_partial_writes_total", getPartialWrites());
+        counter(builder, "chat_injected_disconnects_total", getInjectedDisconnects());
+        counter(builder, "chat_dropped_frames_total", getDroppedFrames());
+        counter(builder, "chat_slow_consumer_disconnects_total", getSlowConsumerDisconnects());
+        counter(builder, "chat_reaped_connections_total", getReapedConnections());
+        counter(builder, "chat_rate_limited_commands_total", getRateLimitedCommands());
+        gauge(builder, "chat_buffer_bytes", getBufferBytes());
+        counter(builder, "chat_shed_commands_total", getShedCommands());
+        counter(builder, "chat_buffer_leaks_total", getBufferLeaks());
+        counter(builder, "chat_presence_updates_total", getPresenceUpdates());
+        counter(builder, "chat_retransmits_total", getRetransmits());
+        counter(builder, "chat_reliable_overflows_total", getReliableOverflows());
+        gauge(builder, "chat_reliable_bytes", getReliableBytes());
+        counter(builder, "chat_compressed_messages_total", getCompressedMessages());
+        counter(builder, "chat_uncompressed_messages_total", getUncompressedMessages());
+        counter(builder, "chat_compression_bytes_in_total", getCompressionBytesIn());
+        counter(builder, "chat_compression_bytes_out_total", getCompressionBytesOut());
+        counter(builder, "chat_compression_microseconds_total", getCompressionMicros());
+        counter(builder, "chat_dropped_log_messages_total", getDroppedLogMessages());
+
+        builder.append("# TYPE chat_commands_total counter\n");
+        for (Message.MessageType type : TYPES) {
+            builder.append("chat_commands_total{command=\"").append(type.name()).append("\"} ")
+                    .append(commandCounts[type.ordinal()].sum()).append('\n');
+        }
+        builder.append("# TYPE chat_command_seconds summary\n");
+        for (Message.MessageType type : TYPES) {
+            LatencyHistogram latency = commandLatencies[type.ordinal()];
+            for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                builder.append("chat_command_seconds{command=\"").append(type.name()).append("\",quantile=\"")
+                        .append(quantile).append("\"} ").append(latency.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            builder.append("chat_command_seconds_count{command=\"").append(type.name()).append("\"} ")
+                    .append(latency.getTotalCount()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static void gauge(StringBuilder builder, String name, double value) {
+        builder.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder builder, String name, long value) {
+        builder.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     */
+    public void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("nl.saxion.internettech:type=ServerMetrics"));
+    }
+
+    /**
+     * Serves the metrics over HTTP on /metrics, only reachable from the local machine.
+     * @param port  The port to listen on.
+     */
+    public void startHttpEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+    }
+}
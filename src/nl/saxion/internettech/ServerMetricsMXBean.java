@@ -0,0 +1,85 @@
+package nl.saxion.internettech;
+
+import java.util.Map;
+
+/**
+ * The server metrics as exposed over JMX.
+ */
+public interface ServerMetricsMXBean {
+
+    int getConnectedClients();
+
+    int getGroups();
+
+    int getQueuedFrames();
+
+    long getAcceptedConnections();
+
+    long getRefusedConnections();
+
+    double getAcceptRate();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getDroppedPackets();
+
+    long getCorruptedPackets();
+
+    long getReorderedPackets();
+
+    long getPartialWrites();
+
+    long getInjectedDisconnects();
+
+    long getDroppedFrames();
+
+    long getSlowConsumerDisconnects();
+
+    long getReapedConnections();
+
+    long getRateLimitedCommands();
+
+    long getBufferBytes();
+
+    long getShedCommands();
+
+    long getBufferLeaks();
+
+    long getPresenceUpdates();
+
+    long getRetransmits();
+
+    long getReliableOverflows();
+
+    long getReliableBytes();
+
+    long getCompressedMessages();
+
+    long getUncompressedMessages();
+
+    /**
+     * @return  Returns the bytes of the compressed messages before they were compressed.
+     */
+    long getCompressionBytesIn();
+
+    /**
+     * @return  Returns the bytes of the compressed messages after they were compressed.
+     */
+    long getCompressionBytesOut();
+
+    /**
+     * @return  Returns the time spent compressing messages in microseconds.
+     */
+    long getCompressionMicros();
+
+    long getDroppedLogMessages();
+
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return  Returns the 99th percentile of the processing time per command in microseconds.
+     */
+    Map<String, Double> getCommandLatencyP99Micros();
+}
@@ -0,0 +1,16 @@
+package nl.saxion.internettech;
+
+/**
+ * What to do with a message for a client whose outbound queue is full, i.e. a client that
+ * does not read its messages fast enough.
+ */
+public enum SlowConsumerPolicy {
+    // Drop the message, the client misses it.
+    DROP,
+    // Disconnect the client.
+    DISCONNECT,
+    // Let the sender wait for room in the queue. Disconnects the client when the wait times out or
+    // when the sender is not the thread of a client but an event loop, the timing wheel or another
+    // thread that serves all clients, which must never block.
+    BLOCK
+}
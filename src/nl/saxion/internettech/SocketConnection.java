@@ -0,0 +1,193 @@
+package nl.saxion.internettech;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A client connection backed by a blocking socket. Used by the thread-per-connection mode.
+ * Frames are written by a dedicated writer thread that drains the outbound queue of the
+ * connection, so a client that reads slowly only blocks its own writer. The writer collects
+ * the queued frames in a long-lived write buffer and writes them to the socket in one go,
+ * when the flush policy says so.
+ */
+public class SocketConnection implements ClientConnection {
+
+    private Socket socket;
+    private OutboundQueue outbound;
+    private AsyncLogger logger;
+    private FlushPolicy flushPolicy;
+    private long flushDelayNanos;
+    private byte[] writeBuffer;
+    private int writeBufferLength = 0;
+    // Set by the writer once it has written the frame that switches the client to the binary protocol.
+    private boolean binaryOutput = false;
+    private final ProtocolDecoder decoder = new ProtocolDecoder();
+    // System.nanoTime() before which the reader must not read, only used by the reader thread.
+    private long readsResumeAt;
+    private boolean readsPaused = false;
+
+    public SocketConnection(Socket socket, OutboundQueue outbound, ServerConfiguration conf, AsyncLogger logger) {
+        this.socket = socket;
+        this.outbound = outbound;
+        this.logger = logger;
+        this.flushPolicy = conf.getFlushPolicy();
+        this.flushDelayNanos = conf.getFlushDelayMicros() * 1000L;
+        this.writeBuffer = new byte[conf.getFlushSize()];
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    public ProtocolDecoder getDecoder() {
+        return decoder;
+    }
+
+    @Override
+    public void switchToBinary() {
+        decoder.switchToBinary();
+    }
+
+    /**
+     * Stops decoding after the command that is being handled, the reader waits until the time is up.
+     * Called by the handler, on the reader thread.
+     */
+    @Override
+    public void pauseReads(long nanos) {
+        decoder.pause();
+        long resumeAt = System.nanoTime() + nanos;
+        if (!readsPaused || resumeAt - readsResumeAt > 0) {
+            readsResumeAt = resumeAt;
+        }
+        readsPaused = true;
+    }
+
+    /**
+     * Blocks the reader while reads are paused and then handles the commands that were received
+     * before the pause, which may pause reads again. The client notices because the socket
+     * buffers fill up, just like with a slow server.
+     * @param handler   Receives the held commands.
+     * @param closing   Tells whether the connection is being closed.
+     * @throws IOException  When the client sent a line or frame that is too long or invalid.
+     */
+    public void awaitReads(ConnectionHandler handler, BooleanSupplier closing) throws IOException {
+        while (readsPaused) {
+            long wait;
+            while ((wait = readsResumeAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            readsPaused = false;
+            decoder.resume(handler, closing);
+        }
+    }
+
+    /**
+     * Starts the writer of this connection.
+     * @param threadFactory The factory used to create the writer thread.
+     */
+    public void startWriter(ThreadFactory threadFactory) {
+        threadFactory.newThread(this::writeLoop).start();
+    }
+
+    private void writeLoop() {
+        try {
+            OutputStream os = socket.getOutputStream();
+            Frame frame;
+            while ((frame = outbound.take()) != null) {
+                // Collect more frames until the flush policy says the buffer has to be written.
+                long deadline = System.nanoTime() + flushDelayNanos;
+                while (frame != null) {
+                    try {
+                        // A full buffer is written by append.
+                        append(os, binaryOutput ? frame.toBinary() : frame);
+                    } finally {
+                        // The frame has been copied or written, the queue's reference is no longer needed.
+                        frame.release();
+                    }
+                    if (frame.isSwitchToBinary()) {
+                        binaryOutput = true;
+                    }
+                    if (flushPolicy == FlushPolicy.IMMEDIATE) {
+                        frame = outbound.poll();
+                    } else {
+                        if (flushPolicy == FlushPolicy.SIZE) {
+                            deadline = System.nanoTime() + flushDelayNanos;
+                        }
+                        frame = outbound.poll(deadline - System.nanoTime());
+                    }
+                }
+                flushBuffer(os);
+            }
+        } catch (IOException e) {
+            logger.log(LogLevel.ERROR, "Server Exception: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Give the buffers of the frames that can no longer be written back to the pool.
+            outbound.clear();
+            closeSocket();
+        }
+    }
+
+    private void append(OutputStream os, Frame frame) throws IOException {
+        if (writeBufferLength + frame.length() > writeBuffer.length) {
+            flushBuffer(os);
+        }
+        if (frame.length() > writeBuffer.length) {
+            // Too large to buffer, write it directly.
+            frame.writeTo(os);
+        } else {
+            frame.copyTo(writeBuffer, writeBufferLength);
+            writeBufferLength += frame.length();
+        }
+    }
+
+    private void flushBuffer(OutputStream os) throws IOException {
+        if (writeBufferLength > 0) {
+            os.write(writeBuffer, 0, writeBufferLength);
+            writeBufferLength = 0;
+        }
+    }
+
+    @Override
+    public boolean writeFrame(Frame frame) {
+        if (!outbound.offer(frame, OutboundQueue.isBlockingAllowed())) {
+            logger.log(LogLevel.WARN, "[SLOW CONSUMER] Disconnecting " + socket);
+            outbound.clear();
+            closeSocket();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the socket once the writer has written all queued frames.
+     */
+    @Override
+    public void close() {
+        outbound.close();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(LogLevel.ERROR, "Exception when closing socket: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return outbound.size();
+    }
+
+    @Override
+    public String toString() {
+        return socket.toString();
+    }
+}
@@ -0,0 +1,147 @@
+package nl.saxion.internettech;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: a single thread runs the tasks of all timers of the server, instead of a
+ * sleeping thread or a scheduled executor task per timer. Time is divided in ticks, a task is put in
+ * the bucket of the tick it expires in and the thread only looks at one bucket per tick. A task
+ * that expires more than a full turn of the wheel ahead waits for the remaining turns in its bucket.
+ * <p>
+ * Scheduling and cancelling are cheap and can be done from any thread, new tasks are handed to the
+ * wheel thread through a queue. Tasks run on the wheel thread and must not block, a task that
+ * needs to do more work should hand it off. Tasks expire at most one tick late.
+ */
+public class TimingWheel {
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task, it is removed from the wheel when its bucket comes by.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final long tickNanos;
+    private final List<ArrayDeque<Timeout>> buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AsyncLogger logger;
+    private final long startTime;
+    private Thread thread;
+
+    /**
+     * @param tickMillis    The duration of a tick.
+     * @param wheelSize     The number of buckets, rounded up to a power of two.
+     * @param logger        Logs the tasks that fail.
+     */
+    public TimingWheel(long tickMillis, int wheelSize, AsyncLogger logger) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        this.logger = logger;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Starts the thread of the wheel, if it has not been started yet.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, "timing-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Schedules a task, the wheel is started if needed.
+     * @param task      The task to run on the wheel thread.
+     * @param delay     The delay in milliseconds.
+     * @return  Returns the timeout that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        start();
+        Timeout timeout = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            // Sleep until the end of the tick, then run the tasks of its bucket.
+            long tickEnd = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < tickEnd) {
+                LockSupport.parkNanos(tickEnd - now);
+            }
+            transferAdded(tick);
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    /**
+     * Puts the newly scheduled tasks in the bucket of the tick they expire in.
+     */
+    private void transferAdded(long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // A task that should have expired already runs in the current tick.
+            long expiresAt = Math.max(tick, (timeout.deadline - startTime) / tickNanos);
+            timeout.remainingRounds = (expiresAt - tick) / buckets.size();
+            buckets.get((int) (expiresAt & mask)).add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        // Take every task out of the bucket once, the ones for a later round are put back.
+        for (int count = bucket.size(); count > 0; count--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                bucket.add(timeout);
+            } else {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.log(LogLevel.ERROR, "Timer task failed: " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package nl.saxion.internettech;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that allows a number of commands per second with bursts up to the size of the
+ * bucket. Instead of a token count and a refill time it keeps a single value: the time at which
+ * the bucket will be full again (the generic cell rate algorithm). Taking tokens moves that time
+ * forward, so a bucket costs one compare-and-set per command and never locks.
+ */
+public class TokenBucket {
+
+    // Time it takes to earn a single token and to fill the whole bucket.
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int burst;
+    // The time at which the bucket will be full again, in System.nanoTime().
+    private final AtomicLong fullAt;
+
+    /**
+     * @param ratePerSecond The number of tokens added per second.
+     * @param burst         The size of the bucket, at least 1.
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burst = Math.max(1, burst);
+        this.burstNanos = intervalNanos * this.burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes tokens if the bucket has enough of them.
+     * @param permits   The number of tokens, limited to the size of the bucket.
+     * @param now       The current System.nanoTime().
+     * @return  Returns 0 if the tokens have been taken, otherwise the number of nanoseconds
+     *          until the bucket has enough tokens.
+     */
+    public long tryAcquire(int permits, long now) {
+        long cost = Math.min(permits, burst) * intervalNanos;
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            long excess = next - now - burstNanos;
+            if (excess > 0) {
+                return excess;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Takes tokens, even if the bucket does not have enough of them. The missing tokens are
+     * taken from the tokens that are added later.
+     * @param permits   The number of tokens, limited to the size of the bucket.
+     * @param now       The current System.nanoTime().
+     * @return  Returns the number of nanoseconds the caller should wait to stay within the rate, 0 if none.
+     */
+    public long acquire(int permits, long now) {
+        long cost = Math.min(permits, burst) * intervalNanos;
+        while (true) {
+            long current = fullAt.get();
+            long next = (current - now > 0 ? current : now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package nl.saxion.internettech;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the traffic the clients send to the server in a capture file, so the real mix of
+ * commands can be replayed later (see the TrafficReplay tool). Every record has the time since
+ * the previous record, the id of the connection and, for a line, the line as it was received.
+ * Commands of binary clients are recorded as their equivalent line.
+ * <p>
+ * Like the {@link AsyncLogger} the records are put in a bounded lock-free {@link RingBuffer} and written
+ * by a single background thread, a thread that handles a client never waits for the disk. When
+ * the ring buffer is full records are dropped, the writer then records a gap with their number.
+ * <p>
+ * The file starts with the magic bytes CHATCAP1 and the time the capture started in milliseconds
+ * since the epoch. Each record is a kind byte followed by varints: the microseconds since the
+ * previous record, the connection id and, for a line, its length and its UTF-8 bytes. A gap
+ * has the number of dropped records instead of a connection id.
+ */
+public class TrafficCapture {
+
+    // Record kinds.
+    public static final int CONNECT = 1;
+    public static final int LINE = 2;
+    public static final int CLOSE = 3;
+    public static final int GAP = 4;
+
+    private static final byte[] MAGIC = "CHATCAP1".getBytes(StandardCharsets.US_ASCII);
+    // Time the writer sleeps when there is nothing to write.
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final RingBuffer<Entry> entries;
+    private final DataOutputStream out;
+    private final AsyncLogger logger;
+    private long lastNanos;
+    private long writtenDropped = 0;
+    private byte[] encoded = new byte[256];
+    // Set when the file has been closed, nothing is written after that.
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the capture file and starts the writer.
+     * @param path          The capture file, overwritten if it exists.
+     * @param bufferSize    The number of records the ring buffer holds, rounded up to a power of two.
+     * @param logger        Logs write errors.
+     * @throws IOException  When the file can't be created.
+     */
+    public TrafficCapture(String path, int bufferSize, AsyncLogger logger) throws IOException {
+        this.entries = new RingBuffer<>(bufferSize, Entry::new);
+        this.logger = logger;
+
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 64 * 1024));
+        out.write(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        this.lastNanos = System.nanoTime();
+
+        Thread writer = new Thread(this::writeLoop, "traffic-capture");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public void connected(long connection) {
+        publish(CONNECT, connection, null);
+    }
+
+    public void received(long connection, String line) {
+        publish(LINE, connection, line);
+    }
+
+    public void closed(long connection) {
+        publish(CLOSE, connection, null);
+    }
+
+    /**
+     * @return  Returns the number of records dropped because the ring buffer was full.
+     */
+    public long getDroppedCount() {
+        return entries.getDroppedCount();
+    }
+
+    private void publish(int kind, long connection, String line) {
+        long now = System.nanoTime();
+        long position = entries.claim();
+        if (position < 0) {
+            return;
+        }
+        Entry entry = entries.get(position);
+        entry.kind = kind;
+        entry.connection = connection;
+        entry.nanos = now;
+        entry.line = line;
+        entries.publish(position);
+    }
+
+    private void writeLoop() {
+        while (!closed) {
+            try {
+                if (!drain()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException e) {
+                logger.log(LogLevel.ERROR, "Failed to write traffic capture: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes all published records and flushes once.
+     * @return  Returns false if there was nothing to write or the file has been closed.
+     */
+    private synchronized boolean drain() throws IOException {
+        if (closed) {
+            return false;
+        }
+        boolean wrote = false;
+        Entry entry;
+        while ((entry = entries.peek()) != null) {
+            long droppedNow = entries.getDroppedCount();
+            if (droppedNow != writtenDropped) {
+                write(GAP, droppedNow - writtenDropped, entry.nanos, null);
+                writtenDropped = droppedNow;
+            }
+            write(entry.kind, entry.connection, entry.nanos, entry.line);
+            entry.line = null;
+            entries.release();
+            wrote = true;
+        }
+        if (wrote) {
+            out.flush();
+        }
+        return wrote;
+    }
+
+    private void write(int kind, long connection, long nanos, String line) throws IOException {
+        out.write(kind);
+        // Records of different threads can be published slightly out of order.
+        writeVarint(out, Math.max(0, (nanos - lastNanos) / 1000));
+        lastNanos = Math.max(lastNanos, nanos);
+        writeVarint(out, connection);
+        if (line != null) {
+            // Lines are mostly ASCII, encode into a reused array.
+            int length = 0;
+            if (encoded.length < line.length() * 3) {
+                encoded = new byte[line.length() * 3];
+            }
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c >= 0x80) {
+                    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(bytes, 0, encoded, 0, bytes.length);
+                    length = bytes.length;
+                    break;
+                }
+                encoded[length++] = (byte) c;
+            }
+            writeVarint(out, length);
+            out.write(encoded, 0, length);
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Writes the remaining records and closes the file, called when the server stops. The writer
+     * stops at its next drain, it can't write to the closed file as drain holds the same lock.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            drain();
+        } catch (IOException e) {
+            logger.log(LogLevel.ERROR, "Failed to write traffic capture: " + e.getMessage());
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.log(LogLevel.ERROR, "Failed to close traffic capture: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A record in the ring buffer.
+     */
+    private static final class Entry {
+        private int kind;
+        private long connection;
+        private long nanos;
+        private String line;
+    }
+
+    /**
+     * A record of a capture file.
+     */
+    public static final class Record {
+        private int kind;
+        private long nanos;
+        private long connection;
+        private String line;
+
+        public int getKind() {
+            return kind;
+        }
+
+        /**
+         * @return  Returns the time of the record since the start of the capture.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return  Returns the connection id, or the number of dropped records for a gap.
+         */
+        public long getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return  Returns the line of a LINE record, null for other records.
+         */
+        public String getLine() {
+            return line;
+        }
+    }
+
+    /**
+     * Reads a capture file record by record.
+     */
+    public static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long startMillis;
+        private final Record record = new Record();
+        private long nanos = 0;
+        private byte[] buffer = new byte[256];
+
+        public Reader(String path) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 64 * 1024));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                in.close();
+                throw new IOException(path + " is not a traffic capture");
+            }
+            this.startMillis = in.readLong();
+        }
+
+        /**
+         * @return  Returns the time the capture started, in milliseconds since the epoch.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * Reads the next record. The record is reused by the next call.
+         * @return  Returns the record or null at the end of the file.
+         * @throws IOException  When the file can't be read or ends halfway a record.
+         */
+        public Record next() throws IOException {
+            int kind = in.read();
+            if (kind < 0) {
+                return null;
+            }
+            nanos += readVarint(in) * 1000;
+            record.kind = kind;
+            record.nanos = nanos;
+            record.connection = readVarint(in);
+            record.line = null;
+            if (kind == LINE) {
+                int length = (int) readVarint(in);
+                if (buffer.length < length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                record.line = new String(buffer, 0, length, StandardCharsets.UTF_8);
+            }
+            return record;
+        }
+
+        private static long readVarint(InputStream in) throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Capture ends halfway a record");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in capture");
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
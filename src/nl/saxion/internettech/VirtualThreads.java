@@ -0,0 +1,30 @@
+package nl.saxion.internettech;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates a thread factory for virtual threads. Virtual threads are only available on
+ * Java 21 and later, so the factory is looked up at runtime and the server keeps compiling
+ * and running on older JDKs.
+ */
+public class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return  Returns a factory that starts every task on a new virtual thread, or null if
+     *          the running JVM does not support virtual threads.
+     */
+    public static ThreadFactory newFactory() {
+        try {
+            // Equivalent of Thread.ofVirtual().name("client-", 0).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "client-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
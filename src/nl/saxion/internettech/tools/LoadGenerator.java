@@ -0,0 +1,541 @@
+package nl.saxion.internettech.tools;
+
+import nl.saxion.internettech.BinaryCodec;
+import nl.saxion.internettech.LatencyHistogram;
+import nl.saxion.internettech.LineDecoder;
+import nl.saxion.internettech.Message.MessageType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator for the chat server. Opens many client connections, logs them in
+ * and lets them send a configurable mix of BCST, PRIVATE and GROUPMSG messages at a fixed
+ * total rate. Every message carries the time it was sent, so the receiving clients (in this
+ * same process) can measure the end-to-end delivery latency.
+ *
+ * The clients are non-blocking and spread over a few worker threads, so thousands of
+ * connections don't need thousands of threads. Lost logins (e.g. against a --bad-server) are
+ * retried and dropped connections are re-established, so the cost of a bad server shows up
+ * as latency, lost and corrupted messages instead of stalling the test.
+ */
+public class LoadGenerator {
+
+    // Marker in front of the send time in every generated message.
+    private static final String TIME_MARKER = "lt:";
+    private static final long LOGIN_RETRY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long RECONNECT_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Settings.
+    private String host = "localhost";
+    private int port = 1337;
+    private int clientCount = 100;
+    private int workerCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int durationSeconds = 30;
+    private double messagesPerSecond = 1000;
+    private int broadcastWeight = 10;
+    private int privateWeight = 80;
+    private int groupWeight = 10;
+    private int groupCount = 10;
+    private int payloadSize = 32;
+    private String namePrefix = "lg";
+    // Switch the clients to the binary protocol right after connecting.
+    private boolean binary = false;
+
+    // Results.
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong loggedIn = new AtomicLong();
+    private final AtomicLong sentBroadcasts = new AtomicLong();
+    private final AtomicLong sentPrivates = new AtomicLong();
+    private final AtomicLong sentGroupMessages = new AtomicLong();
+    private final AtomicLong receivedBroadcasts = new AtomicLong();
+    private final AtomicLong receivedPrivates = new AtomicLong();
+    private final AtomicLong receivedGroupMessages = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    private volatile boolean running = true;
+    private volatile boolean quitting = false;
+    private String padding;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            if (arg.startsWith("--host=")) {
+                generator.host = value;
+            } else if (arg.startsWith("--port=")) {
+                generator.port = Integer.parseInt(value);
+            } else if (arg.startsWith("--clients=")) {
+                generator.clientCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--workers=")) {
+                generator.workerCount = Math.max(1, Integer.parseInt(value));
+            } else if (arg.startsWith("--duration=")) {
+                generator.durationSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--rate=")) {
+                generator.messagesPerSecond = Double.parseDouble(value);
+            } else if (arg.startsWith("--mix=")) {
+                generator.parseMix(value);
+            } else if (arg.startsWith("--groups=")) {
+                generator.groupCount = Math.max(1, Integer.parseInt(value));
+            } else if (arg.startsWith("--payload=")) {
+                generator.payloadSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--name-prefix=")) {
+                generator.namePrefix = value;
+            } else if (arg.equals("--binary")) {
+                generator.binary = true;
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        generator.run();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: LoadGenerator [options]");
+        System.out.println("\t--host=<host>: server host (default: localhost).");
+        System.out.println("\t--port=<port>: server port (default: 1337).");
+        System.out.println("\t--clients=<n>: number of client connections (default: 100).");
+        System.out.println("\t--workers=<n>: number of worker threads driving the clients (default: half the cores).");
+        System.out.println("\t--duration=<seconds>: how long messages are sent (default: 30).");
+        System.out.println("\t--rate=<n>: total number of messages sent per second by all clients (default: 1000).");
+        System.out.println("\t--mix=bcst:<w>,private:<w>,group:<w>: relative weights of the message types (default: bcst:10,private:80,group:10).");
+        System.out.println("\t--groups=<n>: number of groups the clients are spread over (default: 10).");
+        System.out.println("\t--payload=<bytes>: minimum size of the message text (default: 32).");
+        System.out.println("\t--name-prefix=<prefix>: prefix of the usernames, to run several generators at once (default: lg).");
+        System.out.println("\t--binary: use the binary protocol instead of the line protocol.");
+    }
+
+    private void parseMix(String mix) {
+        broadcastWeight = 0;
+        privateWeight = 0;
+        groupWeight = 0;
+        for (String part : mix.split(",")) {
+            String[] keyValue = part.split(":");
+            int weight = Integer.parseInt(keyValue[1]);
+            switch (keyValue[0]) {
+                case "bcst": broadcastWeight = weight; break;
+                case "private": privateWeight = weight; break;
+                case "group": groupWeight = weight; break;
+                default: throw new IllegalArgumentException("Unknown message type in mix: " + keyValue[0]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < payloadSize) {
+            builder.append('x');
+        }
+        padding = builder.toString();
+
+        System.out.println("Starting " + clientCount + " clients against " + host + ":" + port
+                + " at " + messagesPerSecond + " msg/s for " + durationSeconds + "s");
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(new Worker(i));
+        }
+        for (int id = 0; id < clientCount; id++) {
+            workers.get(id % workerCount).clients.add(new Client(id));
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+
+        long start = System.nanoTime();
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(1000);
+            System.out.println(String.format("[%3ds] connected=%d logged in=%d sent=%d received=%d errors=%d corrupted=%d",
+                    second, connected.get(), loggedIn.get(), totalSent(), totalReceived(), errors.get(), corrupted.get()));
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        // Stop sending, give in-flight messages some time to arrive and log out.
+        quitting = true;
+        Thread.sleep(2000);
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+            worker.thread.join();
+        }
+        printReport(elapsedNanos);
+    }
+
+    private long totalSent() {
+        return sentBroadcasts.get() + sentPrivates.get() + sentGroupMessages.get();
+    }
+
+    private long totalReceived() {
+        return receivedBroadcasts.get() + receivedPrivates.get() + receivedGroupMessages.get();
+    }
+
+    private void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("-------------------------------");
+        System.out.println(String.format("Sent:      %d msg (%.0f msg/s) bcst=%d private=%d group=%d",
+                totalSent(), totalSent() / seconds, sentBroadcasts.get(), sentPrivates.get(), sentGroupMessages.get()));
+        System.out.println(String.format("Delivered: %d msg (%.0f msg/s) bcst=%d private=%d group=%d",
+                totalReceived(), totalReceived() / seconds, receivedBroadcasts.get(), receivedPrivates.get(), receivedGroupMessages.get()));
+        if (sentPrivates.get() > 0) {
+            System.out.println(String.format("Private messages lost: %.2f%%",
+                    100.0 * (sentPrivates.get() - receivedPrivates.get()) / sentPrivates.get()));
+        }
+        System.out.println(String.format("Traffic:   in=%.1f MB/s out=%.1f MB/s",
+                bytesIn.get() / seconds / 1e6, bytesOut.get() / seconds / 1e6));
+        System.out.println("Latency (us): " + latency.summary());
+        System.out.println("Errors: -ERR=" + errors.get() + " corrupted=" + corrupted.get() + " disconnects="
+                + disconnects.get() + " connect failures=" + connectFailures.get());
+    }
+
+    /**
+     * A single client connection of the load generator.
+     */
+    private class Client {
+        final int id;
+        final String name;
+        final String group;
+        // Replaced for every new connection, a connection starts with the line protocol.
+        LineDecoder decoder;
+        BinaryCodec codec;
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        SocketChannel channel;
+        SelectionKey key;
+        boolean loggedIn;
+        boolean quitSent;
+        // Time at which the client has to do something next (send, retry login or reconnect).
+        long deadline;
+
+        Client(int id) {
+            this.id = id;
+            this.name = namePrefix + id;
+            this.group = namePrefix + "group" + (id % groupCount);
+        }
+    }
+
+    /**
+     * Drives a share of the clients on a single selector.
+     */
+    private class Worker implements Runnable {
+        final Thread thread;
+        final Selector selector;
+        final List<Client> clients = new ArrayList<>();
+        final PriorityQueue<Client> schedule = new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+        final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        final Random random;
+
+        Worker(int index) throws IOException {
+            this.thread = new Thread(this, "load-worker-" + index);
+            this.selector = Selector.open();
+            this.random = new Random(index);
+        }
+
+        public void run() {
+            long now = System.nanoTime();
+            for (Client client : clients) {
+                connect(client, now);
+            }
+            try {
+                while (running) {
+                    now = System.nanoTime();
+                    Client next = schedule.peek();
+                    long waitMillis = next == null ? 100 : Math.max(0, (next.deadline - now) / 1_000_000);
+                    if (waitMillis == 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(waitMillis);
+                    }
+                    processSelectedKeys();
+                    runDueClients();
+                }
+            } catch (IOException e) {
+                System.out.println("Worker exception: " + e.getMessage());
+            }
+            for (Client client : clients) {
+                close(client);
+            }
+        }
+
+        private void connect(Client client, long now) {
+            try {
+                client.channel = SocketChannel.open(new InetSocketAddress(host, port));
+                client.channel.configureBlocking(false);
+                client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+                client.decoder = new LineDecoder();
+                client.codec = null;
+                connected.incrementAndGet();
+                if (binary) {
+                    // The commands after BINARY are sent as frames right away, without waiting for the reply.
+                    send(client, "BINARY");
+                }
+                login(client, now);
+            } catch (IOException e) {
+                connectFailures.incrementAndGet();
+                client.channel = null;
+                schedule(client, now + RECONNECT_DELAY_NANOS);
+            }
+        }
+
+        private void login(Client client, long now) {
+            // Retried until the server confirms, the reply may be dropped by a bad server.
+            send(client, MessageType.HELO, client.name);
+            schedule(client, now + LOGIN_RETRY_NANOS);
+        }
+
+        private void schedule(Client client, long deadline) {
+            schedule.remove(client);
+            client.deadline = deadline;
+            schedule.add(client);
+        }
+
+        private void runDueClients() {
+            long now = System.nanoTime();
+            Client client;
+            while ((client = schedule.peek()) != null && client.deadline <= now) {
+                schedule.poll();
+                if (client.channel == null) {
+                    if (!quitting) {
+                        connect(client, now);
+                    }
+                } else if (!client.loggedIn) {
+                    login(client, now);
+                } else if (quitting) {
+                    if (!client.quitSent) {
+                        client.quitSent = true;
+                        send(client, MessageType.QUIT);
+                    }
+                } else {
+                    sendMessage(client, now);
+                    // Spread the total rate evenly over the clients.
+                    long interval = (long) (1e9 * clientCount / messagesPerSecond);
+                    client.deadline = Math.max(client.deadline + interval, now - interval);
+                    schedule.add(client);
+                }
+            }
+        }
+
+        private void sendMessage(Client client, long now) {
+            String text = TIME_MARKER + now + ":" + padding;
+            int choice = random.nextInt(Math.max(1, broadcastWeight + privateWeight + groupWeight));
+            if (choice < broadcastWeight) {
+                sentBroadcasts.incrementAndGet();
+                send(client, MessageType.BCST, text);
+            } else if (choice < broadcastWeight + privateWeight && clientCount > 1) {
+                int to = random.nextInt(clientCount - 1);
+                if (to >= client.id) {
+                    to++;
+                }
+                sentPrivates.incrementAndGet();
+                send(client, MessageType.PRIVATE, namePrefix + to, text);
+            } else {
+                sentGroupMessages.incrementAndGet();
+                send(client, MessageType.GROUPMSG, client.group, text);
+            }
+        }
+
+        /**
+         * Sends a command in the protocol of the generator, the arguments are separated by a '-' in a line.
+         */
+        private void send(Client client, MessageType type, String... arguments) {
+            if (binary) {
+                send(client, ByteBuffer.wrap(BinaryCodec.encode(type.getOpcode(), arguments)));
+            } else {
+                send(client, arguments.length == 0 ? type.name() : type.name() + " " + String.join("-", arguments));
+            }
+        }
+
+        private void send(Client client, String line) {
+            send(client, ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void send(Client client, ByteBuffer buffer) {
+            bytesOut.addAndGet(buffer.remaining());
+            client.pending.add(buffer);
+            flush(client);
+        }
+
+        private void flush(Client client) {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = client.pending.peek()) != null) {
+                    client.channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    client.pending.poll();
+                }
+                client.key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                disconnected(client);
+            }
+        }
+
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Client client = (Client) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isWritable()) {
+                    flush(client);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(client);
+                }
+            }
+        }
+
+        private void read(Client client) {
+            try {
+                readBuffer.clear();
+                int read = client.channel.read(readBuffer);
+                if (read < 0) {
+                    disconnected(client);
+                    return;
+                }
+                bytesIn.addAndGet(read);
+                readBuffer.flip();
+                if (client.codec == null) {
+                    client.decoder.decode(readBuffer, (line, length) -> onLine(client, line));
+                }
+                if (client.codec != null && readBuffer.hasRemaining()) {
+                    client.codec.decode(readBuffer, (opcode, fields, length) -> onFrame(client, opcode, fields));
+                }
+            } catch (IOException e) {
+                disconnected(client);
+            }
+        }
+
+        private void onLine(Client client, String line) {
+            long now = System.nanoTime();
+            if (line.startsWith("BCST ")) {
+                receivedBroadcasts.incrementAndGet();
+                recordLatency(line, now);
+            } else if (line.startsWith(namePrefix) && line.contains("has sent you a message: ")) {
+                receivedPrivates.incrementAndGet();
+                recordLatency(line, now);
+            } else if (line.startsWith("GROUPMSG ")) {
+                receivedGroupMessages.incrementAndGet();
+                recordLatency(line, now);
+            } else if (line.equals("+OK " + client.name)) {
+                onLoggedIn(client, now);
+            } else if (line.equals("PING")) {
+                send(client, MessageType.PONG);
+            } else if (line.equals("+OK BINARY")) {
+                // Everything after this line is sent in frames.
+                client.decoder.stop();
+                client.codec = new BinaryCodec();
+            } else if (line.startsWith("-ERR")) {
+                if (!line.startsWith("-ERR A group with the name")) {
+                    errors.incrementAndGet();
+                }
+            } else if (!line.startsWith("+OK") && !line.startsWith("HELO ")) {
+                // Anything else is a message the server corrupted.
+                corrupted.incrementAndGet();
+            }
+        }
+
+        private void onFrame(Client client, int opcode, String[] fields) {
+            long now = System.nanoTime();
+            String text = fields.length == 0 ? "" : fields[fields.length - 1];
+            if (opcode == MessageType.BCST.getOpcode()) {
+                receivedBroadcasts.incrementAndGet();
+                recordLatency(text, now);
+            } else if (opcode == MessageType.PRIVATE.getOpcode()) {
+                receivedPrivates.incrementAndGet();
+                recordLatency(text, now);
+            } else if (opcode == MessageType.GROUPMSG.getOpcode()) {
+                receivedGroupMessages.incrementAndGet();
+                recordLatency(text, now);
+            } else if (opcode == MessageType.PING.getOpcode()) {
+                send(client, MessageType.PONG);
+            } else if (opcode == BinaryCodec.OK) {
+                if (text.equals(client.name)) {
+                    onLoggedIn(client, now);
+                }
+            } else if (opcode == BinaryCodec.ERR) {
+                if (!text.startsWith("A group with the name")) {
+                    errors.incrementAndGet();
+                }
+            } else if (opcode != MessageType.HELO.getOpcode()) {
+                // Anything else is a message the server corrupted.
+                corrupted.incrementAndGet();
+            }
+        }
+
+        private void onLoggedIn(Client client, long now) {
+            if (!client.loggedIn) {
+                client.loggedIn = true;
+                loggedIn.incrementAndGet();
+                send(client, MessageType.NEWGROUP, client.group);
+                send(client, MessageType.JOINGROUP, client.group);
+                // Start sending at a random moment, so the clients don't all send at once.
+                long interval = (long) (1e9 * clientCount / messagesPerSecond);
+                schedule(client, now + (long) (random.nextDouble() * interval));
+            }
+        }
+
+        private void recordLatency(String line, long now) {
+            int marker = line.indexOf(TIME_MARKER);
+            int end = marker < 0 ? -1 : line.indexOf(':', marker + TIME_MARKER.length());
+            try {
+                if (end < 0) {
+                    throw new NumberFormatException();
+                }
+                long sent = Long.parseLong(line.substring(marker + TIME_MARKER.length(), end));
+                latency.record((now - sent) / 1000);
+            } catch (NumberFormatException e) {
+                corrupted.incrementAndGet();
+            }
+        }
+
+        private void disconnected(Client client) {
+            close(client);
+            if (running && !quitting) {
+                disconnects.incrementAndGet();
+                schedule(client, System.nanoTime() + RECONNECT_DELAY_NANOS);
+            }
+        }
+
+        private void close(Client client) {
+            if (client.channel == null) {
+                return;
+            }
+            try {
+                client.channel.close();
+            } catch (IOException e) {
+                // Ignore, the connection is gone anyway.
+            }
+            client.channel = null;
+            client.pending.clear();
+            if (client.loggedIn) {
+                client.loggedIn = false;
+                loggedIn.decrementAndGet();
+            }
+            connected.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package nl.saxion.internettech.tools;
+
+import nl.saxion.internettech.LatencyHistogram;
+import nl.saxion.internettech.LineDecoder;
+import nl.saxion.internettech.Message;
+import nl.saxion.internettech.Message.MessageType;
+import nl.saxion.internettech.TrafficCapture;
+
+import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Replays a capture recorded with --capture against a server, so the real mix of commands of
+ * production traffic can be used to reproduce an incident or to compare two builds. The
+ * connections of the capture are opened, fed with their lines and closed at the times they were
+ * recorded, scaled by the speed, or as fast as possible at max speed.
+ * <p>
+ * The latency of a command is the time until its reply (+OK, -ERR or PONG) arrives. Every command
+ * gets a reply, except PONG and ACK. The results can be saved in a report, and a report of another
+ * build can be given as baseline to print the differences. Binary clients are replayed with the
+ * line protocol, their BINARY command is skipped. Connections that sent COMPRESS inflate the
+ * compressed lines they receive, like the real client would.
+ */
+public class TrafficReplay {
+
+    // Time the replies of the last commands are waited for after the capture has been replayed.
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    // Settings.
+    private String host = "localhost";
+    private int port = 1337;
+    private String capturePath;
+    // Factor the capture is replayed faster than it was recorded, 0 for max speed.
+    private double speed = 1;
+    private String reportPath;
+    private String baselinePath;
+
+    // Results, only changed by the reader thread unless they are atomic.
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private long connectFailures = 0;
+    private long skipped = 0;
+    private long gaps = 0;
+    private long connectionCount = 0;
+    // How far the replay fell behind the capture at most, because the server or this tool could not keep up.
+    private long maxBehindNanos = 0;
+
+    // The open connections by their id in the capture, only used by the replaying thread.
+    private final Map<Long, Connection> connections = new HashMap<>();
+    // Connections closed by the capture, they are only closed for writing so the last replies still arrive.
+    private final List<Connection> closedConnections = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Connection> registrations = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        TrafficReplay replay = new TrafficReplay();
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            if (arg.startsWith("--capture=")) {
+                replay.capturePath = value;
+            } else if (arg.startsWith("--host=")) {
+                replay.host = value;
+            } else if (arg.startsWith("--port=")) {
+                replay.port = Integer.parseInt(value);
+            } else if (arg.startsWith("--speed=")) {
+                replay.speed = value.equals("max") ? 0 : Double.parseDouble(value);
+            } else if (arg.startsWith("--report=")) {
+                replay.reportPath = value;
+            } else if (arg.startsWith("--baseline=")) {
+                replay.baselinePath = value;
+            } else {
+                printUsage();
+                return;
+            }
+        }
+        if (replay.capturePath == null) {
+            printUsage();
+            return;
+        }
+        replay.run();
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: TrafficReplay --capture=<file> [options]");
+        System.out.println("\t--capture=<file>: capture recorded by the server with --capture=<file>.");
+        System.out.println("\t--host=<host>: server host (default: localhost).");
+        System.out.println("\t--port=<port>: server port (default: 1337).");
+        System.out.println("\t--speed=<n|max>: replay n times as fast as recorded, or as fast as possible (default: 1).");
+        System.out.println("\t--report=<file>: save the results, to use them as baseline for another build.");
+        System.out.println("\t--baseline=<file>: report of an earlier replay, the differences with it are printed.");
+    }
+
+    private void run() throws IOException, InterruptedException {
+        selector = Selector.open();
+        Thread reader = new Thread(this::readLoop, "replay-reader");
+        reader.start();
+
+        System.out.println("Replaying " + capturePath + " against " + host + ":" + port
+                + " at " + (speed > 0 ? speed + "x" : "max") + " speed");
+        long start = System.nanoTime();
+        try (TrafficCapture.Reader capture = new TrafficCapture.Reader(capturePath)) {
+            TrafficCapture.Record record;
+            while ((record = capture.next()) != null) {
+                if (speed > 0) {
+                    long due = start + (long) (record.getNanos() / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    maxBehindNanos = Math.max(maxBehindNanos, -wait);
+                }
+                replay(record);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        // Give the replies of the last commands some time to arrive.
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        while (countUnanswered() > 0 && System.nanoTime() - drainDeadline < 0) {
+            Thread.sleep(10);
+        }
+        long unanswered = countUnanswered();
+        running = false;
+        selector.wakeup();
+        reader.join();
+        for (Connection connection : connections.values()) {
+            connection.close();
+        }
+        for (Connection connection : closedConnections) {
+            connection.close();
+        }
+
+        Properties report = createReport(elapsedNanos, unanswered);
+        printReport(elapsedNanos, unanswered);
+        if (baselinePath != null) {
+            printComparison(report);
+        }
+        if (reportPath != null) {
+            try (OutputStream out = new FileOutputStream(reportPath)) {
+                report.store(out, "TrafficReplay of " + capturePath);
+            }
+        }
+    }
+
+    private void replay(TrafficCapture.Record record) {
+        switch (record.getKind()) {
+            case TrafficCapture.CONNECT:
+                connect(record.getConnection());
+                break;
+            case TrafficCapture.LINE:
+                Connection connection = connections.get(record.getConnection());
+                if (connection == null) {
+                    // The connection was opened before the capture started or could not be opened.
+                    skipped++;
+                } else if (record.getLine().equals("BINARY")) {
+                    skipped++;
+                } else {
+                    connection.send(record.getLine());
+                }
+                break;
+            case TrafficCapture.CLOSE:
+                Connection closed = connections.remove(record.getConnection());
+                if (closed != null) {
+                    closed.shutdownOutput();
+                    closedConnections.add(closed);
+                }
+                break;
+            case TrafficCapture.GAP:
+                gaps += record.getConnection();
+                break;
+        }
+    }
+
+    private void connect(long id) {
+        try {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connections.put(id, connection);
+            connectionCount++;
+            registrations.add(connection);
+            selector.wakeup();
+        } catch (IOException e) {
+            connectFailures++;
+        }
+    }
+
+    private long countUnanswered() {
+        long count = 0;
+        for (Connection connection : connections.values()) {
+            count += connection.pending.size();
+        }
+        for (Connection connection : closedConnections) {
+            count += connection.pending.size();
+        }
+        return count;
+    }
+
+    /**
+     * Reads the replies of all connections on a single selector.
+     */
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+            while (running) {
+                selector.select(100);
+                Connection registration;
+                while ((registration = registrations.poll()) != null) {
+                    try {
+                        registration.channel.register(selector, SelectionKey.OP_READ, registration);
+                    } catch (IOException e) {
+                        // Closed before it could be registered.
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    buffer.clear();
+                    int read;
+                    try {
+                        read = connection.channel.read(buffer);
+                        if (read < 0) {
+                            throw new IOException("Closed by server");
+                        }
+                        buffer.flip();
+                        connection.decoder.decode(buffer, (line, length) -> onLine(connection, line));
+                    } catch (IOException e) {
+                        key.cancel();
+                        if (!connection.closing) {
+                            disconnects.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Reader failed: " + e.getMessage());
+        }
+    }
+
+    private void onLine(Connection connection, String line) {
+        // Strip the sequence number and checksum of a client in reliable mode.
+        if (line.startsWith("SEQ ")) {
+            int checksum = line.indexOf(' ', 4);
+            int text = checksum < 0 ? -1 : line.indexOf(' ', checksum + 1);
+            line = text < 0 ? "" : line.substring(text + 1);
+        }
+        if (line.startsWith("Z ") && connection.inflater != null) {
+            line = connection.inflate(line.substring(2));
+        }
+        boolean error = line.startsWith("-ERR");
+        if (error || line.startsWith("+OK") || line.equals("PONG")) {
+            Long sent = connection.pending.poll();
+            if (sent != null) {
+                latency.record((System.nanoTime() - sent) / 1000);
+                replies.incrementAndGet();
+                if (error) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private Properties createReport(long elapsedNanos, long unanswered) {
+        Properties report = new Properties();
+        double seconds = elapsedNanos / 1e9;
+        report.setProperty("commands", String.valueOf(commands.get()));
+        report.setProperty("seconds", String.format("%.3f", seconds));
+        report.setProperty("throughput", String.format("%.1f", commands.get() / seconds));
+        report.setProperty("mean", String.format("%.1f", latency.getMean()));
+        report.setProperty("p50", String.valueOf(latency.getValueAtPercentile(50)));
+        report.setProperty("p90", String.valueOf(latency.getValueAtPercentile(90)));
+        report.setProperty("p99", String.valueOf(latency.getValueAtPercentile(99)));
+        report.setProperty("p99.9", String.valueOf(latency.getValueAtPercentile(99.9)));
+        report.setProperty("max", String.valueOf(latency.getMaxValue()));
+        report.setProperty("errors", String.valueOf(errors.get()));
+        report.setProperty("unanswered", String.valueOf(unanswered));
+        return report;
+    }
+
+    private void printReport(long elapsedNanos, long unanswered) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("-------------------------------");
+        System.out.println(String.format("Replayed:  %d commands on %d connections in %.1fs (%.0f commands/s)",
+                commands.get(), connectionCount, seconds, commands.get() / seconds));
+        if (speed > 0) {
+            System.out.println(String.format("Behind:    at most %.1f ms behind the capture",
+                    maxBehindNanos / 1e6));
+        }
+        System.out.println("Latency (us): " + latency.summary());
+        System.out.println("Errors: -ERR=" + errors.get() + " unanswered=" + unanswered + " disconnects="
+                + disconnects.get() + " connect failures=" + connectFailures + " skipped=" + skipped
+                + " lost in capture=" + gaps);
+    }
+
+    /**
+     * Prints the differences with the report of an earlier replay, positive percentages are
+     * higher (for latencies: worse) than the baseline.
+     */
+    private void printComparison(Properties report) throws IOException {
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(baselinePath)) {
+            baseline.load(in);
+        }
+        System.out.println("Compared with " + baselinePath + ":");
+        for (String key : new String[] {"throughput", "mean", "p50", "p90", "p99", "p99.9", "max", "errors", "unanswered"}) {
+            double before = Double.parseDouble(baseline.getProperty(key, "0"));
+            double after = Double.parseDouble(report.getProperty(key));
+            String change = before == 0 ? "" : String.format(" (%+.1f%%)", 100 * (after - before) / before);
+            System.out.println(String.format("\t%-10s %12.1f -> %12.1f%s", key, before, after, change));
+        }
+    }
+
+    /**
+     * A replayed connection. Lines are written by the replaying thread, replies are read by the reader thread.
+     */
+    private class Connection {
+        final SocketChannel channel;
+        final LineDecoder decoder = new LineDecoder();
+        // Send times of the commands that have not been answered yet, in order.
+        final ConcurrentLinkedQueue<Long> pending = new ConcurrentLinkedQueue<>();
+        volatile boolean closing = false;
+        // Inflates the compressed lines after COMPRESS, keeps its context between lines for deflate.
+        volatile Inflater inflater;
+        private boolean streaming;
+        private final byte[] inflated = new byte[16 * 1024];
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Writes a line, waiting while the server does not read fast enough, just like a client would.
+         */
+        void send(String line) {
+            MessageType type = new Message(line).getMessageType();
+            if (type != MessageType.PONG && type != MessageType.ACK) {
+                pending.add(System.nanoTime());
+            }
+            if (type == MessageType.QUIT) {
+                // The server closes the connection after the reply.
+                closing = true;
+            }
+            if (type == MessageType.COMPRESS && inflater == null) {
+                // Lines after the reply may be compressed, the reply itself never is.
+                streaming = line.trim().equalsIgnoreCase("COMPRESS deflate");
+                inflater = new Inflater(true);
+            }
+            commands.incrementAndGet();
+            ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                while (bytes.hasRemaining()) {
+                    if (channel.write(bytes) == 0) {
+                        LockSupport.parkNanos(50_000);
+                    }
+                }
+            } catch (IOException e) {
+                pending.clear();
+                close();
+            }
+        }
+
+        /**
+         * Inflates the data of a compressed line, called by the reader thread only.
+         * @return  Returns the line, or an empty line if the data is corrupt.
+         */
+        String inflate(String data) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            try {
+                if (!streaming) {
+                    inflater.reset();
+                }
+                inflater.setInput(Base64.getDecoder().decode(data));
+                while (!inflater.finished()) {
+                    int length = inflater.inflate(inflated);
+                    if (length == 0) {
+                        break;
+                    }
+                    line.write(inflated, 0, length);
+                }
+            } catch (IllegalArgumentException | DataFormatException e) {
+                return "";
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        void shutdownOutput() {
+            closing = true;
+            try {
+                channel.shutdownOutput();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+
+        void close() {
+            closing = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryCodecTest {
+
+    private final BinaryCodec codec = new BinaryCodec();
+    private final List<String> decoded = new ArrayList<>();
+
+    private void decode(byte[] bytes, int from, int to) throws IOException {
+        // Decode from an offset in a larger array, like a slice of a read buffer.
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, from, to - from).slice();
+        codec.decode(buffer, (opcode, fields, length) -> decoded.add(opcode + ":" + String.join("|", fields) + ":" + length));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void decodesAFrameSplitAtEveryOffset() throws IOException {
+        byte[] first = BinaryCodec.encode(Message.MessageType.PRIVATE.getOpcode(), "bob", "héllo\nthere");
+        byte[] second = BinaryCodec.encode(BinaryCodec.TEXT, "x".repeat(200));
+        byte[] bytes = concat(first, second);
+        List<String> expected = List.of(
+                Message.MessageType.PRIVATE.getOpcode() + ":bob|héllo\nthere:" + first.length,
+                BinaryCodec.TEXT + ":" + "x".repeat(200) + ":" + second.length);
+
+        for (int split = 0; split <= bytes.length; split++) {
+            BinaryCodecTest test = new BinaryCodecTest();
+            test.decode(bytes, 0, split);
+            test.decode(bytes, split, bytes.length);
+            assertEquals(expected, test.decoded, "split at " + split);
+        }
+    }
+
+    @Test
+    void decodesAFrameReceivedByteByByte() throws IOException {
+        byte[] bytes = BinaryCodec.encode(Message.MessageType.BCST.getOpcode(), "a".repeat(300));
+        for (int i = 0; i < bytes.length; i++) {
+            decode(bytes, i, i + 1);
+        }
+        assertEquals(List.of(Message.MessageType.BCST.getOpcode() + ":" + "a".repeat(300) + ":" + bytes.length), decoded);
+    }
+
+    @Test
+    void waitsForTheRestOfATruncatedVarint() throws IOException {
+        // A frame of more than 127 bytes has a length of two bytes, the first has the continuation bit.
+        byte[] bytes = BinaryCodec.encode(BinaryCodec.TEXT, "y".repeat(196));
+        assertTrue((bytes[0] & 0x80) != 0);
+        decode(bytes, 0, 1);
+        assertTrue(decoded.isEmpty());
+        decode(bytes, 1, bytes.length);
+        assertEquals(1, decoded.size());
+    }
+
+    @Test
+    void rejectsAVarintThatIsTooLong() {
+        byte[] bytes = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        assertThrows(IOException.class, () -> decode(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void rejectsAFieldVarintThatIsTooLong() {
+        byte[] bytes = {7, (byte) BinaryCodec.TEXT, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01, 0x00};
+        assertThrows(IOException.class, () -> decode(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void rejectsAFieldThatRunsPastTheFrame() {
+        // The field claims 5 bytes but the frame ends after 2.
+        byte[] bytes = {4, (byte) BinaryCodec.TEXT, 5, 'a', 'b'};
+        assertThrows(IOException.class, () -> decode(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void rejectsInvalidFrameLengths() {
+        byte[] empty = {0};
+        assertThrows(IOException.class, () -> decode(empty, 0, empty.length));
+        int tooLong = BinaryCodec.MAX_FRAME_LENGTH + 1;
+        byte[] large = {(byte) (0x80 | (tooLong & 0x7F)), (byte) (0x80 | ((tooLong >>> 7) & 0x7F)), (byte) (tooLong >>> 14)};
+        assertThrows(IOException.class, () -> new BinaryCodecTest().decode(large, 0, large.length));
+    }
+
+    @Test
+    void encodesAndDecodesEmptyFields() throws IOException {
+        byte[] bytes = BinaryCodec.encode(BinaryCodec.OK, "", "b");
+        assertArrayEquals(new byte[] {4, (byte) BinaryCodec.OK, 0, 1, 'b'}, bytes);
+        decode(bytes, 0, bytes.length);
+        assertEquals(List.of(BinaryCodec.OK + ":|b:5"), decoded);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Arrays.stream(parts).forEach(out::writeBytes);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,101 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FaultInjectorTest {
+
+    private static final int MESSAGES = 200;
+
+    /**
+     * Keeps the lines written to it, in order.
+     */
+    private static final class RecordingConnection implements ClientConnection {
+        private final List<String> lines = new ArrayList<>();
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public synchronized boolean writeFrame(Frame frame) {
+            lines.add(frame.getLine());
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        synchronized List<String> getLines() {
+            return new ArrayList<>(lines);
+        }
+    }
+
+    private static FaultInjector injector(long seed) {
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        conf.setFaultSeed(seed);
+        conf.setDropRate(0.2);
+        conf.setCorruptRate(0.2);
+        conf.setReorderRate(0.2);
+        AsyncLogger logger = new AsyncLogger(conf);
+        ServerMetrics metrics = new ServerMetrics(() -> 0, () -> 0, () -> 0, () -> 0, () -> 0, () -> 0);
+        return new FaultInjector(conf, new TimingWheel(conf.TIMER_TICK_MS, conf.TIMER_WHEEL_SIZE, logger), logger, metrics);
+    }
+
+    /**
+     * Writes messages through the connection and waits until the frames that were held back have been written.
+     * @return  Returns the lines the client received.
+     */
+    private static List<String> send(ClientConnection faulty, RecordingConnection client, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            faulty.writeFrame(Frame.of("BCST [bob] message " + i));
+        }
+        faulty.close();
+        assertTrue(client.closed.await(5, TimeUnit.SECONDS));
+        return client.getLines();
+    }
+
+    @Test
+    void injectsTheSameFaultsWithTheSameSeed() throws InterruptedException {
+        RecordingConnection first = new RecordingConnection();
+        List<String> received = send(injector(42).wrap(first), first, MESSAGES);
+        RecordingConnection second = new RecordingConnection();
+        List<String> repeated = send(injector(42).wrap(second), second, MESSAGES);
+
+        assertEquals(received, repeated);
+        // Some messages were lost and some were corrupted.
+        assertTrue(received.size() < MESSAGES);
+        assertTrue(received.stream().anyMatch(line -> line.contains("X")));
+
+        RecordingConnection other = new RecordingConnection();
+        assertNotEquals(received, send(injector(43).wrap(other), other, MESSAGES));
+    }
+
+    @Test
+    void injectsFaultsThatOnlyDependOnTheOrderOfTheConnections() throws InterruptedException {
+        // The second connection gets the same faults, however many messages the first connection sends.
+        FaultInjector injector = injector(42);
+        RecordingConnection busy = new RecordingConnection();
+        ClientConnection busyFaulty = injector.wrap(busy);
+        RecordingConnection client = new RecordingConnection();
+        ClientConnection faulty = injector.wrap(client);
+        send(busyFaulty, busy, MESSAGES);
+        List<String> received = send(faulty, client, MESSAGES);
+
+        FaultInjector repeatedInjector = injector(42);
+        RecordingConnection quiet = new RecordingConnection();
+        repeatedInjector.wrap(quiet);
+        RecordingConnection repeatedClient = new RecordingConnection();
+        List<String> repeated = send(repeatedInjector.wrap(repeatedClient), repeatedClient, MESSAGES);
+
+        assertEquals(received, repeated);
+    }
+}
@@ -0,0 +1,102 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pins the format of the complete ALLCLIENTS and ALLGROUPS listings, which is the format of the original server.
+ */
+class ListingFormatTest {
+
+    private Server server;
+
+    /**
+     * Keeps the text written to the client.
+     */
+    private static final class TextConnection implements ClientConnection {
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public synchronized boolean writeFrame(Frame frame) {
+            ByteBuffer bytes = frame.asByteBuffer();
+            text.append(StandardCharsets.UTF_8.decode(bytes));
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "socket";
+        }
+
+        synchronized String take() {
+            String taken = text.toString();
+            text.setLength(0);
+            return taken;
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        server = new Server(conf);
+    }
+
+    private static void send(ConnectionHandler client, String line) {
+        client.onLine(line, line.length() + 1);
+    }
+
+    @Test
+    void sendsALineForEveryGroup() {
+        TextConnection connection = new TextConnection();
+        ConnectionHandler alice = server.connect(connection);
+        send(alice, "HELO alice");
+        send(alice, "NEWGROUP beta");
+        send(alice, "NEWGROUP alpha");
+        send(alice, "JOINGROUP alpha");
+        connection.take();
+
+        send(alice, "ALLGROUPS");
+
+        assertEquals("+OKGroup: alpha, has 1 participants. \nGroup: beta, has 0 participants. \n\n", connection.take());
+    }
+
+    @Test
+    void listsClientsThatDidNotLogIn() {
+        TextConnection connection = new TextConnection();
+        ConnectionHandler bob = server.connect(connection);
+        send(bob, "HELO bob");
+        server.connect(new TextConnection());
+        connection.take();
+
+        send(bob, "ALLCLIENTS");
+
+        assertEquals("+OK Username: bob is connected to the server. Socket: socket"
+                + "Username: null is connected to the server. Socket: socket\n", connection.take());
+    }
+
+    @Test
+    void leavesClientsThatDidNotLogInOutOfThePages() {
+        TextConnection connection = new TextConnection();
+        ConnectionHandler bob = server.connect(connection);
+        send(bob, "HELO bob");
+        server.connect(new TextConnection());
+        connection.take();
+
+        send(bob, "ALLCLIENTS 0-10");
+
+        // The version of the snapshot, one matching user, offset 0 and one user on the page.
+        String page = connection.take();
+        assertTrue(page.matches("\\+OK ALLCLIENTS \\d+ 1 0 1\nCLIENT bob\n"), page);
+    }
+}
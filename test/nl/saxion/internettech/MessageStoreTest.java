@@ -0,0 +1,140 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageStoreTest {
+
+    private static final String GROUP = MessageStore.groupConversation("friends");
+
+    @TempDir
+    Path directory;
+
+    private ServerConfiguration conf;
+    private AsyncLogger logger;
+
+    @BeforeEach
+    void setUp() {
+        conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        conf.setStoreDirectory(directory.toString());
+        logger = new AsyncLogger(conf);
+    }
+
+    /**
+     * Opens the store like a server that is started again.
+     */
+    private MessageStore open() throws IOException {
+        MessageStore store = new MessageStore(conf, logger);
+        store.open();
+        return store;
+    }
+
+    /**
+     * Waits until the writer has stored the number of messages of the group, messages are written in the background.
+     */
+    private static List<String> awaitHistory(MessageStore store, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        List<MessageStore.StoredMessage> messages;
+        while ((messages = store.history(GROUP, Long.MAX_VALUE, 20)).size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        return messages.stream().map(MessageStore.StoredMessage::getText).collect(Collectors.toList());
+    }
+
+    private static void append(MessageStore store, String text, String... offline) {
+        store.append(MessageStore.GROUP, "alice", GROUP, text, List.of(offline));
+    }
+
+    /**
+     * @return  Returns the size of a record of alice in the group without offline recipients: the header,
+     *          timestamp, type, sender, conversation, number of recipients and the text.
+     */
+    private static int recordSize(String text) {
+        return 8 + 8 + 1 + 2 + "alice".length() + 2 + GROUP.length() + 2 + text.length();
+    }
+
+    /**
+     * Overwrites the bytes of the only segment at the given position.
+     */
+    private void damage(long position, byte[] bytes) throws IOException {
+        File segment = directory.resolve(String.format("%020d.log", 0)).toFile();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(position);
+            file.write(bytes);
+        }
+    }
+
+    @Test
+    void dropsACorruptTailRecordWhenOpened() throws Exception {
+        MessageStore store = open();
+        append(store, "first");
+        append(store, "second");
+        append(store, "third");
+        assertEquals(List.of("first", "second", "third"), awaitHistory(store, 3));
+        long last = store.history(GROUP, Long.MAX_VALUE, 1).get(0).getOffset();
+        // A byte of the text of the last record no longer matches its checksum.
+        damage(last + recordSize(""), new byte[] {'X'});
+
+        MessageStore reopened = open();
+        assertEquals(List.of("first", "second"), awaitHistory(reopened, 2));
+
+        // The next message takes the place of the damaged record.
+        append(reopened, "fourth");
+        assertEquals(List.of("first", "second", "fourth"), awaitHistory(reopened, 3));
+        assertEquals(List.of("first", "second", "fourth"), awaitHistory(open(), 3));
+    }
+
+    @Test
+    void dropsATornTailRecordWhenOpened() throws Exception {
+        MessageStore store = open();
+        append(store, "first");
+        append(store, "second");
+        awaitHistory(store, 2);
+        long end = store.history(GROUP, Long.MAX_VALUE, 1).get(0).getOffset() + recordSize("second");
+        // Only the length of a record that runs past the end of the segment made it to disk.
+        damage(end, new byte[] {0x7F, 0x00, 0x00, 0x00});
+
+        MessageStore reopened = open();
+        append(reopened, "third");
+        assertEquals(List.of("first", "second", "third"), awaitHistory(reopened, 3));
+    }
+
+    @Test
+    void deliversMessagesForAnOfflineUserAfterARestart() throws Exception {
+        MessageStore store = open();
+        append(store, "while carol was away", "carol");
+        append(store, "for everyone");
+        awaitHistory(store, 2);
+
+        MessageStore reopened = open();
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        reopened.deliver("carol", message -> delivered.add(message.getText()));
+        // Appended after the delivery, so the delivery has been stored once it shows up.
+        append(reopened, "barrier");
+        awaitHistory(reopened, 3);
+        assertEquals(List.of("while carol was away"), delivered);
+
+        // The delivered messages are not delivered again after the next restart.
+        MessageStore again = open();
+        List<String> redelivered = Collections.synchronizedList(new ArrayList<>());
+        again.deliver("carol", message -> redelivered.add(message.getText()));
+        append(again, "another barrier");
+        awaitHistory(again, 4);
+        assertTrue(redelivered.isEmpty());
+    }
+}
@@ -0,0 +1,117 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PresenceTest {
+
+    private static final long WINDOW_MS = 50;
+
+    private Presence presence;
+
+    /**
+     * Keeps the lines delivered to it.
+     */
+    private static final class RecordingSubscriber implements Presence.Subscriber {
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        @Override
+        public void deliverPresence(Frame frame) {
+            lines.add(frame.getLine());
+        }
+
+        String next() throws InterruptedException {
+            return lines.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        AsyncLogger logger = new AsyncLogger(conf);
+        ServerMetrics metrics = new ServerMetrics(() -> 0, () -> 0, () -> 0, () -> 0, () -> 0, () -> 0);
+        presence = new Presence(new TimingWheel(conf.TIMER_TICK_MS, conf.TIMER_WHEEL_SIZE, logger), WINDOW_MS, 3, metrics);
+    }
+
+    private RecordingSubscriber subscribe() throws InterruptedException {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        presence.subscribe(subscriber);
+        assertEquals("+OK SUBSCRIBE 0", subscriber.next());
+        return subscriber;
+    }
+
+    @Test
+    void sendsTheChangesOfAWindowInOneLine() throws InterruptedException {
+        RecordingSubscriber subscriber = subscribe();
+        presence.joined("alice");
+        presence.joined("bob");
+        presence.joined("carol", "node-2");
+
+        assertEquals("PRESENCE +alice +bob +carol@node-2", subscriber.next());
+    }
+
+    @Test
+    void leavesOutUsersThatLeftAndJoinedAgainWithinTheWindow() throws InterruptedException {
+        RecordingSubscriber subscriber = subscribe();
+        presence.joined("alice");
+        presence.joined("bob");
+        assertEquals("PRESENCE +alice +bob", subscriber.next());
+
+        // A reconnect of alice and a user that joins and leaves within a single window.
+        presence.left("alice");
+        presence.joined("alice");
+        presence.joined("dave");
+        presence.left("dave");
+        presence.left("bob");
+
+        assertEquals("PRESENCE -bob", subscriber.next());
+        assertNull(subscriber.lines.poll(3 * WINDOW_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void sendsARenameOnlyWhenTheOldNameIsGone() throws InterruptedException {
+        RecordingSubscriber subscriber = subscribe();
+        presence.joined("alice");
+        presence.joined("bob");
+        assertEquals("PRESENCE +alice +bob", subscriber.next());
+
+        presence.renamed("alice", "alicia");
+        assertEquals("PRESENCE ~alice:alicia", subscriber.next());
+
+        // The new name was taken within the window, it's sent as a leave and a join.
+        presence.renamed("bob", "robert");
+        presence.left("robert");
+        presence.joined("robert", "node-2");
+        assertEquals("PRESENCE -bob +robert@node-2", subscriber.next());
+    }
+
+    @Test
+    void splitsLargeBatchesAndSendsTheRosterToNewSubscribers() throws InterruptedException {
+        RecordingSubscriber subscriber = subscribe();
+        for (String username : List.of("a", "b", "c", "d")) {
+            presence.joined(username);
+        }
+        assertEquals("PRESENCE +a +b +c", subscriber.next());
+        assertEquals("PRESENCE +d", subscriber.next());
+
+        RecordingSubscriber late = new RecordingSubscriber();
+        presence.subscribe(late);
+        assertEquals("+OK SUBSCRIBE 4", late.next());
+        Set<String> roster = new HashSet<>();
+        roster.addAll(Arrays.asList(late.next().split(" ")));
+        roster.addAll(Arrays.asList(late.next().split(" ")));
+        assertEquals(Set.of("PRESENCE", "+a", "+b", "+c", "+d"), roster);
+    }
+}
@@ -0,0 +1,103 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProtocolDecoderTest {
+
+    private final ProtocolDecoder decoder = new ProtocolDecoder();
+    private final List<String> received = new ArrayList<>();
+
+    private final ConnectionHandler handler = new ConnectionHandler() {
+        @Override
+        public void onConnect() {
+        }
+
+        @Override
+        public void onLine(String line, int length) {
+            received.add("line " + line + " " + length);
+            if (line.equals("BINARY")) {
+                decoder.switchToBinary();
+            } else if (line.equals("PAUSE")) {
+                decoder.pause();
+            }
+        }
+
+        @Override
+        public void onMessage(Message message, int length) {
+            received.add("frame " + message.getMessageType() + " " + message.getPayload() + " " + length);
+        }
+
+        @Override
+        public void onDisconnect() {
+        }
+    };
+
+    private void decode(byte[] bytes, int from, int to) throws IOException {
+        decoder.decode(ByteBuffer.wrap(bytes, from, to - from).slice(), handler, () -> false);
+    }
+
+    @Test
+    void countsTheBytesOfEveryLine() throws IOException {
+        byte[] bytes = "HELO jösé\r\nPING\n".getBytes(StandardCharsets.UTF_8);
+        decode(bytes, 0, bytes.length);
+        assertEquals(List.of("line HELO jösé 13", "line PING 5"), received);
+    }
+
+    @Test
+    void decodesFramesInTheBufferOfTheBinaryCommand() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("HELO alice\nBINARY\n".getBytes(StandardCharsets.US_ASCII));
+        byte[] broadcast = BinaryCodec.encode(Message.MessageType.BCST.getOpcode(), "hello\nworld");
+        byte[] ping = BinaryCodec.encode(Message.MessageType.PONG.getOpcode());
+        out.writeBytes(broadcast);
+        out.writeBytes(ping);
+        byte[] bytes = out.toByteArray();
+
+        decode(bytes, 0, bytes.length);
+
+        assertEquals(List.of("line HELO alice 11", "line BINARY 7",
+                "frame BCST hello\nworld " + broadcast.length, "frame PONG  " + ping.length), received);
+    }
+
+    @Test
+    void decodesFramesSplitRightAfterTheBinaryCommand() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("BINARY\n".getBytes(StandardCharsets.US_ASCII));
+        byte[] broadcast = BinaryCodec.encode(Message.MessageType.BCST.getOpcode(), "x".repeat(150));
+        out.writeBytes(broadcast);
+        byte[] bytes = out.toByteArray();
+
+        for (int split = 0; split <= bytes.length; split++) {
+            ProtocolDecoderTest test = new ProtocolDecoderTest();
+            test.decode(bytes, 0, split);
+            test.decode(bytes, split, bytes.length);
+            assertEquals(List.of("line BINARY 7", "frame BCST " + "x".repeat(150) + " " + broadcast.length), test.received,
+                    "split at " + split);
+        }
+    }
+
+    @Test
+    void holdsTheCommandsAfterAPause() throws IOException {
+        byte[] bytes = "PAUSE\nBINARY\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] frame = BinaryCodec.encode(Message.MessageType.PONG.getOpcode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(bytes);
+        out.writeBytes(frame);
+        byte[] all = out.toByteArray();
+
+        decode(all, 0, all.length);
+        assertEquals(List.of("line PAUSE 6"), received);
+
+        assertEquals(true, decoder.resume(handler, () -> false));
+        assertEquals(List.of("line PAUSE 6", "line BINARY 7", "frame PONG  " + frame.length), received);
+    }
+}
@@ -0,0 +1,248 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReliableDeliveryTest {
+
+    private ReliableDelivery reliability;
+
+    /**
+     * Keeps the sequence numbers of the frames written to it.
+     */
+    private static class RecordingConnection implements ClientConnection {
+        final List<Long> sequences = new ArrayList<>();
+
+        @Override
+        public boolean writeFrame(Frame frame) {
+            String[] parts = frame.getLine().split(" ");
+            sequences.add(Long.parseLong(parts[1]));
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        AsyncLogger logger = new AsyncLogger(conf);
+        ServerMetrics metrics = new ServerMetrics(() -> 0, () -> 0, () -> 0, () -> 0, () -> 0, () -> 0);
+        BufferPool buffers = new BufferPool(0, 0, false, logger, metrics);
+        // The wheel is never started, retransmit timeouts don't fire during a test.
+        TimingWheel timer = new TimingWheel(conf.TIMER_TICK_MS, conf.TIMER_WHEEL_SIZE, logger);
+        reliability = new ReliableDelivery(conf, timer, buffers, logger, metrics);
+    }
+
+    private static void send(ReliableDelivery.Session session, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            session.send(Frame.of("BCST [bob] message " + i));
+            // Later messages must have been sent later, a lost message is detected by its send time.
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void parsesRangesInOrder() {
+        assertArrayEquals(new long[] {5, 6, 9, 12}, ReliableDelivery.parseRanges(3, "5-6,9-12"));
+        assertArrayEquals(new long[] {5, 5}, ReliableDelivery.parseRanges(3, "5-5"));
+    }
+
+    @Test
+    void rejectsRangesThatOverlapOrAreOutOfOrder() {
+        // Overlapping each other.
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "5-8,7-9"));
+        // Out of order.
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "9-12,5-6"));
+        // Overlapping or adjacent to the cumulative part, there is no gap.
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "2-6"));
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "4-6"));
+        // Adjacent ranges, there is no gap between them.
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "5-6,7-8"));
+        // Reversed or malformed.
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "8-5"));
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "8"));
+        assertThrows(NumberFormatException.class, () -> ReliableDelivery.parseRanges(3, "5--6"));
+    }
+
+    @Test
+    void resendsOnlyTheGapsBeforeTheReceivedRanges() throws InterruptedException {
+        RecordingConnection connection = new RecordingConnection();
+        ReliableDelivery.Session session = reliability.start("alice", connection, -1);
+        send(session, 8);
+        connection.sequences.clear();
+
+        assertTrue(session.ack(2, ReliableDelivery.parseRanges(2, "4-5,7-7")));
+
+        assertEquals(2, session.getAcked());
+        // 8 was sent after the last received message, it may still arrive.
+        assertEquals(List.of(3L, 6L), connection.sequences);
+    }
+
+    @Test
+    void ignoresALateAcknowledgement() throws InterruptedException {
+        RecordingConnection connection = new RecordingConnection();
+        ReliableDelivery.Session session = reliability.start("alice", connection, -1);
+        send(session, 6);
+        assertTrue(session.ack(4, new long[0]));
+        connection.sequences.clear();
+
+        // An older acknowledgement whose range lies within what has been acknowledged since.
+        assertTrue(session.ack(1, ReliableDelivery.parseRanges(1, "3-4")));
+
+        assertEquals(4, session.getAcked());
+        assertTrue(connection.sequences.isEmpty());
+    }
+
+    @Test
+    void rejectsAcknowledgementsOfMessagesThatWereNotSent() throws InterruptedException {
+        ReliableDelivery.Session session = reliability.start("alice", new RecordingConnection(), -1);
+        send(session, 3);
+        assertFalse(session.ack(4, new long[0]));
+        assertFalse(session.ack(1, ReliableDelivery.parseRanges(1, "3-4")));
+        assertEquals(0, session.getAcked());
+    }
+
+    @Test
+    void resumesWithAnAcknowledgementWithinTheWindow() throws InterruptedException {
+        ReliableDelivery.Session session = reliability.start("alice", new RecordingConnection(), -1);
+        send(session, 5);
+        session.ack(2, new long[0]);
+        session.detach();
+
+        RecordingConnection connection = new RecordingConnection();
+        ReliableDelivery.Session resumed = reliability.start("alice", connection, 3);
+        resumed.resendUnacked();
+
+        assertSame(session, resumed);
+        assertEquals(3, resumed.getAcked());
+        assertEquals(List.of(4L, 5L), connection.sequences);
+    }
+
+    @Test
+    void resumesAtTheEdgesOfTheWindow() throws InterruptedException {
+        ReliableDelivery.Session session = reliability.start("alice", new RecordingConnection(), -1);
+        send(session, 5);
+        session.ack(2, new long[0]);
+        session.detach();
+        assertSame(session, reliability.start("alice", new RecordingConnection(), 2));
+
+        session.detach();
+        RecordingConnection connection = new RecordingConnection();
+        assertSame(session, reliability.start("alice", connection, 5));
+        session.resendUnacked();
+        assertTrue(connection.sequences.isEmpty());
+    }
+
+    @Test
+    void startsOverWhenTheAcknowledgementIsBeforeTheWindow() throws InterruptedException {
+        ReliableDelivery.Session session = reliability.start("alice", new RecordingConnection(), -1);
+        send(session, 5);
+        session.ack(3, new long[0]);
+        session.detach();
+
+        ReliableDelivery.Session resumed = reliability.start("alice", new RecordingConnection(), 2);
+
+        assertNotSame(session, resumed);
+        assertTrue(session.isEnded());
+        assertEquals(0, resumed.getAcked());
+        assertEquals(0, reliability.getWindowBytes());
+    }
+
+    @Test
+    void startsOverWhenTheAcknowledgementIsAfterTheWindow() throws InterruptedException {
+        ReliableDelivery.Session session = reliability.start("alice", new RecordingConnection(), -1);
+        send(session, 5);
+        session.detach();
+
+        ReliableDelivery.Session resumed = reliability.start("alice", new RecordingConnection(), 6);
+
+        assertNotSame(session, resumed);
+        assertTrue(session.isEnded());
+        assertEquals(0, resumed.getAcked());
+    }
+
+    @Test
+    void doesNotHoldTheSessionWhileASenderWaitsForTheConnection() throws InterruptedException {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingConnection connection = new RecordingConnection() {
+            @Override
+            public synchronized boolean writeFrame(Frame frame) {
+                // The first frame waits, like a full queue under --slow-consumer=block.
+                if (writing.getCount() > 0) {
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.writeFrame(frame);
+            }
+        };
+        ReliableDelivery.Session session = reliability.start("alice", connection, -1);
+        Thread sender = new Thread(() -> session.send(Frame.of("BCST [bob] first")));
+        sender.start();
+        writing.await();
+
+        // The session is not locked while the sender waits, the next message is left to the sender.
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+            session.send(Frame.of("BCST [bob] second"));
+            assertTrue(session.ack(0, new long[0]));
+            session.resendUnacked();
+        });
+
+        release.countDown();
+        sender.join();
+        assertEquals(List.of(1L, 2L, 1L, 2L), connection.sequences);
+    }
+
+    @Test
+    void refusesMessagesOnceTheClientCouldNotKeepUp() throws InterruptedException {
+        RecordingConnection connection = new RecordingConnection() {
+            @Override
+            public boolean writeFrame(Frame frame) {
+                super.writeFrame(frame);
+                // The queue is full from the second message on.
+                return sequences.size() < 2;
+            }
+        };
+        ReliableDelivery.Session session = reliability.start("alice", connection, -1);
+        send(session, 2);
+
+        assertTrue(session.isEnded());
+        assertEquals(-1, session.send(Frame.of("BCST [bob] lost")));
+        assertEquals(0, reliability.getWindowBytes());
+    }
+
+    @Test
+    void refusesMessagesOnceTheWindowIsFull() throws InterruptedException {
+        ReliableDelivery.Session session = reliability.start("alice", new RecordingConnection(), -1);
+        int window = new ServerConfiguration().getReliableWindow();
+        for (int i = 0; i < window; i++) {
+            assertTrue(session.send(Frame.of("BCST [bob] message " + i)) > 0);
+        }
+
+        assertEquals(-1, session.send(Frame.of("BCST [bob] one too many")));
+        assertEquals(-1, session.send(Frame.of("BCST [bob] lost")));
+        assertTrue(session.isEnded());
+    }
+}
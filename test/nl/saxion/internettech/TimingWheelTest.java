@@ -0,0 +1,74 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    private AsyncLogger logger;
+
+    @BeforeEach
+    void setUp() {
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        logger = new AsyncLogger(conf);
+    }
+
+    @Test
+    void runsTasksInTheOrderOfTheirDeadlines() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1, 64, logger);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(4);
+        for (int delay : new int[] {40, 10, 30, 20}) {
+            wheel.schedule(() -> {
+                order.add(delay);
+                done.countDown();
+            }, delay);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(10, 20, 30, 40), order);
+    }
+
+    @Test
+    void waitsForTheRemainingTurnsOfTheWheel() throws InterruptedException {
+        // A turn of the wheel takes 4 ticks of 5 ms, the task is 10 turns ahead.
+        TimingWheel wheel = new TimingWheel(5, 4, logger);
+        CountDownLatch done = new CountDownLatch(1);
+        long[] ranAfter = new long[1];
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            ranAfter[0] = System.nanoTime() - start;
+            done.countDown();
+        }, 200);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAfter[0] >= TimeUnit.MILLISECONDS.toNanos(200), "ran after " + ranAfter[0] + " ns");
+    }
+
+    @Test
+    void skipsCancelledTasksAndSurvivesFailingTasks() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1, 64, logger);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(() -> ran.add("cancelled"), 10).cancel();
+        wheel.schedule(() -> {
+            throw new IllegalStateException("fails on purpose");
+        }, 15);
+        wheel.schedule(() -> {
+            ran.add("after the failure");
+            done.countDown();
+        }, 20);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("after the failure"), ran);
+    }
+}
@@ -0,0 +1,126 @@
+package nl.saxion.internettech;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void allowsABurstAndThenTheRate() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.tryAcquire(1, now));
+        }
+        // The next token is earned a tenth of a second later.
+        assertEquals(SECOND / 10, bucket.tryAcquire(1, now));
+        assertEquals(SECOND / 20, bucket.tryAcquire(1, now + SECOND / 20));
+        assertEquals(0, bucket.tryAcquire(1, now + SECOND / 10));
+        assertTrue(bucket.tryAcquire(1, now + SECOND / 10) > 0);
+    }
+
+    @Test
+    void refillsUpToTheSizeOfTheBucket() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(3, now));
+
+        // After a minute the bucket holds 3 tokens, not 600.
+        long later = now + 60 * SECOND;
+        assertEquals(0, bucket.tryAcquire(3, later));
+        assertEquals(SECOND / 10, bucket.tryAcquire(1, later));
+    }
+
+    @Test
+    void refusesWithoutTakingTokens() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(1, now));
+        // Two tokens don't fit, the one that is left is still there.
+        assertEquals(SECOND / 10, bucket.tryAcquire(2, now));
+        assertEquals(0, bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    void limitsPermitsToTheSizeOfTheBucket() {
+        // A broadcast to more clients than the budget allows takes the whole bucket instead of never fitting.
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(1000, now));
+        assertEquals(SECOND / 10, bucket.tryAcquire(1, now));
+    }
+
+    @Test
+    void takesTokensInAdvanceWhenAcquired() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.acquire(2, now));
+        // The tokens are taken anyway, the caller waits for the ones it took in advance.
+        assertEquals(SECOND / 10, bucket.acquire(1, now));
+        assertEquals(2 * SECOND / 10, bucket.acquire(1, now));
+        assertTrue(bucket.tryAcquire(1, now + 2 * SECOND / 10) > 0);
+        assertEquals(0, bucket.tryAcquire(1, now + 3 * SECOND / 10));
+    }
+
+    /**
+     * Keeps the text written to a client.
+     */
+    private static final class TextConnection implements ClientConnection {
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public synchronized boolean writeFrame(Frame frame) {
+            text.append(StandardCharsets.UTF_8.decode(frame.asByteBuffer()));
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        synchronized String take() {
+            String taken = text.toString();
+            text.setLength(0);
+            return taken;
+        }
+    }
+
+    private static void send(ConnectionHandler client, String line) {
+        client.onLine(line, line.length() + 1);
+    }
+
+    @Test
+    void sharesTheFanOutBudgetBetweenAllClients() {
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setLogLevel(LogLevel.OFF);
+        // A second of budget: 4 deliveries to other clients.
+        conf.setFanoutRate(4);
+        Server server = new Server(conf);
+        TextConnection[] connections = new TextConnection[3];
+        ConnectionHandler[] clients = new ConnectionHandler[3];
+        for (int i = 0; i < 3; i++) {
+            connections[i] = new TextConnection();
+            clients[i] = server.connect(connections[i]);
+            send(clients[i], "HELO user" + i);
+            connections[i].take();
+        }
+
+        // A broadcast is delivered to the 2 other clients, it takes 2 tokens.
+        send(clients[0], "BCST one");
+        assertEquals("+OK\n", connections[0].take());
+        assertEquals("BCST [user0] one\n", connections[1].take());
+        send(clients[1], "BCST two");
+        assertEquals("+OK\n", connections[1].take());
+        assertEquals("BCST [user0] one\nBCST [user1] two\n", connections[2].take());
+        // The budget is shared, the third client finds it used up.
+        send(clients[2], "BCST three");
+        assertTrue(connections[2].take().startsWith("-ERR Rate limit exceeded, retry after "));
+        assertEquals("BCST [user1] two\n", connections[0].take());
+    }
+}